@@ -0,0 +1,23 @@
+package me.aco.marketplace.benchmarks;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Entry point of benchmarks.jar.
+ * Accepts the regular JMH command line and always adds the GC profiler,
+ * so every run reports allocation rate per operation (gc.alloc.rate.norm).
+ */
+public class BenchmarkRunner {
+    
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,51 @@
+package me.aco.marketplace.benchmarks;
+
+import io.zonky.test.db.postgres.embedded.EmbeddedPostgres;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import me.aco.marketplace.payment.database.DatabaseConfig;
+
+/**
+ * Embedded PostgreSQL instance for database benchmarks.
+ * Starts a real PostgreSQL server, loads schema.sql and points
+ * DatabaseConfig at it through the DB_* system properties.
+ */
+public final class EmbeddedDatabase implements AutoCloseable {
+    
+    private final EmbeddedPostgres postgres;
+    
+    private EmbeddedDatabase(EmbeddedPostgres postgres) {
+        this.postgres = postgres;
+    }
+    
+    public static EmbeddedDatabase start() throws IOException, SQLException {
+        EmbeddedPostgres postgres = EmbeddedPostgres.builder().start();
+        
+        try (Connection conn = postgres.getPostgresDatabase().getConnection();
+             Statement stmt = conn.createStatement();
+             InputStream schema = EmbeddedDatabase.class.getResourceAsStream("/schema.sql")) {
+            stmt.execute(new String(schema.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        
+        System.setProperty("DB_URL", postgres.getJdbcUrl("postgres", "postgres"));
+        System.setProperty("DB_USERNAME", "postgres");
+        System.setProperty("DB_PASSWORD", "postgres");
+        return new EmbeddedDatabase(postgres);
+    }
+    
+    public String jdbcUrl() {
+        return postgres.getJdbcUrl("postgres", "postgres");
+    }
+    
+    @Override
+    public void close() throws IOException {
+        DatabaseConfig.close();
+        postgres.close();
+    }
+}
@@ -0,0 +1,51 @@
+package me.aco.marketplace.functions;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.Gson;
+
+import me.aco.marketplace.payment.PaymentResult;
+
+/**
+ * JSON steps of a payment request: parsing the body and writing the result.
+ * Function.createGson() uses the streaming codecs of PaymentJsonCodec.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class PaymentJsonBenchmark {
+    
+    private final Gson gson = Function.createGson();
+    private final String requestJson = "{\"userId\": 123, \"amount\": 50.00}";
+    private final PaymentResult result = PaymentResult.success(
+        987654L, 123L, new BigDecimal("50.00"), new BigDecimal("150.00"));
+    
+    @Benchmark
+    public Function.PaymentRequest parsePaymentRequest() {
+        return gson.fromJson(requestJson, Function.PaymentRequest.class);
+    }
+    
+    @Benchmark
+    public String serializePaymentResult() {
+        return gson.toJson(result);
+    }
+    
+    @Benchmark
+    public String serializePaymentResultReusedBuffer() {
+        return PaymentJsonCodec.toJson(gson, result);
+    }
+}
@@ -0,0 +1,71 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.aco.marketplace.benchmarks.EmbeddedDatabase;
+
+/**
+ * Load test of the payment handler at high concurrency: 64 concurrent
+ * invocations against a 5-connection pool, in platform mode and in
+ * virtual mode, where payments run on virtual threads and a semaphore
+ * holds those beyond the pool size.
+ * SampleTime mode reports throughput together with the latency percentiles
+ * (p99, p99.9) used to compare tail latency.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class ExecutionModeBenchmark {
+    
+    private static final int USERS = 1000;
+    
+    @Param({"PLATFORM", "VIRTUAL"})
+    public PaymentExecutor.Mode mode;
+    
+    private EmbeddedDatabase database;
+    private PaymentProcessor paymentProcessor;
+    private PaymentExecutor paymentExecutor;
+    private final BigDecimal amount = new BigDecimal("10.00");
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.start();
+        paymentProcessor = new PaymentProcessor();
+        paymentExecutor = new PaymentExecutor(mode, 5, 10_000);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        database.close();
+    }
+    
+    @Benchmark
+    public PaymentResult processPayment() {
+        long userId = ThreadLocalRandom.current().nextLong(1, USERS + 1);
+        AddPaymentCommand command = new AddPaymentCommand(userId, amount);
+        return paymentExecutor.run(
+            () -> paymentProcessor.processPayment(command),
+            () -> PaymentResult.failure(userId, amount, PaymentResult.DATABASE_UNAVAILABLE));
+    }
+}
@@ -0,0 +1,54 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Money handling of one payment: parse the amount, validate it, add it to
+ * the balance and format the new balance, with BigDecimal and with Money.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class MoneyBenchmark {
+    
+    private final String amountText = "50.00";
+    private final BigDecimal balanceDecimal = new BigDecimal("1234.56");
+    private final long balanceMinor = 123456L;
+    
+    @Benchmark
+    public String bigDecimal() {
+        BigDecimal amount = new BigDecimal(amountText);
+        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
+            throw new IllegalArgumentException("Amount must be greater than zero");
+        }
+        return balanceDecimal.add(amount).toPlainString();
+    }
+    
+    @Benchmark
+    public String minorUnits() {
+        AddPaymentCommand command = new AddPaymentCommand(123L, AddPaymentCommand.parseAmount(amountText));
+        command.validate();
+        return Money.format(Money.add(balanceMinor, command.amountMinor()));
+    }
+    
+    @Benchmark
+    public long minorUnitsWithoutFormatting() {
+        AddPaymentCommand command = new AddPaymentCommand(123L, AddPaymentCommand.parseAmount(amountText));
+        command.validate();
+        return Money.add(balanceMinor, command.amountMinor());
+    }
+}
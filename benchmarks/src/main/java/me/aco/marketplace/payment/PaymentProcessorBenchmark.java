@@ -0,0 +1,60 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.aco.marketplace.benchmarks.EmbeddedDatabase;
+
+/**
+ * Full payment against an embedded PostgreSQL server:
+ * pool acquire, credit statement and commit.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PaymentProcessorBenchmark {
+    
+    private static final int USERS = 1000;
+    
+    private EmbeddedDatabase database;
+    private PaymentProcessor paymentProcessor;
+    private final BigDecimal amount = new BigDecimal("10.00");
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.start();
+        paymentProcessor = new PaymentProcessor();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        database.close();
+    }
+    
+    @Benchmark
+    public PaymentResult processPayment() {
+        long userId = ThreadLocalRandom.current().nextLong(1, USERS + 1);
+        PaymentResult result = paymentProcessor.processPayment(new AddPaymentCommand(userId, amount));
+        if (!result.status().equals("SUCCESS")) {
+            throw new IllegalStateException(result.status());
+        }
+        return result;
+    }
+}
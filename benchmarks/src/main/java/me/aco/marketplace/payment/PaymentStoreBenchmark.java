@@ -0,0 +1,84 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.aco.marketplace.benchmarks.EmbeddedDatabase;
+import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.JdbcPaymentStore;
+import me.aco.marketplace.payment.database.PaymentStore;
+import me.aco.marketplace.payment.database.PipelinedPaymentStore;
+
+/**
+ * Load test of single payments through the blocking JDBC store and the
+ * pipelined store: 64 concurrent payments on a budget of 2 or 8 database
+ * connections. A pipelined store that matches the JDBC store's throughput
+ * and tail latency on fewer connections leaves the rest of the database's
+ * connection limit to other instances.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Fork(1)
+@Threads(64)
+@State(Scope.Benchmark)
+public class PaymentStoreBenchmark {
+    
+    private static final int USERS = 1000;
+    
+    @Param({"JDBC", "PIPELINED"})
+    public String store;
+    
+    @Param({"2", "8"})
+    public int connections;
+    
+    private EmbeddedDatabase database;
+    private PaymentStore paymentStore;
+    private PaymentProcessor paymentProcessor;
+    private final BigDecimal amount = new BigDecimal("10.00");
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.start();
+        if (store.equals("PIPELINED")) {
+            System.setProperty("DB_ASYNC_POOL_MAX_SIZE", Integer.toString(connections));
+            paymentStore = PipelinedPaymentStore.fromSettings();
+        } else {
+            System.setProperty("DB_POOL_MIN_IDLE", Integer.toString(connections));
+            System.setProperty("DB_POOL_MAX_SIZE", Integer.toString(connections));
+            paymentStore = new JdbcPaymentStore(DatabaseConfig.getDataSource());
+        }
+        paymentProcessor = new PaymentProcessor(paymentStore);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        if (paymentStore instanceof PipelinedPaymentStore pipelined) {
+            pipelined.close();
+        }
+        database.close();
+    }
+    
+    @Benchmark
+    public PaymentResult processPayment() {
+        long userId = ThreadLocalRandom.current().nextLong(1, USERS + 1);
+        return paymentProcessor.processPaymentAsync(new AddPaymentCommand(userId, amount), null).join();
+    }
+}
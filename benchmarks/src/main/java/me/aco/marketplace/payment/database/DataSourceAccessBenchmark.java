@@ -0,0 +1,71 @@
+package me.aco.marketplace.payment.database;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.aco.marketplace.benchmarks.EmbeddedDatabase;
+
+/**
+ * Contention on DataSource lookup with many concurrent invocations.
+ * Compares the previous static synchronized getter with the volatile
+ * fast path of DatabaseConfig.getDataSource().
+ * Runs with 16 threads; use -t 32 or -t 64 for higher concurrency.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class DataSourceAccessBenchmark {
+    
+    private EmbeddedDatabase database;
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.start();
+        SynchronizedHolder.dataSource = DatabaseConfig.getDataSource();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        database.close();
+    }
+    
+    @Benchmark
+    public DataSource synchronizedGetter() {
+        return SynchronizedHolder.getDataSource();
+    }
+    
+    @Benchmark
+    public DataSource volatileGetter() {
+        return DatabaseConfig.getDataSource();
+    }
+    
+    /**
+     * The previous DatabaseConfig access pattern.
+     */
+    private static class SynchronizedHolder {
+        private static DataSource dataSource;
+        
+        static synchronized DataSource getDataSource() {
+            return dataSource;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package me.aco.marketplace.payment.database;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import me.aco.marketplace.benchmarks.EmbeddedDatabase;
+import me.aco.marketplace.payment.Money;
+
+/**
+ * Parse/plan savings of server-side prepared statements.
+ * Runs the payment statements through fresh repositories on one long-lived
+ * connection, as pooled requests do. prepareThreshold=0 makes pgJDBC parse
+ * and plan every execution; 1 and 5 switch to a named server-side statement.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class StatementCacheBenchmark {
+    
+    private static final int USERS = 1000;
+    
+    @Param({"0", "1", "5"})
+    public int prepareThreshold;
+    
+    private EmbeddedDatabase database;
+    private Connection connection;
+    private final long amountMinor = Money.fromDecimal(new BigDecimal("10.00"));
+    
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = EmbeddedDatabase.start();
+        
+        Properties properties = new Properties();
+        properties.setProperty("user", "postgres");
+        properties.setProperty("password", "postgres");
+        properties.setProperty("prepareThreshold", Integer.toString(prepareThreshold));
+        connection = DriverManager.getConnection(database.jdbcUrl(), properties);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        connection.close();
+        database.close();
+    }
+    
+    @Benchmark
+    public UserRepository.UserStatus findStatus() throws Exception {
+        return new UserRepository(connection).findStatus(randomUserId());
+    }
+    
+    @Benchmark
+    public TransferRepository.CreditedPayment creditPayment() throws Exception {
+        return new TransferRepository(connection).creditPayment(randomUserId(), amountMinor);
+    }
+    
+    private static long randomUserId() {
+        return ThreadLocalRandom.current().nextLong(1, USERS + 1);
+    }
+}
@@ -0,0 +1,61 @@
+-- Minimal copy of the marketplace-spring-ca schema used by the payment function.
+CREATE TABLE users (
+    id         BIGSERIAL PRIMARY KEY,
+    username   VARCHAR(255) NOT NULL UNIQUE,
+    name       VARCHAR(255),
+    email      VARCHAR(255),
+    balance    DECIMAL(19, 2) NOT NULL DEFAULT 0,
+    active     BOOLEAN NOT NULL DEFAULT TRUE,
+    updated_at TIMESTAMP
+);
+
+CREATE TABLE transfers (
+    id            BIGSERIAL PRIMARY KEY,
+    amount        DECIMAL(19, 2) NOT NULL,
+    transfer_type VARCHAR(31) NOT NULL,
+    created_at    TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE payment_transfers (
+    id      BIGINT PRIMARY KEY REFERENCES transfers(id),
+    user_id BIGINT NOT NULL REFERENCES users(id)
+);
+
+CREATE TABLE withdrawal_transfers (
+    id      BIGINT PRIMARY KEY REFERENCES transfers(id),
+    user_id BIGINT NOT NULL REFERENCES users(id)
+);
+
+CREATE TABLE purchase_transfers (
+    id        BIGINT PRIMARY KEY REFERENCES transfers(id),
+    buyer_id  BIGINT NOT NULL REFERENCES users(id),
+    seller_id BIGINT NOT NULL REFERENCES users(id)
+);
+
+CREATE TABLE payment_idempotency_keys (
+    idempotency_key VARCHAR(255) PRIMARY KEY,
+    transfer_id     BIGINT NOT NULL REFERENCES transfers(id),
+    user_id         BIGINT NOT NULL REFERENCES users(id),
+    amount          DECIMAL(19, 2) NOT NULL,
+    new_balance     DECIMAL(19, 2) NOT NULL,
+    created_at      TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE payment_imports (
+    name          VARCHAR(1024) PRIMARY KEY,
+    imported_rows BIGINT NOT NULL DEFAULT 0,
+    rejected_rows BIGINT NOT NULL DEFAULT 0,
+    total_amount  DECIMAL(19, 2) NOT NULL DEFAULT 0,
+    created_at    TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE TABLE payment_ledger (
+    transfer_id BIGINT PRIMARY KEY REFERENCES transfers(id),
+    user_id     BIGINT NOT NULL,
+    amount      DECIMAL(19, 2) NOT NULL
+);
+CREATE INDEX idx_payment_ledger_user_id ON payment_ledger (user_id);
+
+INSERT INTO users (username, name, email, balance, active)
+SELECT 'user' || i, 'User ' || i, 'user' || i || '@example.com', 0, TRUE
+FROM generate_series(1, 1000) AS i;
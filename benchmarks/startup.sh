@@ -0,0 +1,65 @@
+#!/usr/bin/env bash
+# Startup time and memory of the custom handler, JVM build vs native image.
+#
+#   mvn package                 # JVM build, staged in target/azure-functions
+#   mvn package -Pnative        # native build, staged in target/native-app
+#   benchmarks/startup.sh [requests]
+#
+# Each build is started RUNS times. A run reports the time from launch to the
+# first answer on /api/Payment, then sends the requests (default 100) and
+# reports the resident set size (VmRSS) and its peak (VmHWM) from /proc.
+# Without a database the payments are rejected by validation, which measures
+# the handler alone; set the DB_* variables and PAYLOAD to a valid payment to
+# include the pool. Runs on Linux with curl, no Azure tools needed.
+set -euo pipefail
+
+cd "$(dirname "$0")/.."
+REQUESTS=${1:-100}
+RUNS=${RUNS:-5}
+PORT=${FUNCTIONS_CUSTOMHANDLER_PORT:-8080}
+PAYLOAD=${PAYLOAD:-'{}'}
+APP=target/azure-functions/marketplace-payment-function
+URL="http://localhost:$PORT/api/Payment"
+
+now_ms() {
+    date +%s%3N
+}
+
+measure() {
+    local name=$1
+    shift
+    for run in $(seq "$RUNS"); do
+        local started
+        started=$(now_ms)
+        FUNCTIONS_CUSTOMHANDLER_PORT=$PORT "$@" > /dev/null 2>&1 &
+        local pid=$!
+        until curl -s -o /dev/null -X POST -d "$PAYLOAD" "$URL"; do
+            kill -0 "$pid" 2> /dev/null || { echo "$name exited during startup" >&2; exit 1; }
+            sleep 0.005
+        done
+        local first=$(( $(now_ms) - started ))
+        for _ in $(seq "$REQUESTS"); do
+            curl -s -o /dev/null -X POST -d "$PAYLOAD" "$URL"
+        done
+        local rss hwm
+        rss=$(awk '/^VmRSS/ { print int($2 / 1024) }' "/proc/$pid/status")
+        hwm=$(awk '/^VmHWM/ { print int($2 / 1024) }' "/proc/$pid/status")
+        kill "$pid"
+        wait "$pid" 2> /dev/null || true
+        printf '%-7s run %d: first response %5d ms, RSS %4d MB, peak RSS %4d MB\n' \
+            "$name" "$run" "$first" "$rss" "$hwm"
+    done
+}
+
+if [ -d "$APP" ]; then
+    measure jvm java -cp "$APP/marketplace-payment-function-1.0-SNAPSHOT.jar:$APP/lib/*" \
+        me.aco.marketplace.functions.CustomHandler
+else
+    echo "No JVM build in $APP, run mvn package" >&2
+fi
+
+if [ -x target/native-app/payment-function ]; then
+    measure native target/native-app/payment-function
+else
+    echo "No native build in target/native-app, run mvn package -Pnative" >&2
+fi
@@ -0,0 +1,263 @@
+package me.aco.marketplace.functions;
+
+import com.microsoft.azure.functions.ExecutionContext;
+import com.microsoft.azure.functions.HttpMethod;
+import com.microsoft.azure.functions.HttpRequestMessage;
+import com.microsoft.azure.functions.HttpResponseMessage;
+import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.HttpStatusType;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import me.aco.marketplace.payment.Settings;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Entry point of the native image: an Azure Functions custom handler.
+ * With enableForwardingHttpRequest the Functions host forwards each HTTP
+ * request unchanged to FUNCTIONS_CUSTOMHANDLER_PORT. Requests are adapted
+ * to the Java worker types and handled by the same Function methods, so
+ * the native binary answers exactly like the Java worker. It runs without
+ * the host as well, which is how it is tested and benchmarked locally.
+ */
+public final class CustomHandler {
+    
+    private static final Logger LOGGER = Logger.getLogger(CustomHandler.class.getName());
+    
+    /**
+     * Functions served by the native binary, by request path.
+     * Each one needs a function.json in src/main/native. PaymentAsync is not
+     * served, as it writes through a queue output binding, and neither are the
+     * queue and blob triggered functions, which the host does not forward.
+     */
+    private static final Map<String, Route> ROUTES = Map.of(
+        "/api/Payment", new Route("Payment", HttpMethod.POST, Function::processPayment),
+        "/api/Payments/batch", new Route("PaymentsBatch", HttpMethod.POST, Function::processPayments),
+        "/api/Transfers/batch", new Route("TransfersBatch", HttpMethod.POST, Function::processTransfers),
+        "/api/Payment/history", new Route("PaymentHistory", HttpMethod.GET, Function::paymentHistory),
+        "/api/Payment/balance", new Route("PaymentBalance", HttpMethod.GET, Function::paymentBalance),
+        "/api/metrics", new Route("Metrics", HttpMethod.GET, Function::metrics)
+    );
+    
+    private CustomHandler() {
+    }
+    
+    public static void main(String[] args) throws IOException {
+        HttpServer server = start(Settings.getInt("FUNCTIONS_CUSTOMHANDLER_PORT", 8080));
+        LOGGER.info("Custom handler listening on port " + server.getAddress().getPort());
+    }
+    
+    /**
+     * Start serving on a port, 0 for any free one. Each request runs on its own virtual thread.
+     */
+    static HttpServer start(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/", CustomHandler::handle);
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        return server;
+    }
+    
+    private static void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            Route route = ROUTES.get(exchange.getRequestURI().getPath());
+            if (route == null) {
+                send(exchange, 404, Map.of(), "{\"error\": \"Not found\"}");
+                return;
+            }
+            if (!route.method().name().equalsIgnoreCase(exchange.getRequestMethod())) {
+                send(exchange, 405, Map.of("Allow", route.method().name()), "{\"error\": \"Method not allowed\"}");
+                return;
+            }
+            
+            Response response;
+            try {
+                response = (Response) route.handler().handle(new Function(),
+                    new Request(exchange, route.method()), new Context(route.name()));
+            } catch (RuntimeException e) {
+                LOGGER.severe("Function " + route.name() + " failed: " + e.getMessage());
+                send(exchange, 500, Map.of(), "{\"error\": \"Internal server error\"}");
+                return;
+            }
+            send(exchange, response.getStatusCode(), response.headers,
+                response.body == null ? "" : response.body.toString());
+        }
+    }
+    
+    private static void send(HttpExchange exchange, int status, Map<String, String> headers, String body)
+            throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        headers.forEach(exchange.getResponseHeaders()::set);
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+    }
+    
+    @FunctionalInterface
+    private interface Handler {
+        HttpResponseMessage handle(Function function, HttpRequestMessage<Optional<String>> request,
+            ExecutionContext context);
+    }
+    
+    private record Route(String name, HttpMethod method, Handler handler) {
+    }
+    
+    /**
+     * A forwarded request, read fully up front like the Java worker does.
+     */
+    private static final class Request implements HttpRequestMessage<Optional<String>> {
+        
+        private final URI uri;
+        private final HttpMethod method;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private final Map<String, String> queryParameters = new LinkedHashMap<>();
+        private final Optional<String> body;
+        
+        Request(HttpExchange exchange, HttpMethod method) throws IOException {
+            this.uri = exchange.getRequestURI();
+            this.method = method;
+            for (Map.Entry<String, List<String>> header : exchange.getRequestHeaders().entrySet()) {
+                headers.put(header.getKey(), header.getValue().get(0));
+            }
+            String query = uri.getRawQuery();
+            if (query != null) {
+                for (String pair : query.split("&")) {
+                    int equals = pair.indexOf('=');
+                    String name = equals < 0 ? pair : pair.substring(0, equals);
+                    String value = equals < 0 ? "" : pair.substring(equals + 1);
+                    queryParameters.putIfAbsent(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                        URLDecoder.decode(value, StandardCharsets.UTF_8));
+                }
+            }
+            try (InputStream in = exchange.getRequestBody()) {
+                String text = new String(in.readAllBytes(), StandardCharsets.UTF_8);
+                this.body = text.isEmpty() ? Optional.empty() : Optional.of(text);
+            }
+        }
+        
+        @Override
+        public URI getUri() {
+            return uri;
+        }
+        
+        @Override
+        public HttpMethod getHttpMethod() {
+            return method;
+        }
+        
+        @Override
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+        
+        @Override
+        public Map<String, String> getQueryParameters() {
+            return queryParameters;
+        }
+        
+        @Override
+        public Optional<String> getBody() {
+            return body;
+        }
+        
+        @Override
+        public HttpResponseMessage.Builder createResponseBuilder(HttpStatus status) {
+            return new Response().status(status);
+        }
+        
+        @Override
+        public HttpResponseMessage.Builder createResponseBuilder(HttpStatusType status) {
+            return new Response().status(status);
+        }
+    }
+    
+    /**
+     * Response and its builder in one, as each is built exactly once.
+     */
+    private static final class Response implements HttpResponseMessage, HttpResponseMessage.Builder {
+        
+        private final Map<String, String> headers = new HashMap<>();
+        private HttpStatusType status = HttpStatus.OK;
+        private Object body;
+        
+        @Override
+        public HttpResponseMessage.Builder status(HttpStatusType status) {
+            this.status = status;
+            return this;
+        }
+        
+        @Override
+        public HttpResponseMessage.Builder header(String key, String value) {
+            headers.put(key, value);
+            return this;
+        }
+        
+        @Override
+        public HttpResponseMessage.Builder body(Object body) {
+            this.body = body;
+            return this;
+        }
+        
+        @Override
+        public HttpResponseMessage build() {
+            return this;
+        }
+        
+        @Override
+        public HttpStatusType getStatus() {
+            return status;
+        }
+        
+        @Override
+        public int getStatusCode() {
+            return status.value();
+        }
+        
+        @Override
+        public String getHeader(String key) {
+            return headers.get(key);
+        }
+        
+        @Override
+        public Object getBody() {
+            return body;
+        }
+    }
+    
+    private record Context(String functionName) implements ExecutionContext {
+        
+        @Override
+        public Logger getLogger() {
+            return LOGGER;
+        }
+        
+        @Override
+        public String getInvocationId() {
+            return UUID.randomUUID().toString();
+        }
+        
+        @Override
+        public String getFunctionName() {
+            return functionName;
+        }
+    }
+}
@@ -5,18 +5,55 @@ import com.microsoft.azure.functions.HttpMethod;
 import com.microsoft.azure.functions.HttpRequestMessage;
 import com.microsoft.azure.functions.HttpResponseMessage;
 import com.microsoft.azure.functions.HttpStatus;
+import com.microsoft.azure.functions.OutputBinding;
 import com.microsoft.azure.functions.annotation.AuthorizationLevel;
+import com.microsoft.azure.functions.annotation.BindingName;
+import com.microsoft.azure.functions.annotation.BlobOutput;
+import com.microsoft.azure.functions.annotation.BlobTrigger;
 import com.microsoft.azure.functions.annotation.FunctionName;
 import com.microsoft.azure.functions.annotation.HttpTrigger;
+import com.microsoft.azure.functions.annotation.QueueOutput;
+import com.microsoft.azure.functions.annotation.QueueTrigger;
 
 import me.aco.marketplace.payment.AddPaymentCommand;
+import me.aco.marketplace.payment.ConcurrencyLimiter;
+import me.aco.marketplace.payment.PaymentBalance;
+import me.aco.marketplace.payment.PaymentExecutor;
+import me.aco.marketplace.payment.PaymentHistory;
+import me.aco.marketplace.payment.PaymentImporter;
+import me.aco.marketplace.payment.PaymentMetrics;
+import me.aco.marketplace.payment.PaymentMicroBatcher;
 import me.aco.marketplace.payment.PaymentProcessor;
 import me.aco.marketplace.payment.PaymentResult;
+import me.aco.marketplace.payment.Settings;
+import me.aco.marketplace.payment.StripedPaymentDispatcher;
+import me.aco.marketplace.payment.TransferCommand;
+import me.aco.marketplace.payment.TransferEngine;
+import me.aco.marketplace.payment.database.TransferHistoryQuery;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.StringWriter;
 import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
 
 /**
  * Azure Functions for Payment Processing.
@@ -24,12 +61,46 @@ import com.google.gson.Gson;
  */
 public class Function {
     
+    private static final int MAX_BATCH_SIZE = 1000;
+    private static final String PAYMENT_QUEUE = "payments";
+    private static final String IDEMPOTENCY_KEY_HEADER = "Idempotency-Key";
+    private static final int MAX_IDEMPOTENCY_KEY_LENGTH = 255;
+    private static final int DEFAULT_HISTORY_LIMIT = 1000;
+    private static final int MAX_HISTORY_LIMIT = Settings.getInt("PAYMENT_HISTORY_MAX_LIMIT", 10_000);
+    private static final long PAYMENT_WAIT_TIMEOUT_MS = Settings.getLong("PAYMENT_WAIT_TIMEOUT_MS", 30_000);
+    private static final String RETRY_AFTER_SECONDS = String.valueOf(Settings.getInt("PAYMENT_LIMIT_RETRY_AFTER_SECONDS", 1));
+    
+    /**
+     * Single payments go through the non-blocking store. The Java worker
+     * cannot return a future, so the invocation thread waits for it, at most
+     * PAYMENT_WAIT_TIMEOUT_MS, but the payment holds no pooled connection
+     * while it does.
+     */
+    private static final boolean PIPELINED_PAYMENTS =
+        "pipelined".equalsIgnoreCase(Settings.get("PAYMENT_STORE", "jdbc").trim());
+    
+    /**
+     * Shared Gson instance. The worker creates a Function per invocation,
+     * so a static instance keeps Gson's type adapter cache warm.
+     */
+    static final Gson gson = createGson();
+    
+    static {
+        // Runs when the worker first loads this class
+        FunctionWarmup.start();
+    }
+    
     private final PaymentProcessor paymentProcessor = new PaymentProcessor();
-    private final Gson gson = new Gson();
+    private final PaymentHistory paymentHistory = new PaymentHistory();
+    private final PaymentBalance paymentBalance = new PaymentBalance();
+    private final TransferEngine transferEngine = new TransferEngine();
     
     /**
      * Process a payment request.
      * POST /api/Payment with JSON body: {"userId": 123, "amount": 50.00}
+     * An optional Idempotency-Key header makes retries of the same payment safe.
+     * Responds 429 with Retry-After when the instance is at its concurrency limit,
+     * and 503 with Retry-After while the database circuit breaker is open.
      */
     @FunctionName("Payment")
     public HttpResponseMessage processPayment(
@@ -41,7 +112,7 @@ public class Function {
             final ExecutionContext context) {
         
         context.getLogger().info("Processing payment request");
-
+        
         try {
             // Parse request body
             String requestBody = request.getBody().orElse(null);
@@ -51,26 +122,49 @@ public class Function {
                     .build();
             }
             
+            String idempotencyKey = header(request, IDEMPOTENCY_KEY_HEADER);
+            if (!validKey(idempotencyKey)) {
+                return invalidKey(request);
+            }
+            
             // Parse payment command from JSON
-            PaymentRequest paymentRequest = gson.fromJson(requestBody, PaymentRequest.class);
+            PaymentRequest paymentRequest = parse(requestBody, PaymentRequest.class);
             AddPaymentCommand command = new AddPaymentCommand(
                 paymentRequest.userId,
-                paymentRequest.amount
+                paymentRequest.amountMinor
             );
             
-            // Process the payment
-            PaymentResult result = paymentProcessor.processPayment(command);
+            // Process the payment, unless the instance is saturated
+            PaymentResult result = admitted(() -> submit(command, idempotencyKey));
             
             // Return response
-            if (result.status().equals("SUCCESS")) {
+            if (result == null) {
+                context.getLogger().warning("Payment rejected, concurrency limit of "
+                    + LimiterHolder.INSTANCE.limit() + " reached");
+                return request.createResponseBuilder(HttpStatus.TOO_MANY_REQUESTS)
+                    .header("Retry-After", RETRY_AFTER_SECONDS)
+                    .body("{\"error\": \"Too many payments in progress, retry later\"}")
+                    .build();
+            } else if (result.status().equals("SUCCESS")) {
                 context.getLogger().info("Payment processed successfully for user: " + result.userId());
                 return request.createResponseBuilder(HttpStatus.OK)
-                    .body(gson.toJson(result))
+                    .body(json(result))
+                    .build();
+            } else if (result.unavailable()) {
+                context.getLogger().warning("Database unavailable, payment rejected for user: " + result.userId());
+                return request.createResponseBuilder(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header("Retry-After", RETRY_AFTER_SECONDS)
+                    .body(json(result))
+                    .build();
+            } else if (result.status().equals("ACCEPTED")) {
+                context.getLogger().warning("Database unavailable, payment journaled for user: " + result.userId());
+                return request.createResponseBuilder(HttpStatus.ACCEPTED)
+                    .body(json(result))
                     .build();
             } else {
                 context.getLogger().warning("Payment failed: " + result.status());
                 return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
-                    .body(gson.toJson(result))
+                    .body(json(result))
                     .build();
             }
             
@@ -82,11 +176,607 @@ public class Function {
         }
     }
     
+    /**
+     * Process a batch of payments in one database transaction.
+     * POST /api/Payments/batch with JSON body: [{"userId": 123, "amount": 50.00}, ...]
+     * Responds with one result per payment, in request order.
+     */
+    @FunctionName("PaymentsBatch")
+    public HttpResponseMessage processPayments(
+            @HttpTrigger(
+                name = "req",
+                methods = {HttpMethod.POST},
+                route = "Payments/batch",
+                authLevel = AuthorizationLevel.ANONYMOUS)
+                HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+        
+        context.getLogger().info("Processing payment batch request");
+        
+        try {
+            // Parse request body
+            String requestBody = request.getBody().orElse(null);
+            if (requestBody == null || requestBody.isEmpty()) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("{\"error\": \"Request body is required\"}")
+                    .build();
+            }
+            
+            PaymentRequest[] paymentRequests = parse(requestBody, PaymentRequest[].class);
+            if (paymentRequests == null || paymentRequests.length == 0) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("{\"error\": \"At least one payment is required\"}")
+                    .build();
+            }
+            if (paymentRequests.length > MAX_BATCH_SIZE) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("{\"error\": \"Batch size exceeds " + MAX_BATCH_SIZE + " payments\"}")
+                    .build();
+            }
+            
+            List<AddPaymentCommand> commands = new ArrayList<>(paymentRequests.length);
+            for (PaymentRequest paymentRequest : paymentRequests) {
+                commands.add(new AddPaymentCommand(
+                    paymentRequest == null ? null : paymentRequest.userId,
+                    paymentRequest == null ? AddPaymentCommand.NO_AMOUNT : paymentRequest.amountMinor
+                ));
+            }
+            
+            // Process the payments
+            List<PaymentResult> results = ExecutorHolder.INSTANCE.run(
+                () -> paymentProcessor.processPayments(commands),
+                () -> commands.stream().map(command -> unavailable(command.userId(), command.amount())).toList());
+            
+            long succeeded = results.stream().filter(r -> r.status().equals("SUCCESS")).count();
+            context.getLogger().info("Payment batch processed: " + succeeded + " of " + results.size() + " succeeded");
+            return request.createResponseBuilder(HttpStatus.OK)
+                .body(json(results))
+                .build();
+            
+        } catch (Exception e) {
+            context.getLogger().severe("Error processing payment batch: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body("{\"error\": \"" + e.getMessage() + "\"}")
+                .build();
+        }
+    }
+    
+    /**
+     * Process a batch of transfers of any type in one database transaction.
+     * POST /api/Transfers/batch with JSON body:
+     * [{"type": "WITHDRAWAL", "userId": 123, "amount": 20.00},
+     *  {"type": "PURCHASE", "userId": 123, "sellerId": 456, "amount": 15.00}, ...]
+     * Responds with one result per transfer, in request order.
+     */
+    @FunctionName("TransfersBatch")
+    public HttpResponseMessage processTransfers(
+            @HttpTrigger(
+                name = "req",
+                methods = {HttpMethod.POST},
+                route = "Transfers/batch",
+                authLevel = AuthorizationLevel.ANONYMOUS)
+                HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+        
+        context.getLogger().info("Processing transfer batch request");
+        
+        try {
+            String requestBody = request.getBody().orElse(null);
+            if (requestBody == null || requestBody.isEmpty()) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("{\"error\": \"Request body is required\"}")
+                    .build();
+            }
+            
+            TransferCommand[] transfers = parse(requestBody, TransferCommand[].class);
+            if (transfers == null || transfers.length == 0) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("{\"error\": \"At least one transfer is required\"}")
+                    .build();
+            }
+            if (transfers.length > MAX_BATCH_SIZE) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("{\"error\": \"Batch size exceeds " + MAX_BATCH_SIZE + " transfers\"}")
+                    .build();
+            }
+            
+            List<TransferCommand> commands = new ArrayList<>(transfers.length);
+            for (TransferCommand transfer : transfers) {
+                commands.add(transfer != null ? transfer : new TransferCommand(null, null, null, AddPaymentCommand.NO_AMOUNT));
+            }
+            
+            List<PaymentResult> results = ExecutorHolder.INSTANCE.run(
+                () -> transferEngine.processTransfers(commands),
+                () -> commands.stream().map(command -> unavailable(command.userId(), command.amount())).toList());
+            
+            long succeeded = results.stream().filter(r -> r.status().equals("SUCCESS")).count();
+            context.getLogger().info("Transfer batch processed: " + succeeded + " of " + results.size() + " succeeded");
+            return request.createResponseBuilder(HttpStatus.OK)
+                .body(json(results))
+                .build();
+            
+        } catch (Exception e) {
+            context.getLogger().severe("Error processing transfer batch: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body("{\"error\": \"" + e.getMessage() + "\"}")
+                .build();
+        }
+    }
+    
+    /**
+     * Accept a payment for asynchronous processing.
+     * POST /api/Payment/async with the same JSON body as /api/Payment.
+     * The payment is validated, put on the payments queue and acknowledged
+     * with 202 Accepted without touching the database. The message carries
+     * the Idempotency-Key header, or a generated key when there is none,
+     * which is echoed in the response; queue redeliveries of the message
+     * and client retries with the same key are applied only once.
+     */
+    @FunctionName("PaymentAsync")
+    public HttpResponseMessage enqueuePayment(
+            @HttpTrigger(
+                name = "req",
+                methods = {HttpMethod.POST},
+                route = "Payment/async",
+                authLevel = AuthorizationLevel.ANONYMOUS)
+                HttpRequestMessage<Optional<String>> request,
+            @QueueOutput(
+                name = "message",
+                queueName = PAYMENT_QUEUE,
+                connection = "AzureWebJobsStorage")
+                OutputBinding<String> message,
+            final ExecutionContext context) {
+        
+        context.getLogger().info("Queueing payment request");
+        
+        try {
+            String requestBody = request.getBody().orElse(null);
+            if (requestBody == null || requestBody.isEmpty()) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body("{\"error\": \"Request body is required\"}")
+                    .build();
+            }
+            
+            String idempotencyKey = header(request, IDEMPOTENCY_KEY_HEADER);
+            if (!validKey(idempotencyKey)) {
+                return invalidKey(request);
+            }
+            
+            PaymentRequest paymentRequest = parse(requestBody, PaymentRequest.class);
+            AddPaymentCommand command = new AddPaymentCommand(
+                paymentRequest.userId,
+                paymentRequest.amountMinor
+            );
+            
+            try {
+                command.validate();
+            } catch (IllegalArgumentException e) {
+                return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                    .body(json(PaymentResult.failure(command.userId(), command.amount(), e.getMessage())))
+                    .build();
+            }
+            
+            paymentRequest.idempotencyKey = idempotencyKey != null ? idempotencyKey : UUID.randomUUID().toString();
+            message.setValue(json(paymentRequest));
+            
+            StringWriter queued = new StringWriter();
+            new JsonWriter(queued).beginObject()
+                .name("status").value("QUEUED")
+                .name("idempotencyKey").value(paymentRequest.idempotencyKey)
+                .endObject()
+                .flush();
+            return request.createResponseBuilder(HttpStatus.ACCEPTED)
+                .body(queued.toString())
+                .build();
+            
+        } catch (Exception e) {
+            context.getLogger().severe("Error queueing payment: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body("{\"error\": \"" + e.getMessage() + "\"}")
+                .build();
+        }
+    }
+    
+    /**
+     * Page through payment transfers for reconciliation.
+     * GET /api/Payment/history?userId=123&from=2024-01-01T00:00:00&to=2024-02-01T00:00:00&limit=1000
+     * All parameters are optional; from is inclusive and to is exclusive.
+     * Responds with {"transfers": [...], "nextCursor": "..."}; pass nextCursor
+     * back as the cursor parameter to get the next page. It is omitted on the last page.
+     */
+    @FunctionName("PaymentHistory")
+    public HttpResponseMessage paymentHistory(
+            @HttpTrigger(
+                name = "req",
+                methods = {HttpMethod.GET},
+                route = "Payment/history",
+                authLevel = AuthorizationLevel.ANONYMOUS)
+                HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+        
+        TransferHistoryQuery query;
+        try {
+            Map<String, String> params = request.getQueryParameters();
+            String userId = params.get("userId");
+            String from = params.get("from");
+            String to = params.get("to");
+            String cursor = params.get("cursor");
+            String limit = params.get("limit");
+            
+            query = new TransferHistoryQuery(
+                userId == null ? null : Long.valueOf(userId),
+                from == null ? null : LocalDateTime.parse(from),
+                to == null ? null : LocalDateTime.parse(to),
+                cursor == null ? null : TransferHistoryQuery.Position.fromCursor(cursor),
+                limit == null ? DEFAULT_HISTORY_LIMIT : Integer.parseInt(limit)
+            );
+        } catch (NumberFormatException | DateTimeParseException e) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                .body("{\"error\": \"Invalid parameter: " + e.getMessage() + "\"}")
+                .build();
+        } catch (IllegalArgumentException e) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                .body("{\"error\": \"" + e.getMessage() + "\"}")
+                .build();
+        }
+        if (query.limit() < 1 || query.limit() > MAX_HISTORY_LIMIT) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                .body("{\"error\": \"limit must be between 1 and " + MAX_HISTORY_LIMIT + "\"}")
+                .build();
+        }
+        
+        try {
+            return request.createResponseBuilder(HttpStatus.OK)
+                .header("Content-Type", "application/json")
+                .body(historyPage(query))
+                .build();
+        } catch (SQLException | IOException e) {
+            context.getLogger().severe("Error reading payment history: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body("{\"error\": \"" + e.getMessage() + "\"}")
+                .build();
+        }
+    }
+    
+    /**
+     * Read the current balance of a user.
+     * GET /api/Payment/balance?userId=123
+     * Responds with {"userId": 123, "balance": 150.00}, or 404 for an unknown user.
+     */
+    @FunctionName("PaymentBalance")
+    public HttpResponseMessage paymentBalance(
+            @HttpTrigger(
+                name = "req",
+                methods = {HttpMethod.GET},
+                route = "Payment/balance",
+                authLevel = AuthorizationLevel.ANONYMOUS)
+                HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+        
+        Long userId;
+        try {
+            userId = Long.valueOf(request.getQueryParameters().getOrDefault("userId", ""));
+        } catch (NumberFormatException e) {
+            return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+                .body("{\"error\": \"userId is required\"}")
+                .build();
+        }
+        
+        try {
+            BigDecimal balance = paymentBalance.find(userId);
+            if (balance == null) {
+                return request.createResponseBuilder(HttpStatus.NOT_FOUND)
+                    .body("{\"error\": \"User not found: " + userId + "\"}")
+                    .build();
+            }
+            StringWriter body = new StringWriter(64);
+            PaymentJsonCodec.writeBalance(new JsonWriter(body), userId, balance);
+            return request.createResponseBuilder(HttpStatus.OK)
+                .header("Content-Type", "application/json")
+                .body(body.toString())
+                .build();
+        } catch (SQLException | IOException e) {
+            context.getLogger().severe("Error reading balance: " + e.getMessage());
+            return request.createResponseBuilder(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body("{\"error\": \"" + e.getMessage() + "\"}")
+                .build();
+        }
+    }
+    
+    /**
+     * Apply queued payments.
+     * A message holds one payment or a JSON array of payments. Messages from
+     * concurrent invocations are coalesced into micro-batches that are applied
+     * per user with one aggregated balance increment each.
+     * Delivery is at least once, so every payment is applied under an
+     * idempotency key: its idempotencyKey field, or one derived from the
+     * message id, which stays the same across redeliveries.
+     * Rejected payments are logged and dropped; a database failure rethrows
+     * so the message is retried and eventually moved to the poison queue.
+     */
+    @FunctionName("PaymentQueue")
+    public void processQueuedPayments(
+            @QueueTrigger(
+                name = "message",
+                queueName = PAYMENT_QUEUE,
+                connection = "AzureWebJobsStorage")
+                String message,
+            @BindingName("Id") String messageId,
+            final ExecutionContext context) {
+        
+        boolean array = message.trim().startsWith("[");
+        PaymentRequest[] paymentRequests = array
+            ? parse(message, PaymentRequest[].class)
+            : new PaymentRequest[] {parse(message, PaymentRequest.class)};
+        
+        List<AddPaymentCommand> commands = new ArrayList<>(paymentRequests.length);
+        List<String> idempotencyKeys = new ArrayList<>(paymentRequests.length);
+        for (int i = 0; i < paymentRequests.length; i++) {
+            PaymentRequest paymentRequest = paymentRequests[i];
+            commands.add(new AddPaymentCommand(
+                paymentRequest == null ? null : paymentRequest.userId,
+                paymentRequest == null ? AddPaymentCommand.NO_AMOUNT : paymentRequest.amountMinor
+            ));
+            String key = paymentRequest == null ? null : paymentRequest.idempotencyKey;
+            idempotencyKeys.add(key != null && validKey(key) ? key : "queue:" + messageId + (array ? ":" + i : ""));
+        }
+        
+        List<PaymentResult> results = QueueBatcherHolder.INSTANCE.submit(commands, idempotencyKeys).join();
+        for (PaymentResult result : results) {
+            if (result.status().equals("SUCCESS")) {
+                context.getLogger().info("Queued payment processed for user: " + result.userId());
+            } else {
+                context.getLogger().warning("Queued payment rejected: " + result.status());
+            }
+        }
+    }
+    
+    /**
+     * Import a settlement file uploaded to the payment-imports container.
+     * Files ending in .csv are read as CSV (userId,amount), anything else as
+     * NDJSON ({"userId": 123, "amount": 50.00} per line). Rejected lines are
+     * written to payment-imports-reports/{name}.errors.csv. A database failure
+     * rethrows so the blob is retried; each file name is applied only once.
+     */
+    @FunctionName("PaymentImport")
+    public void importPayments(
+            @BlobTrigger(
+                name = "file",
+                path = "payment-imports/{name}",
+                dataType = "binary",
+                connection = "AzureWebJobsStorage")
+                byte[] content,
+            @BindingName("name") String name,
+            @BlobOutput(
+                name = "report",
+                path = "payment-imports-reports/{name}.errors.csv",
+                connection = "AzureWebJobsStorage")
+                OutputBinding<String> report,
+            final ExecutionContext context) throws SQLException, IOException {
+        
+        StringWriter errors = new StringWriter();
+        PaymentImporter.ImportReport result = new PaymentImporter().importPayments(
+            name,
+            new InputStreamReader(new ByteArrayInputStream(content), StandardCharsets.UTF_8),
+            PaymentImporter.Format.of(name),
+            errors
+        );
+        
+        if (result.alreadyImported()) {
+            context.getLogger().warning("Payment file already imported, skipped: " + name);
+            return;
+        }
+        report.setValue(errors.toString());
+        context.getLogger().info("Payment file " + name + " imported: " + result.importedRows()
+            + " payments, " + result.rejectedRows() + " rejected");
+    }
+    
+    /**
+     * Expose payment, pool and cold start metrics for Prometheus.
+     * GET /api/metrics
+     */
+    @FunctionName("Metrics")
+    public HttpResponseMessage metrics(
+            @HttpTrigger(
+                name = "req",
+                methods = {HttpMethod.GET},
+                route = "metrics",
+                authLevel = AuthorizationLevel.ANONYMOUS)
+                HttpRequestMessage<Optional<String>> request,
+            final ExecutionContext context) {
+        
+        return request.createResponseBuilder(HttpStatus.OK)
+            .header("Content-Type", MetricsExporter.CONTENT_TYPE)
+            .body(MetricsExporter.scrape())
+            .build();
+    }
+    
+    /**
+     * Run payment work if the concurrency limit admits it.
+     * 
+     * @return the result of the work, or null if it was rejected
+     */
+    private static <T> T admitted(Supplier<T> work) {
+        ConcurrencyLimiter limiter = LimiterHolder.INSTANCE;
+        if (limiter == null) {
+            return work.get();
+        }
+        ConcurrencyLimiter.Permit permit = limiter.tryAcquire();
+        if (permit == null) {
+            return null;
+        }
+        try {
+            return work.get();
+        } finally {
+            permit.release();
+        }
+    }
+    
+    /**
+     * Route a payment to the pipelined store, the striped dispatcher or the configured executor.
+     */
+    private PaymentResult submit(AddPaymentCommand command, String idempotencyKey) {
+        if (PIPELINED_PAYMENTS) {
+            return await(paymentProcessor.processPaymentAsync(command, idempotencyKey));
+        }
+        if (idempotencyKey == null && StripedDispatcherHolder.INSTANCE != null) {
+            return await(StripedDispatcherHolder.INSTANCE.submit(command));
+        }
+        return ExecutorHolder.INSTANCE.run(
+            () -> paymentProcessor.processPayment(command, idempotencyKey),
+            () -> unavailable(command.userId(), command.amount()));
+    }
+    
+    /**
+     * Result of a payment rejected because no connection became available in time.
+     */
+    private static PaymentResult unavailable(Long userId, BigDecimal amount) {
+        return PaymentResult.failure(userId, amount, PaymentResult.DATABASE_UNAVAILABLE);
+    }
+    
+    /**
+     * Wait at most PAYMENT_WAIT_TIMEOUT_MS for a payment completed by another
+     * thread, so a stuck dispatcher or store cannot hold the invocation thread
+     * until the host times out.
+     */
+    private static PaymentResult await(CompletableFuture<PaymentResult> result) {
+        try {
+            return result.get(PAYMENT_WAIT_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new IllegalStateException("Timed out waiting for payment after " + PAYMENT_WAIT_TIMEOUT_MS + " ms");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for payment", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+    
+    /**
+     * Write one history page straight from the database cursor into the
+     * response body, without building transfer objects.
+     */
+    private String historyPage(TransferHistoryQuery query) throws SQLException, IOException {
+        StringWriter body = new StringWriter(Math.min(query.limit(), 1_000) * 96);
+        JsonWriter writer = new JsonWriter(body);
+        int[] rows = {0};
+        
+        writer.beginObject();
+        writer.name("transfers").beginArray();
+        TransferHistoryQuery.Position last = paymentHistory.stream(query, (id, userId, amount, createdAt) -> {
+            PaymentJsonCodec.writeTransfer(writer, id, userId, amount, createdAt);
+            rows[0]++;
+        });
+        writer.endArray();
+        if (last != null && rows[0] == query.limit()) {
+            writer.name("nextCursor").value(last.toCursor());
+        }
+        writer.endObject();
+        writer.flush();
+        return body.toString();
+    }
+    
+    /**
+     * Gson configured for the payment API.
+     * The payment types use the streaming codecs in PaymentJsonCodec,
+     * so no reflection is involved.
+     */
+    static Gson createGson() {
+        return PaymentJsonCodec.register(new GsonBuilder()).create();
+    }
+    
+    private static <T> T parse(String body, Class<T> type) {
+        long started = PaymentMetrics.start();
+        T value = gson.fromJson(body, type);
+        PaymentMetrics.record(PaymentMetrics.Stage.PARSE, started);
+        return value;
+    }
+    
+    private static String json(Object value) {
+        long started = PaymentMetrics.start();
+        String body = PaymentJsonCodec.toJson(gson, value);
+        PaymentMetrics.record(PaymentMetrics.Stage.SERIALIZE, started);
+        return body;
+    }
+    
+    /**
+     * True if an idempotency key is absent or usable.
+     */
+    private static boolean validKey(String idempotencyKey) {
+        return idempotencyKey == null
+            || !idempotencyKey.isBlank() && idempotencyKey.length() <= MAX_IDEMPOTENCY_KEY_LENGTH;
+    }
+    
+    private static HttpResponseMessage invalidKey(HttpRequestMessage<?> request) {
+        return request.createResponseBuilder(HttpStatus.BAD_REQUEST)
+            .body("{\"error\": \"Idempotency-Key must be 1 to " + MAX_IDEMPOTENCY_KEY_LENGTH + " characters\"}")
+            .build();
+    }
+    
+    /**
+     * Case-insensitive header lookup.
+     */
+    private static String header(HttpRequestMessage<?> request, String name) {
+        Map<String, String> headers = request.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(name)) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Micro-batcher shared by all queue invocations on this instance.
+     * Function instances are created per invocation, so it lives in a holder.
+     * One flusher per pool connection by default.
+     */
+    private static class QueueBatcherHolder {
+        static final PaymentMicroBatcher INSTANCE = new PaymentMicroBatcher(
+            new PaymentProcessor(),
+            500,
+            20,
+            Settings.getInt("PAYMENT_QUEUE_FLUSHERS", Settings.getInt("DB_POOL_MAX_SIZE", 5)),
+            Settings.getInt("PAYMENT_QUEUE_CAPACITY", 1_000));
+    }
+    
+    /**
+     * Admission limit on single payments of this instance, shared by all invocations.
+     */
+    static class LimiterHolder {
+        static final ConcurrencyLimiter INSTANCE = ConcurrencyLimiter.fromSettings();
+    }
+    
+    /**
+     * Platform or virtual-thread execution, selected with PAYMENT_EXECUTION.
+     */
+    private static class ExecutorHolder {
+        static final PaymentExecutor INSTANCE = PaymentExecutor.fromSettings();
+    }
+    
+    /**
+     * Per-user striped dispatcher, enabled with PAYMENT_DISPATCH=striped.
+     * Stripes default to the pool size, so each stripe can own a connection.
+     */
+    private static class StripedDispatcherHolder {
+        static final StripedPaymentDispatcher INSTANCE = "striped".equalsIgnoreCase(Settings.get("PAYMENT_DISPATCH", "direct"))
+            ? new StripedPaymentDispatcher(
+                new PaymentProcessor(),
+                Settings.getInt("PAYMENT_DISPATCH_STRIPES", Settings.getInt("DB_POOL_MAX_SIZE", 5)),
+                500,
+                Settings.getInt("PAYMENT_DISPATCH_CAPACITY", 1_000))
+            : null;
+    }
+    
     /**
      * Internal class for parsing payment requests
      */
-    private static class PaymentRequest {
+    static class PaymentRequest {
         Long userId;
-        BigDecimal amount;
+        long amountMinor = AddPaymentCommand.NO_AMOUNT;
+        String idempotencyKey;
     }
 }
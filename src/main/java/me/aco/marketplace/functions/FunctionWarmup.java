@@ -0,0 +1,86 @@
+package me.aco.marketplace.functions;
+
+import java.lang.management.ManagementFactory;
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+import me.aco.marketplace.payment.PaymentResult;
+import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.TransferRepository;
+import me.aco.marketplace.payment.database.UserRepository;
+
+/**
+ * Warm-up run at worker startup.
+ * Moves the cost of the first payment (pool creation, JDBC driver loading,
+ * the TLS handshake, statement parsing and Gson reflection setup) to a
+ * background thread that starts as soon as the worker loads the functions.
+ */
+public final class FunctionWarmup {
+    
+    private static final Logger LOGGER = Logger.getLogger(FunctionWarmup.class.getName());
+    private static final AtomicBoolean STARTED = new AtomicBoolean();
+    
+    private static volatile long coldStartMillis = -1;
+    
+    private FunctionWarmup() {
+    }
+    
+    /**
+     * Start the warm-up in the background, once per worker.
+     */
+    static void start() {
+        if (STARTED.compareAndSet(false, true)) {
+            Thread thread = new Thread(FunctionWarmup::run, "function-warmup");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+    
+    /**
+     * Milliseconds from JVM start until the warm-up finished, or -1 while it is running.
+     */
+    public static long coldStartMillis() {
+        return coldStartMillis;
+    }
+    
+    private static void run() {
+        long started = System.nanoTime();
+        
+        primeJson();
+        
+        try {
+            DatabaseConfig.warmUp(conn -> {
+                new UserRepository(conn).prepareStatements();
+                new TransferRepository(conn).prepareStatements();
+            });
+        } catch (Exception e) {
+            LOGGER.warning("Database warm-up failed: " + e.getMessage());
+        }
+        
+        long warmupMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+        coldStartMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        LOGGER.info("Cold start completed in " + coldStartMillis + " ms (warm-up " + warmupMillis + " ms)");
+    }
+    
+    /**
+     * Build and cache the Gson adapters used by the payment endpoints.
+     */
+    private static void primeJson() {
+        PaymentResult sample = PaymentResult.success(1L, 1L, BigDecimal.ONE, BigDecimal.ONE);
+        Function.gson.fromJson(Function.gson.toJson(sample), PaymentResult.class);
+        Function.gson.fromJson("[{\"userId\": 1, \"amount\": 1.00}]", Function.PaymentRequest[].class);
+        Function.gson.fromJson("{\"userId\": 1, \"amount\": 1.00}", Function.PaymentRequest.class);
+    }
+    
+    /**
+     * Training run for the AppCDS archive (see the appcds Maven profile).
+     * Loads the same classes as a real cold start and exits.
+     */
+    public static void main(String[] args) {
+        STARTED.set(true);
+        run();
+        DatabaseConfig.close();
+    }
+}
@@ -0,0 +1,120 @@
+package me.aco.marketplace.functions;
+
+import me.aco.marketplace.payment.ConcurrencyLimiter;
+import me.aco.marketplace.payment.PaymentMetrics;
+import me.aco.marketplace.payment.database.CircuitBreaker;
+import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.PoolMetrics;
+import me.aco.marketplace.payment.database.ReplicaRouter;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+
+/**
+ * Renders payment, pool and startup metrics in the Prometheus text format.
+ */
+final class MetricsExporter {
+    
+    static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+    
+    private MetricsExporter() {
+    }
+    
+    static String scrape() {
+        StringBuilder out = new StringBuilder(16 * 1024);
+        PaymentMetrics.writePrometheus(out);
+        writePool(out, DatabaseConfig.poolMetrics().snapshot());
+        
+        CircuitBreaker breaker = DatabaseConfig.circuitBreaker();
+        if (breaker != null) {
+            writeBreaker(out, breaker);
+        }
+        
+        ReplicaRouter replica = DatabaseConfig.replicaRouter();
+        if (replica != null) {
+            writeReplica(out, replica);
+        }
+        
+        ConcurrencyLimiter limiter = Function.LimiterHolder.INSTANCE;
+        if (limiter != null) {
+            gauge(out, "payment_concurrency_limit", "Payments admitted at once by the adaptive limit.", limiter.limit());
+            gauge(out, "payment_in_flight", "Payments currently admitted.", limiter.inFlight());
+            counter(out, "payment_limit_rejections_total", "Payments rejected with 429 by the limit.", limiter.rejected());
+        }
+        
+        long coldStartMillis = FunctionWarmup.coldStartMillis();
+        if (coldStartMillis >= 0) {
+            gauge(out, "function_cold_start_seconds", "Time from JVM start until warm-up finished.",
+                BigDecimal.valueOf(coldStartMillis).movePointLeft(3).toPlainString());
+        }
+        return out.toString();
+    }
+    
+    private static void writePool(StringBuilder out, PoolMetrics.Snapshot pool) {
+        out.append("# HELP db_pool_connections Connections in the pool by state.\n");
+        out.append("# TYPE db_pool_connections gauge\n");
+        out.append("db_pool_connections{state=\"active\"} ").append(pool.activeConnections()).append('\n');
+        out.append("db_pool_connections{state=\"idle\"} ").append(pool.idleConnections()).append('\n');
+        out.append("db_pool_connections{state=\"total\"} ").append(pool.totalConnections()).append('\n');
+        
+        gauge(out, "db_pool_max_connections", "Configured maximum pool size.", pool.maxConnections());
+        gauge(out, "db_pool_pending_threads", "Threads waiting for a connection.", pool.pendingThreads());
+        counter(out, "db_pool_acquire_total", "Connections handed out by the pool.", pool.acquireCount());
+        counter(out, "db_pool_acquire_seconds_total", "Time spent waiting for connections.",
+            BigDecimal.valueOf(pool.acquireNanos()).movePointLeft(9).toPlainString());
+        counter(out, "db_pool_usage_seconds_total", "Time connections were held by callers.",
+            BigDecimal.valueOf(pool.usageMillis()).movePointLeft(3).toPlainString());
+        counter(out, "db_pool_timeouts_total", "Connection requests that timed out.", pool.timeouts());
+    }
+    
+    private static void writeBreaker(StringBuilder out, CircuitBreaker breaker) {
+        CircuitBreaker.State current = breaker.state();
+        out.append("# HELP db_circuit_breaker_state Current state of the database circuit breaker.\n");
+        out.append("# TYPE db_circuit_breaker_state gauge\n");
+        for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            out.append("db_circuit_breaker_state{state=\"").append(label(state)).append("\"} ")
+                .append(state == current ? 1 : 0).append('\n');
+        }
+        
+        out.append("# HELP db_circuit_breaker_transitions_total Times the circuit breaker entered each state.\n");
+        out.append("# TYPE db_circuit_breaker_transitions_total counter\n");
+        for (CircuitBreaker.State state : CircuitBreaker.State.values()) {
+            out.append("db_circuit_breaker_transitions_total{state=\"").append(label(state)).append("\"} ")
+                .append(breaker.transitions(state)).append('\n');
+        }
+        
+        counter(out, "db_circuit_breaker_rejections_total", "Connection requests rejected by the open breaker.",
+            breaker.rejected());
+    }
+    
+    private static void writeReplica(StringBuilder out, ReplicaRouter replica) {
+        long lagMillis = replica.lagMillis();
+        gauge(out, "db_replica_lag_seconds", "Last measured replication lag of the read replica, NaN if unknown.",
+            lagMillis < 0 ? "NaN" : BigDecimal.valueOf(lagMillis).movePointLeft(3).toPlainString());
+        gauge(out, "db_replica_fresh", "1 while reads go to the replica, 0 while they go to the primary.",
+            replica.fresh() ? 1 : 0);
+        
+        out.append("# HELP db_replica_reads_total Read connections by the database they were taken from.\n");
+        out.append("# TYPE db_replica_reads_total counter\n");
+        out.append("db_replica_reads_total{target=\"replica\"} ").append(replica.replicaReads()).append('\n');
+        out.append("db_replica_reads_total{target=\"primary\"} ").append(replica.primaryReads()).append('\n');
+    }
+    
+    private static String label(CircuitBreaker.State state) {
+        return state.name().toLowerCase(Locale.ROOT);
+    }
+    
+    private static void gauge(StringBuilder out, String name, String help, Object value) {
+        metric(out, name, help, "gauge", value);
+    }
+    
+    private static void counter(StringBuilder out, String name, String help, Object value) {
+        metric(out, name, help, "counter", value);
+    }
+    
+    private static void metric(StringBuilder out, String name, String help, String type, Object value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        out.append(name).append(' ').append(value).append('\n');
+    }
+}
@@ -0,0 +1,301 @@
+package me.aco.marketplace.functions;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import me.aco.marketplace.payment.AddPaymentCommand;
+import me.aco.marketplace.payment.Money;
+import me.aco.marketplace.payment.PaymentResult;
+import me.aco.marketplace.payment.TransferCommand;
+import me.aco.marketplace.payment.TransferType;
+
+/**
+ * Hand-written streaming JSON codecs for the payment API types.
+ * The adapters read and write fields directly with JsonReader/JsonWriter,
+ * so Gson never reflects over these classes, and timestamps are formatted
+ * as ISO-8601 strings without going through the reflective path.
+ */
+final class PaymentJsonCodec {
+    
+    private static final DateTimeFormatter TIMESTAMP_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE_TIME;
+    private static final int MAX_REUSED_BUFFER = 16 * 1024;
+    
+    /**
+     * Per-thread output buffer reused across responses.
+     */
+    private static final ThreadLocal<StringWriter> BUFFER = ThreadLocal.withInitial(() -> new StringWriter(256));
+    
+    private PaymentJsonCodec() {
+    }
+    
+    static GsonBuilder register(GsonBuilder builder) {
+        return builder
+            .registerTypeAdapter(Function.PaymentRequest.class, new PaymentRequestAdapter().nullSafe())
+            .registerTypeAdapter(AddPaymentCommand.class, new AddPaymentCommandAdapter().nullSafe())
+            .registerTypeAdapter(TransferCommand.class, new TransferCommandAdapter().nullSafe())
+            .registerTypeAdapter(PaymentResult.class, new PaymentResultAdapter().nullSafe())
+            .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter().nullSafe());
+    }
+    
+    /**
+     * Serialize into a reused per-thread buffer.
+     */
+    static String toJson(Gson gson, Object value) {
+        StringWriter buffer = BUFFER.get();
+        buffer.getBuffer().setLength(0);
+        gson.toJson(value, buffer);
+        String json = buffer.toString();
+        if (buffer.getBuffer().capacity() > MAX_REUSED_BUFFER) {
+            BUFFER.remove(); // Don't keep large batch responses alive
+        }
+        return json;
+    }
+    
+    /**
+     * Write a payment transfer history row.
+     */
+    static void writeTransfer(JsonWriter out, long id, long userId, BigDecimal amount, LocalDateTime createdAt)
+            throws IOException {
+        out.beginObject();
+        out.name("id").value(id);
+        out.name("userId").value(userId);
+        writeDecimal(out.name("amount"), amount);
+        writeTimestamp(out.name("createdAt"), createdAt);
+        out.endObject();
+    }
+    
+    /**
+     * Write the balance of a user and flush it.
+     */
+    static void writeBalance(JsonWriter out, long userId, BigDecimal balance) throws IOException {
+        out.beginObject();
+        out.name("userId").value(userId);
+        writeDecimal(out.name("balance"), balance);
+        out.endObject();
+        out.flush();
+    }
+    
+    static class PaymentRequestAdapter extends TypeAdapter<Function.PaymentRequest> {
+        @Override
+        public void write(JsonWriter out, Function.PaymentRequest value) throws IOException {
+            out.beginObject();
+            out.name("userId").value(value.userId);
+            writeAmount(out.name("amount"), value.amountMinor);
+            if (value.idempotencyKey != null) {
+                out.name("idempotencyKey").value(value.idempotencyKey);
+            }
+            out.endObject();
+        }
+        
+        @Override
+        public Function.PaymentRequest read(JsonReader in) throws IOException {
+            Function.PaymentRequest request = new Function.PaymentRequest();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "userId" -> request.userId = readLong(in);
+                    case "amount" -> request.amountMinor = readAmount(in);
+                    case "idempotencyKey" -> request.idempotencyKey = readString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return request;
+        }
+    }
+    
+    static class AddPaymentCommandAdapter extends TypeAdapter<AddPaymentCommand> {
+        @Override
+        public void write(JsonWriter out, AddPaymentCommand value) throws IOException {
+            out.beginObject();
+            out.name("userId").value(value.userId());
+            writeAmount(out.name("amount"), value.amountMinor());
+            out.endObject();
+        }
+        
+        @Override
+        public AddPaymentCommand read(JsonReader in) throws IOException {
+            Long userId = null;
+            long amount = AddPaymentCommand.NO_AMOUNT;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "userId" -> userId = readLong(in);
+                    case "amount" -> amount = readAmount(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new AddPaymentCommand(userId, amount);
+        }
+    }
+    
+    /**
+     * Unknown types are read as null, which the command rejects on validation.
+     */
+    static class TransferCommandAdapter extends TypeAdapter<TransferCommand> {
+        @Override
+        public void write(JsonWriter out, TransferCommand value) throws IOException {
+            out.beginObject();
+            out.name("type").value(value.type() == null ? null : value.type().name());
+            out.name("userId").value(value.userId());
+            if (value.sellerId() != null) {
+                out.name("sellerId").value(value.sellerId());
+            }
+            writeAmount(out.name("amount"), value.amountMinor());
+            out.endObject();
+        }
+        
+        @Override
+        public TransferCommand read(JsonReader in) throws IOException {
+            TransferType type = null;
+            Long userId = null;
+            Long sellerId = null;
+            long amount = AddPaymentCommand.NO_AMOUNT;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "type" -> type = TransferType.of(readString(in));
+                    case "userId" -> userId = readLong(in);
+                    case "sellerId" -> sellerId = readLong(in);
+                    case "amount" -> amount = readAmount(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new TransferCommand(type, userId, sellerId, amount);
+        }
+    }
+    
+    static class PaymentResultAdapter extends TypeAdapter<PaymentResult> {
+        @Override
+        public void write(JsonWriter out, PaymentResult value) throws IOException {
+            out.beginObject();
+            out.name("transferId").value(value.transferId());
+            out.name("userId").value(value.userId());
+            writeDecimal(out.name("amount"), value.amount());
+            writeDecimal(out.name("newBalance"), value.newBalance());
+            writeTimestamp(out.name("timestamp"), value.timestamp());
+            out.name("status").value(value.status());
+            out.endObject();
+        }
+        
+        @Override
+        public PaymentResult read(JsonReader in) throws IOException {
+            Long transferId = null;
+            Long userId = null;
+            BigDecimal amount = null;
+            BigDecimal newBalance = null;
+            LocalDateTime timestamp = null;
+            String status = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "transferId" -> transferId = readLong(in);
+                    case "userId" -> userId = readLong(in);
+                    case "amount" -> amount = readDecimal(in);
+                    case "newBalance" -> newBalance = readDecimal(in);
+                    case "timestamp" -> timestamp = readTimestamp(in);
+                    case "status" -> status = readString(in);
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+            return new PaymentResult(transferId, userId, amount, newBalance, timestamp, status);
+        }
+    }
+    
+    static class LocalDateTimeAdapter extends TypeAdapter<LocalDateTime> {
+        @Override
+        public void write(JsonWriter out, LocalDateTime value) throws IOException {
+            writeTimestamp(out, value);
+        }
+        
+        @Override
+        public LocalDateTime read(JsonReader in) throws IOException {
+            return readTimestamp(in);
+        }
+    }
+    
+    private static void writeDecimal(JsonWriter out, BigDecimal value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            // Written as a raw number so the scale (50.00) is preserved
+            out.jsonValue(value.toPlainString());
+        }
+    }
+    
+    /**
+     * Write minor units as a decimal number, without going through BigDecimal.
+     */
+    private static void writeAmount(JsonWriter out, long amountMinor) throws IOException {
+        if (amountMinor == AddPaymentCommand.NO_AMOUNT || amountMinor == AddPaymentCommand.INVALID_AMOUNT) {
+            out.nullValue();
+        } else {
+            out.jsonValue(Money.format(amountMinor));
+        }
+    }
+    
+    private static void writeTimestamp(JsonWriter out, LocalDateTime value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else {
+            out.value(TIMESTAMP_FORMAT.format(value));
+        }
+    }
+    
+    private static Long readLong(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextLong();
+    }
+    
+    private static BigDecimal readDecimal(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        // nextString returns the number literal as written, so no precision is lost
+        return new BigDecimal(in.nextString());
+    }
+    
+    /**
+     * Read a request amount into minor units, as written and without rounding.
+     */
+    private static long readAmount(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return AddPaymentCommand.NO_AMOUNT;
+        }
+        return AddPaymentCommand.parseAmount(in.nextString());
+    }
+    
+    private static LocalDateTime readTimestamp(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return LocalDateTime.parse(in.nextString(), TIMESTAMP_FORMAT);
+    }
+    
+    private static String readString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+}
@@ -2,21 +2,86 @@ package me.aco.marketplace.payment;
 
 import java.math.BigDecimal;
 
+/**
+ * A payment to a user, with the amount in minor units of {@link Money}.
+ * Missing and unrepresentable amounts are carried as sentinel values
+ * so that they are reported by {@link #validate()} like any other error.
+ */
 public record AddPaymentCommand(
-    Long userId, 
-    BigDecimal amount
+    Long userId,
+    long amountMinor
 ) {
+    /**
+     * amountMinor of a command without an amount.
+     */
+    public static final long NO_AMOUNT = Long.MIN_VALUE;
+    
+    /**
+     * amountMinor of an amount with more decimal places than the money scale, or out of range.
+     */
+    public static final long INVALID_AMOUNT = Long.MIN_VALUE + 1;
+    
+    /**
+     * Command with a decimal amount, converted exactly; null means no amount.
+     */
+    public AddPaymentCommand(Long userId, BigDecimal amount) {
+        this(userId, amountOf(amount));
+    }
+    
+    /**
+     * Parse an amount as written in a request or file.
+     * 
+     * @return the minor units, NO_AMOUNT for null, or INVALID_AMOUNT if it cannot be represented
+     * @throws NumberFormatException if the text is not a number
+     */
+    public static long parseAmount(String text) {
+        if (text == null) {
+            return NO_AMOUNT;
+        }
+        try {
+            return Money.parse(text);
+        } catch (ArithmeticException e) {
+            return INVALID_AMOUNT;
+        }
+    }
+    
+    /**
+     * The amount as a decimal, or null if it is missing or invalid.
+     */
+    public BigDecimal amount() {
+        return hasAmount() ? Money.toDecimal(amountMinor) : null;
+    }
+    
     public void validate() {
         if (userId == null) {
             throw new IllegalArgumentException("User ID cannot be null");
         }
         
-        if (amount == null) {
+        if (amountMinor == NO_AMOUNT) {
             throw new IllegalArgumentException("Amount cannot be null");
         }
         
-        if (amount.compareTo(BigDecimal.ZERO) <= 0) {
+        if (amountMinor == INVALID_AMOUNT) {
+            throw new IllegalArgumentException("Amount is out of range or has more than " + Money.SCALE + " decimal places");
+        }
+        
+        if (amountMinor <= 0) {
             throw new IllegalArgumentException("Amount must be greater than zero");
         }
     }
+    
+    private boolean hasAmount() {
+        return amountMinor != NO_AMOUNT && amountMinor != INVALID_AMOUNT;
+    }
+    
+    private static long amountOf(BigDecimal amount) {
+        if (amount == null) {
+            return NO_AMOUNT;
+        }
+        try {
+            return Money.fromDecimal(amount);
+        } catch (ArithmeticException e) {
+            return INVALID_AMOUNT;
+        }
+    }
 }
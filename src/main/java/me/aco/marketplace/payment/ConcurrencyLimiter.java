@@ -0,0 +1,151 @@
+package me.aco.marketplace.payment;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit on the payments processed at once, in the style of the
+ * gradient limit of Netflix concurrency-limits.
+ * Every finished payment is a latency sample. The limit follows the ratio
+ * of the long-term latency to the latest one: it shrinks as soon as the
+ * database gets slower, because requests are queueing somewhere, and grows
+ * by a small queue allowance while latency stays flat. Requests over the
+ * limit are rejected at once instead of waiting for a connection.
+ */
+public class ConcurrencyLimiter {
+    
+    /** Long-term latency decays towards recent samples over about this many samples */
+    private static final int LONG_WINDOW = 600;
+    /** Latency may grow by this factor before the limit shrinks */
+    private static final double TOLERANCE = 1.5;
+    /** Weight of each new limit, so one slow sample cannot halve it */
+    private static final double SMOOTHING = 0.2;
+    
+    private final int minLimit;
+    private final int maxLimit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final ReentrantLock lock = new ReentrantLock();
+    private volatile int limit;
+    private double estimatedLimit;
+    private double longLatencyNanos;
+    private long samples;
+    
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.estimatedLimit = initialLimit;
+        this.limit = initialLimit;
+    }
+    
+    /**
+     * Limiter configured by PAYMENT_LIMIT_INITIAL (default 20), PAYMENT_LIMIT_MIN
+     * (default 2) and PAYMENT_LIMIT_MAX (default 200), or null when
+     * PAYMENT_LIMIT_ENABLED is false.
+     */
+    public static ConcurrencyLimiter fromSettings() {
+        if (!Settings.getBoolean("PAYMENT_LIMIT_ENABLED", true)) {
+            return null;
+        }
+        return new ConcurrencyLimiter(
+            Settings.getInt("PAYMENT_LIMIT_INITIAL", 20),
+            Settings.getInt("PAYMENT_LIMIT_MIN", 2),
+            Settings.getInt("PAYMENT_LIMIT_MAX", 200)
+        );
+    }
+    
+    /**
+     * Admit a request if fewer than the limit are in flight.
+     * 
+     * @return a permit to release when the request finishes, or null if it must be rejected
+     */
+    public Permit tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                rejected.increment();
+                return null;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        return new Permit(System.nanoTime(), current + 1);
+    }
+    
+    public int limit() {
+        return limit;
+    }
+    
+    public int inFlight() {
+        return inFlight.get();
+    }
+    
+    public long rejected() {
+        return rejected.sum();
+    }
+    
+    /**
+     * Adjust the limit to a finished request.
+     * 
+     * @param latencyNanos How long the request took
+     * @param inFlightAtStart Requests in flight when it was admitted, including itself
+     */
+    void onSample(long latencyNanos, int inFlightAtStart) {
+        lock.lock();
+        try {
+            samples++;
+            if (samples == 1) {
+                longLatencyNanos = latencyNanos;
+            } else {
+                double weight = 1.0 / Math.min(samples, LONG_WINDOW);
+                longLatencyNanos += (latencyNanos - longLatencyNanos) * weight;
+            }
+            
+            // Latency far below the long-term average: let the average catch up quickly
+            if (longLatencyNanos > 2.0 * latencyNanos) {
+                longLatencyNanos *= 0.9;
+            }
+            
+            // Don't grow a limit that the load never reached
+            if (inFlightAtStart < estimatedLimit / 2) {
+                return;
+            }
+            
+            double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatencyNanos / Math.max(1, latencyNanos)));
+            double queueSize = Math.sqrt(estimatedLimit);
+            double newLimit = estimatedLimit * gradient + queueSize;
+            estimatedLimit = Math.max(minLimit, Math.min(maxLimit,
+                estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+            limit = (int) estimatedLimit;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * An admitted request.
+     */
+    public final class Permit {
+        
+        private final long startNanos;
+        private final int inFlightAtStart;
+        private boolean released;
+        
+        private Permit(long startNanos, int inFlightAtStart) {
+            this.startNanos = startNanos;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+        
+        /**
+         * Finish the request and record its latency. Only the first call has an effect.
+         */
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            inFlight.decrementAndGet();
+            onSample(System.nanoTime() - startNanos, inFlightAtStart);
+        }
+    }
+}
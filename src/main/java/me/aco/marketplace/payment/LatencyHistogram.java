@@ -0,0 +1,93 @@
+package me.aco.marketplace.payment;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free log-linear histogram of durations in nanoseconds.
+ * Every power of two is split into eight linear sub-buckets, which bounds
+ * the relative error of a recorded value to 12.5% over the whole long range
+ * with a fixed 4KB of counters. Recording is a single atomic increment.
+ */
+class LatencyHistogram {
+    
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+    
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    
+    void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(bucketOf(value));
+        sum.add(value);
+    }
+    
+    /**
+     * Total of all recorded values, in nanoseconds.
+     */
+    long sum() {
+        return sum.sum();
+    }
+    
+    /**
+     * Number of recorded values below the given bound.
+     * Exact when the bound is a bucket boundary, such as any power of two.
+     */
+    long countBelow(long nanos) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS && upperBoundOf(i) <= nanos; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+    
+    long count() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+    
+    /**
+     * Upper bound of the bucket holding the given percentile, in nanoseconds.
+     */
+    long valueAtPercentile(double percentile) {
+        long total = count();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return upperBoundOf(i) - 1;
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+    
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+    
+    /**
+     * Smallest value of the next bucket, saturating at Long.MAX_VALUE.
+     */
+    static long upperBoundOf(int bucket) {
+        int next = bucket + 1;
+        if (next < SUB_BUCKETS) {
+            return next;
+        }
+        int shift = next / SUB_BUCKETS - 1;
+        long base = SUB_BUCKETS + (next % SUB_BUCKETS);
+        return shift >= 64 - SUB_BUCKET_BITS - 1 ? Long.MAX_VALUE : base << shift;
+    }
+}
@@ -0,0 +1,79 @@
+package me.aco.marketplace.payment;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import me.aco.marketplace.payment.PaymentMetrics.Stage;
+import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.LedgerRepository;
+
+/**
+ * Folds the payment ledger into users.balance in the background.
+ * Each run compacts batches until the ledger is empty, one auto-committed
+ * statement per batch, so a hot user's row is updated once per batch
+ * instead of once per payment. Instances compacting at the same time skip
+ * each other's entries; a failed batch is simply retried on the next run.
+ */
+class LedgerCompactor {
+    
+    private static final Logger LOGGER = Logger.getLogger(LedgerCompactor.class.getName());
+    
+    private final int batchSize;
+    private boolean failing;
+    
+    LedgerCompactor(int batchSize) {
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * Compact every PAYMENT_LEDGER_COMPACT_INTERVAL_MS (default 1000; 0 disables
+     * compaction on this instance) in batches of PAYMENT_LEDGER_COMPACT_BATCH_SIZE
+     * entries (default 10000).
+     */
+    static void startFromSettings() {
+        long intervalMillis = Settings.getLong("PAYMENT_LEDGER_COMPACT_INTERVAL_MS", 1_000);
+        if (intervalMillis > 0) {
+            new LedgerCompactor(Settings.getInt("PAYMENT_LEDGER_COMPACT_BATCH_SIZE", 10_000)).start(intervalMillis);
+        }
+    }
+    
+    void start(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-ledger-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::compact, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Compact batches until one comes back short or the database fails.
+     */
+    void compact() {
+        try (Connection conn = DatabaseConfig.getDataSource().getConnection()) {
+            LedgerRepository ledgerRepo = new LedgerRepository(conn);
+            long folded;
+            do {
+                long started = PaymentMetrics.start();
+                folded = ledgerRepo.compact(batchSize);
+                PaymentMetrics.record(Stage.COMPACT, started);
+            } while (folded == batchSize);
+            
+            if (failing) {
+                failing = false;
+                LOGGER.info("Payment ledger compaction resumed");
+            }
+        } catch (SQLException e) {
+            if (!failing) {
+                failing = true;
+                LOGGER.warning("Payment ledger compaction paused: " + e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.severe("Payment ledger compaction failed: " + e.getMessage());
+        }
+    }
+}
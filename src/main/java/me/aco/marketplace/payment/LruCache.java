@@ -0,0 +1,87 @@
+package me.aco.marketplace.payment;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Small bounded, thread-safe LRU cache.
+ * Once the capacity is reached, the least recently used entry is evicted.
+ * Entries can optionally expire a fixed time after they were written.
+ * Guarded by a ReentrantLock rather than synchronized, so callers on
+ * virtual threads never pin their carrier.
+ */
+public class LruCache<K, V> {
+    
+    private final Map<K, Entry<V>> entries;
+    private final long ttlNanos;
+    private final ReentrantLock lock = new ReentrantLock();
+    
+    public LruCache(int capacity) {
+        this(capacity, 0);
+    }
+    
+    /**
+     * @param ttlMillis time to live of an entry, or 0 for no expiry
+     */
+    public LruCache(int capacity, long ttlMillis) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be greater than zero");
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    public V get(K key) {
+        lock.lock();
+        try {
+            Entry<V> entry = entries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (ttlNanos > 0 && System.nanoTime() - entry.writtenAt() > ttlNanos) {
+                entries.remove(key);
+                return null;
+            }
+            return entry.value();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void put(K key, V value) {
+        lock.lock();
+        try {
+            entries.put(key, new Entry<>(value, System.nanoTime()));
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void remove(K key) {
+        lock.lock();
+        try {
+            entries.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public int size() {
+        lock.lock();
+        try {
+            return entries.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private record Entry<V>(V value, long writtenAt) {
+    }
+}
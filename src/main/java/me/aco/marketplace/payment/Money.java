@@ -0,0 +1,146 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+
+/**
+ * Money amounts as a primitive long of minor units, e.g. cents at scale 2.
+ * Parsing, comparison and arithmetic never allocate, and every operation
+ * is exact: arithmetic throws ArithmeticException on overflow, and amounts
+ * with more decimal places than the scale are rejected rather than rounded.
+ * BigDecimal is only used at the edges, for results and stored rows.
+ */
+public final class Money {
+    
+    /**
+     * Decimal places of an amount, PAYMENT_MONEY_SCALE (default 2).
+     * Must match the scale of the DECIMAL money columns.
+     */
+    public static final int SCALE = scaleFromSettings();
+    
+    /**
+     * One minor unit as an SQL literal, e.g. 0.01. A bigint parameter
+     * multiplied by it is an exact numeric of the column scale.
+     */
+    public static final String SQL_UNIT = BigDecimal.ONE.movePointLeft(SCALE).toPlainString();
+    
+    private static final long ONE = pow10(SCALE);
+    
+    private Money() {
+    }
+    
+    /**
+     * Parse a decimal amount such as "50", "50.5" or "-0.01" into minor units.
+     * Trailing zeros beyond the scale are accepted; other forms, such as
+     * exponents, go through BigDecimal.
+     * 
+     * @throws NumberFormatException if the text is not a number
+     * @throws ArithmeticException if the amount has more decimal places than the scale or does not fit
+     */
+    public static long parse(CharSequence text) {
+        int length = text.length();
+        int i = 0;
+        boolean negative = false;
+        if (length > 0 && (text.charAt(0) == '-' || text.charAt(0) == '+')) {
+            negative = text.charAt(0) == '-';
+            i++;
+        }
+        
+        long units = 0;
+        int digits = 0;
+        int fractionDigits = -1;
+        for (; i < length; i++) {
+            char c = text.charAt(i);
+            if (c == '.' && fractionDigits < 0) {
+                fractionDigits = 0;
+            } else if (c >= '0' && c <= '9') {
+                if (fractionDigits >= 0 && ++fractionDigits > SCALE) {
+                    if (c != '0') {
+                        throw new ArithmeticException("More than " + SCALE + " decimal places: " + text);
+                    }
+                    continue;
+                }
+                // Accumulate negatively so that Long.MIN_VALUE still fits
+                units = Math.subtractExact(Math.multiplyExact(units, 10), c - '0');
+                digits++;
+            } else {
+                return fromDecimal(new BigDecimal(text.toString()));
+            }
+        }
+        if (digits == 0) {
+            throw new NumberFormatException("Not a number: " + text);
+        }
+        
+        int scaled = Math.max(fractionDigits, 0);
+        if (scaled < SCALE) {
+            units = Math.multiplyExact(units, pow10(SCALE - scaled));
+        }
+        return negative ? units : Math.negateExact(units);
+    }
+    
+    /**
+     * Convert a decimal amount into minor units.
+     * 
+     * @throws ArithmeticException if the amount has more decimal places than the scale or does not fit
+     */
+    public static long fromDecimal(BigDecimal amount) {
+        return amount.movePointRight(SCALE).longValueExact();
+    }
+    
+    /**
+     * The amount as a BigDecimal with the money scale.
+     */
+    public static BigDecimal toDecimal(long units) {
+        return BigDecimal.valueOf(units, SCALE);
+    }
+    
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+    
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+    
+    /**
+     * Format minor units as a plain decimal with exactly SCALE decimal places.
+     */
+    public static String format(long units) {
+        return appendTo(new StringBuilder(24), units).toString();
+    }
+    
+    /**
+     * Append minor units as a plain decimal with exactly SCALE decimal places.
+     */
+    public static StringBuilder appendTo(StringBuilder out, long units) {
+        if (units < 0) {
+            out.append('-');
+        }
+        // Both parts are taken from the negative value, so Long.MIN_VALUE formats correctly
+        long negative = units < 0 ? units : -units;
+        out.append(-(negative / ONE));
+        if (SCALE > 0) {
+            out.append('.');
+            long fraction = -(negative % ONE);
+            for (long unit = ONE / 10; unit > 0; unit /= 10) {
+                out.append((char) ('0' + fraction / unit % 10));
+            }
+        }
+        return out;
+    }
+    
+    private static long pow10(int exponent) {
+        long value = 1;
+        for (int i = 0; i < exponent; i++) {
+            value *= 10;
+        }
+        return value;
+    }
+    
+    private static int scaleFromSettings() {
+        int scale = Settings.getInt("PAYMENT_MONEY_SCALE", 2);
+        if (scale < 0 || scale > 9) {
+            throw new IllegalStateException("PAYMENT_MONEY_SCALE must be between 0 and 9: " + scale);
+        }
+        return scale;
+    }
+}
@@ -0,0 +1,33 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.LedgerRepository;
+import me.aco.marketplace.payment.database.UserRepository;
+
+/**
+ * Read path for user balances.
+ * In ledger mode the balance is the last snapshot in users.balance plus
+ * the ledger entries not yet folded into it, read in one statement.
+ * Balances are read from the read replica when one is configured and
+ * fresh, so they may trail the primary by up to DB_REPLICA_MAX_LAG_MS.
+ */
+public class PaymentBalance {
+    
+    /**
+     * Find the current balance of a user.
+     * 
+     * @return the balance, or null when the user does not exist
+     */
+    public BigDecimal find(Long userId) throws SQLException {
+        try (Connection conn = DatabaseConfig.getReadDataSource().getConnection()) {
+            UserRepository.UserStatus status = LedgerRepository.ENABLED
+                ? new LedgerRepository(conn).findStatus(userId)
+                : new UserRepository(conn).findStatus(userId);
+            return status != null ? status.balance() : null;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package me.aco.marketplace.payment;
+
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Runs payment work on the caller's thread or on virtual threads.
+ * In virtual mode the blocking JDBC work runs on a virtual thread, behind
+ * a fair semaphore sized to the connection pool: excess requests park
+ * cheaply waiting for a permit instead of queueing inside Hikari, and give
+ * up when none frees up within the connection timeout.
+ */
+public class PaymentExecutor {
+    
+    public enum Mode {
+        PLATFORM,
+        VIRTUAL
+    }
+    
+    private final Mode mode;
+    private final ExecutorService virtualThreads;
+    private final Semaphore connectionPermits;
+    private final long permitTimeoutMillis;
+    
+    public PaymentExecutor(Mode mode, int maxConcurrency, long permitTimeoutMillis) {
+        this.mode = mode;
+        this.virtualThreads = mode == Mode.VIRTUAL
+            ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("payment-", 0).factory())
+            : null;
+        this.connectionPermits = new Semaphore(maxConcurrency, true);
+        this.permitTimeoutMillis = permitTimeoutMillis;
+    }
+    
+    /**
+     * Executor configured by PAYMENT_EXECUTION (platform or virtual), bounded
+     * by the largest size the pool can reach and waiting at most as long as
+     * a connection acquire would.
+     */
+    public static PaymentExecutor fromSettings() {
+        Mode mode = Mode.valueOf(Settings.get("PAYMENT_EXECUTION", "platform").trim().toUpperCase(Locale.ROOT));
+        int maxPoolSize = Settings.getInt("DB_POOL_MAX_SIZE", 5);
+        int maxConcurrency = Settings.getBoolean("DB_POOL_ADAPTIVE", false)
+            ? Settings.getInt("DB_POOL_ADAPTIVE_MAX_SIZE", maxPoolSize * 4)
+            : maxPoolSize;
+        return new PaymentExecutor(mode, maxConcurrency, Settings.getLong("DB_CONNECTION_TIMEOUT_MS", 10000));
+    }
+    
+    public Mode mode() {
+        return mode;
+    }
+    
+    /**
+     * Run the work and wait for its result.
+     * 
+     * @param unavailable Result to return instead if no permit is free within the connection timeout
+     */
+    public <T> T run(Supplier<T> work, Supplier<T> unavailable) {
+        if (mode == Mode.PLATFORM) {
+            return work.get();
+        }
+        
+        Future<T> result = virtualThreads.submit(() -> {
+            if (!connectionPermits.tryAcquire(permitTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                return unavailable.get();
+            }
+            try {
+                return work.get();
+            } finally {
+                connectionPermits.release();
+            }
+        });
+        
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for payment", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+}
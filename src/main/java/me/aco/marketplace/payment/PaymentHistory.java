@@ -0,0 +1,43 @@
+package me.aco.marketplace.payment;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.TransferHistoryQuery;
+import me.aco.marketplace.payment.database.TransferRepository;
+
+/**
+ * Read path for payment transfer history.
+ * Rows are handed to the caller as they arrive from the database cursor,
+ * so memory use depends on the fetch size, not on the size of the page.
+ * Pages are read from the read replica when one is configured and fresh.
+ */
+public class PaymentHistory {
+    
+    private static final int FETCH_SIZE = Settings.getInt("PAYMENT_HISTORY_FETCH_SIZE", 500);
+    
+    /**
+     * Stream one page of history.
+     * 
+     * @param query The page to read
+     * @param handler Receives every row of the page, in keyset order
+     * @return the position of the last row, or null if the page was empty
+     */
+    public TransferHistoryQuery.Position stream(TransferHistoryQuery query, TransferRepository.TransferRowHandler handler)
+            throws SQLException, IOException {
+        try (Connection conn = DatabaseConfig.getReadDataSource().getConnection()) {
+            conn.setAutoCommit(false); // Required for a server-side cursor
+            try {
+                TransferHistoryQuery.Position last =
+                    new TransferRepository(conn).streamPaymentTransfers(query, FETCH_SIZE, handler);
+                conn.commit();
+                return last;
+            } catch (SQLException | IOException | RuntimeException e) {
+                conn.rollback();
+                throw e;
+            }
+        }
+    }
+}
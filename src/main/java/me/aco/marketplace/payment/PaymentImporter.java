@@ -0,0 +1,235 @@
+package me.aco.marketplace.payment;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.ImportRepository;
+
+/**
+ * Bulk import of payment files in NDJSON or CSV.
+ * 
+ * The file is read line by line, every line is validated with
+ * {@link AddPaymentCommand#validate()}, and valid rows are streamed with COPY
+ * into a temporary staging table. The staged rows are then applied with a
+ * handful of set-based statements: users are locked once in id order, and one
+ * statement inserts every transfer and credits each user with the sum of its
+ * rows. The whole file is one transaction, recorded under its name in
+ * payment_imports, so a file that is delivered twice is only applied once.
+ * 
+ * Lines that fail, while parsing or because the user is unknown or inactive,
+ * are written to the error report as CSV: {@code line,error}.
+ */
+public class PaymentImporter {
+    
+    private static final Logger LOGGER = Logger.getLogger(PaymentImporter.class.getName());
+    
+    public enum Format {
+        NDJSON, CSV;
+        
+        /**
+         * CSV for *.csv files, NDJSON for everything else.
+         */
+        public static Format of(String fileName) {
+            return fileName.toLowerCase(Locale.ROOT).endsWith(".csv") ? CSV : NDJSON;
+        }
+    }
+    
+    /**
+     * Import a payment file.
+     * 
+     * @param name Unique name of the file, used to apply it at most once
+     * @param input The file content
+     * @param format Line format of the file
+     * @param errorReport Receives one CSV line per rejected row
+     * @return Counts of the import
+     * @throws SQLException if the import fails; nothing is applied in that case
+     */
+    public ImportReport importPayments(String name, Reader input, Format format, Writer errorReport)
+            throws SQLException, IOException {
+        long started = System.nanoTime();
+        errorReport.write("line,error\n");
+        
+        Connection conn = DatabaseConfig.getDataSource().getConnection();
+        try {
+            conn.setAutoCommit(false); // Start transaction
+            
+            ImportRepository importRepo = new ImportRepository(conn);
+            
+            // 1. Claim the file name, or stop if it was already imported
+            if (!importRepo.claim(name)) {
+                conn.rollback();
+                return new ImportReport(name, 0, 0, 0, BigDecimal.ZERO, true);
+            }
+            
+            // 2. Validate each line and stream the valid ones into the staging table
+            importRepo.createStaging();
+            long lines = 0;
+            long rejected = 0;
+            try (ImportRepository.StagingCopy copy = importRepo.openStagingCopy()) {
+                BufferedReader reader = new BufferedReader(input, 64 * 1024);
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines++;
+                    if (line.isBlank() || (lines == 1 && format == Format.CSV && isCsvHeader(line))) {
+                        continue;
+                    }
+                    try {
+                        AddPaymentCommand command = format == Format.CSV ? parseCsv(line) : parseJson(line);
+                        command.validate();
+                        copy.add(lines, command.userId(), command.amountMinor());
+                    } catch (IllegalArgumentException e) {
+                        reject(errorReport, lines, e.getMessage());
+                        rejected++;
+                    }
+                }
+                copy.finish();
+            }
+            
+            // 3. Lock the users, then reject rows of unknown or inactive users
+            importRepo.lockStagedUsers();
+            long[] unknownUsers = {0};
+            importRepo.findRejections((lineNumber, userId, missing) -> {
+                try {
+                    reject(errorReport, lineNumber, missing ? "User not found: " + userId : "User account is not active");
+                } catch (IOException e) {
+                    throw new SQLException("Failed to write error report", e);
+                }
+                unknownUsers[0]++;
+            });
+            rejected += unknownUsers[0];
+            
+            // 4. Create all transfers and credit every user once
+            ImportRepository.AppliedImport applied = importRepo.apply();
+            importRepo.complete(name, applied.importedRows(), rejected, applied.totalAmount());
+            
+            conn.commit();
+            
+            ImportReport report = new ImportReport(name, lines, applied.importedRows(), rejected,
+                applied.totalAmount(), false);
+            LOGGER.info("Imported " + name + ": " + report.importedRows() + " payments, "
+                + report.rejectedRows() + " rejected, in " + (System.nanoTime() - started) / 1_000_000 + " ms");
+            return report;
+            
+        } catch (SQLException | IOException | RuntimeException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackError) {
+                e.addSuppressed(rollbackError);
+            }
+            throw e;
+        } finally {
+            conn.close();
+        }
+    }
+    
+    /**
+     * Import a local file, writing rejected rows next to it.
+     * Usage: PaymentImporter &lt;file&gt; [error report]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PaymentImporter <file> [error report]");
+            System.exit(2);
+        }
+        Path file = Path.of(args[0]);
+        Path reportFile = Path.of(args.length > 1 ? args[1] : args[0] + ".errors.csv");
+        String name = file.getFileName().toString();
+        
+        try (Reader input = Files.newBufferedReader(file, StandardCharsets.UTF_8);
+             Writer errorReport = Files.newBufferedWriter(reportFile, StandardCharsets.UTF_8)) {
+            ImportReport report = new PaymentImporter().importPayments(name, input, Format.of(name), errorReport);
+            System.out.println(report);
+        } finally {
+            DatabaseConfig.close();
+        }
+    }
+    
+    private static boolean isCsvHeader(String line) {
+        return line.toLowerCase(Locale.ROOT).contains("userid");
+    }
+    
+    static AddPaymentCommand parseCsv(String line) {
+        String[] fields = line.split(",", -1);
+        if (fields.length != 2) {
+            throw new IllegalArgumentException("Expected 2 columns but found " + fields.length);
+        }
+        try {
+            String userId = unquote(fields[0]);
+            String amount = unquote(fields[1]);
+            return new AddPaymentCommand(
+                userId.isEmpty() ? null : Long.valueOf(userId),
+                AddPaymentCommand.parseAmount(amount.isEmpty() ? null : amount)
+            );
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid number: " + line);
+        }
+    }
+    
+    static AddPaymentCommand parseJson(String line) {
+        Long userId = null;
+        long amount = AddPaymentCommand.NO_AMOUNT;
+        try (JsonReader in = new JsonReader(new StringReader(line))) {
+            in.beginObject();
+            while (in.hasNext()) {
+                String field = in.nextName();
+                if (in.peek() == JsonToken.NULL) {
+                    in.nextNull();
+                    continue;
+                }
+                switch (field) {
+                    case "userId" -> userId = in.nextLong();
+                    // nextString returns the number literal as written, so no precision is lost
+                    case "amount" -> amount = AddPaymentCommand.parseAmount(in.nextString());
+                    default -> in.skipValue();
+                }
+            }
+            in.endObject();
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid JSON: " + e.getMessage());
+        }
+        return new AddPaymentCommand(userId, amount);
+    }
+    
+    private static String unquote(String field) {
+        String value = field.trim();
+        if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+            value = value.substring(1, value.length() - 1).trim();
+        }
+        return value;
+    }
+    
+    private static void reject(Writer errorReport, long lineNumber, String error) throws IOException {
+        errorReport.write(lineNumber + ",\"" + error.replace("\"", "\"\"") + "\"\n");
+    }
+    
+    /**
+     * Counts of an import.
+     * 
+     * @param lines Lines read from the file, including blank lines and the header
+     * @param alreadyImported True if the file had been imported before and nothing was done
+     */
+    public record ImportReport(
+        String name,
+        long lines,
+        long importedRows,
+        long rejectedRows,
+        BigDecimal totalAmount,
+        boolean alreadyImported
+    ) {
+    }
+}
@@ -0,0 +1,289 @@
+package me.aco.marketplace.payment;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only, memory-mapped journal of payments accepted while the
+ * database was unreachable.
+ * 
+ * The file starts with a header holding the file id, the current generation
+ * and the checkpoint, the offset of the first entry not yet replayed.
+ * Each entry is its payload length, a CRC32C of the payload, and the payload:
+ * generation, sequence, user id, amount and optional idempotency key.
+ * An entry is forced to disk before it is acknowledged to the caller.
+ * 
+ * On open, entries are scanned from the checkpoint and the scan stops at the
+ * first torn, corrupt or stale entry. Once every entry has been replayed the
+ * journal starts over at the header with the next generation, so entries
+ * left over from earlier generations are never read again.
+ */
+class PaymentJournal implements AutoCloseable {
+    
+    private static final Logger LOGGER = Logger.getLogger(PaymentJournal.class.getName());
+    
+    private static final int MAGIC = 0x504A4E4C; // "PJNL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int GENERATION_OFFSET = 16;
+    private static final int CHECKPOINT_OFFSET = 24;
+    private static final int ENTRY_OVERHEAD = 8; // length and checksum
+    
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final String fileId;
+    private long generation;
+    private int checkpoint;
+    private int position;
+    private long nextSequence;
+    private int pending;
+    
+    private PaymentJournal(FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        
+        if (buffer.getInt(0) != MAGIC) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            buffer.putLong(8, ThreadLocalRandom.current().nextLong());
+            buffer.putLong(GENERATION_OFFSET, 0);
+            buffer.putLong(CHECKPOINT_OFFSET, HEADER_SIZE);
+            buffer.force(0, HEADER_SIZE);
+        } else if (buffer.getInt(4) != VERSION) {
+            throw new IllegalStateException("Unsupported payment journal version: " + buffer.getInt(4));
+        }
+        
+        this.fileId = HexFormat.of().toHexDigits(buffer.getLong(8));
+        this.generation = buffer.getLong(GENERATION_OFFSET);
+        this.checkpoint = (int) buffer.getLong(CHECKPOINT_OFFSET);
+        this.position = checkpoint;
+        
+        // Recover the entries that were written but not replayed
+        Entry entry;
+        while ((entry = readAt(position)) != null) {
+            position = entry.end();
+            nextSequence = entry.sequence() + 1;
+            pending++;
+        }
+    }
+    
+    /**
+     * Open or create a journal file of a fixed size.
+     */
+    static PaymentJournal open(Path path, int capacityBytes) throws IOException {
+        if (capacityBytes <= HEADER_SIZE) {
+            throw new IllegalArgumentException("Journal capacity must exceed " + HEADER_SIZE + " bytes");
+        }
+        if (path.getParent() != null) {
+            Files.createDirectories(path.getParent());
+        }
+        FileChannel channel = FileChannel.open(path,
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            int capacity = (int) Math.max(capacityBytes, channel.size());
+            return new PaymentJournal(channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+    
+    /**
+     * Open the journal configured by PAYMENT_JOURNAL_PATH and PAYMENT_JOURNAL_SIZE_MB.
+     * 
+     * @return the journal, or null if journaling is disabled or the file cannot be opened
+     */
+    static PaymentJournal fromSettings() {
+        String path = Settings.get("PAYMENT_JOURNAL_PATH", null);
+        if (path == null || path.isBlank()) {
+            return null;
+        }
+        try {
+            PaymentJournal journal = open(Path.of(path), Settings.getInt("PAYMENT_JOURNAL_SIZE_MB", 64) * 1024 * 1024);
+            LOGGER.info("Opened payment journal " + path + " with " + journal.pending() + " entries to replay");
+            return journal;
+        } catch (IOException | RuntimeException e) {
+            LOGGER.severe("Payment journal disabled, cannot open " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+    
+    /**
+     * Durably append a payment.
+     * 
+     * @param command The validated payment command
+     * @param idempotencyKey Client supplied key, or null to derive one from the entry
+     * @return false if the journal is full
+     */
+    boolean append(AddPaymentCommand command, String idempotencyKey) {
+        byte[] unscaled = command.amount().unscaledValue().toByteArray();
+        byte[] key = idempotencyKey == null ? new byte[0] : idempotencyKey.getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 8 + 8 + 4 + 2 + unscaled.length + 2 + key.length;
+        
+        lock.lock();
+        try {
+            int start = position;
+            if ((long) start + ENTRY_OVERHEAD + length > buffer.capacity()) {
+                return false;
+            }
+            
+            ByteBuffer payload = buffer.slice(start + ENTRY_OVERHEAD, length);
+            payload.putLong(generation);
+            payload.putLong(nextSequence);
+            payload.putLong(command.userId());
+            payload.putInt(command.amount().scale());
+            payload.putShort((short) unscaled.length);
+            payload.put(unscaled);
+            payload.putShort((short) key.length);
+            payload.put(key);
+            
+            buffer.putInt(start, length);
+            buffer.putInt(start + 4, checksum(start + ENTRY_OVERHEAD, length));
+            buffer.force(start, ENTRY_OVERHEAD + length);
+            
+            position = start + ENTRY_OVERHEAD + length;
+            nextSequence++;
+            pending++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Read up to maxEntries entries starting at the checkpoint.
+     */
+    List<Entry> peek(int maxEntries) {
+        lock.lock();
+        try {
+            List<Entry> entries = new ArrayList<>(Math.min(maxEntries, pending));
+            int offset = checkpoint;
+            while (entries.size() < maxEntries && offset < position) {
+                Entry entry = readAt(offset);
+                if (entry == null) {
+                    break;
+                }
+                entries.add(entry);
+                offset = entry.end();
+            }
+            return entries;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Mark every entry up to and including this one as replayed.
+     * When nothing is left, the journal starts over with a new generation.
+     */
+    void acknowledge(Entry last) {
+        lock.lock();
+        try {
+            if (last.generation() != generation || last.end() <= checkpoint) {
+                return;
+            }
+            int offset = checkpoint;
+            while (offset < last.end()) {
+                offset += ENTRY_OVERHEAD + buffer.getInt(offset);
+                pending--;
+            }
+            checkpoint = last.end();
+            
+            if (checkpoint == position) {
+                generation++;
+                checkpoint = HEADER_SIZE;
+                position = HEADER_SIZE;
+                nextSequence = 0;
+                buffer.putLong(GENERATION_OFFSET, generation);
+            }
+            buffer.putLong(CHECKPOINT_OFFSET, checkpoint);
+            buffer.force(0, HEADER_SIZE);
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    /**
+     * Number of entries appended but not yet replayed.
+     */
+    int pending() {
+        lock.lock();
+        try {
+            return pending;
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+    
+    /**
+     * Parse the entry at an offset, or return null if there is no valid
+     * entry of the current generation there.
+     */
+    private Entry readAt(int offset) {
+        if ((long) offset + ENTRY_OVERHEAD > buffer.capacity()) {
+            return null;
+        }
+        int length = buffer.getInt(offset);
+        if (length <= 0 || (long) offset + ENTRY_OVERHEAD + length > buffer.capacity()) {
+            return null;
+        }
+        if (buffer.getInt(offset + 4) != checksum(offset + ENTRY_OVERHEAD, length)) {
+            return null;
+        }
+        
+        ByteBuffer payload = buffer.slice(offset + ENTRY_OVERHEAD, length);
+        long entryGeneration = payload.getLong();
+        if (entryGeneration != generation) {
+            return null;
+        }
+        long sequence = payload.getLong();
+        long userId = payload.getLong();
+        int scale = payload.getInt();
+        byte[] unscaled = new byte[payload.getShort()];
+        payload.get(unscaled);
+        byte[] key = new byte[payload.getShort()];
+        payload.get(key);
+        
+        String idempotencyKey = key.length > 0
+            ? new String(key, StandardCharsets.UTF_8)
+            : "journal:" + fileId + ":" + entryGeneration + ":" + sequence;
+        AddPaymentCommand command = new AddPaymentCommand(userId, new BigDecimal(new BigInteger(unscaled), scale));
+        return new Entry(command, idempotencyKey, entryGeneration, sequence, offset + ENTRY_OVERHEAD + length);
+    }
+    
+    private int checksum(int offset, int length) {
+        CRC32C crc = new CRC32C();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+    
+    /**
+     * A journaled payment and the key under which it is replayed.
+     * Entries written without a client key get one derived from the
+     * file, generation and sequence, so a replay that is repeated after
+     * a crash is recognised as a duplicate.
+     */
+    record Entry(AddPaymentCommand command, String idempotencyKey, long generation, long sequence, int end) {
+    }
+}
@@ -0,0 +1,74 @@
+package me.aco.marketplace.payment;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Drains the payment journal into the database once it is reachable again.
+ * Entries are replayed in batches of one transaction each, in journal order,
+ * and acknowledged only after the transaction commits. A batch that fails
+ * is retried on the next run; entries already applied by an earlier attempt
+ * are recognised by their idempotency key and skipped.
+ */
+class PaymentJournalReplayer {
+    
+    private static final Logger LOGGER = Logger.getLogger(PaymentJournalReplayer.class.getName());
+    
+    private final PaymentJournal journal;
+    private final PaymentProcessor paymentProcessor;
+    private final int batchSize;
+    private boolean failing;
+    
+    PaymentJournalReplayer(PaymentJournal journal, PaymentProcessor paymentProcessor, int batchSize) {
+        this.journal = journal;
+        this.paymentProcessor = paymentProcessor;
+        this.batchSize = batchSize;
+    }
+    
+    void start(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "payment-journal-replayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::drain, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Replay batches until the journal is empty or the database fails.
+     */
+    void drain() {
+        try {
+            List<PaymentJournal.Entry> entries;
+            while (!(entries = journal.peek(batchSize)).isEmpty()) {
+                List<PaymentResult> results = paymentProcessor.replayJournal(entries);
+                
+                for (int i = 0; i < results.size(); i++) {
+                    PaymentResult result = results.get(i);
+                    if (result != null && !result.status().equals("SUCCESS")) {
+                        LOGGER.warning("Journaled payment " + entries.get(i).idempotencyKey()
+                            + " rejected on replay: " + result.status());
+                    }
+                }
+                
+                journal.acknowledge(entries.get(entries.size() - 1));
+                if (failing) {
+                    failing = false;
+                    LOGGER.info("Payment journal replay resumed");
+                }
+            }
+        } catch (SQLException e) {
+            if (!failing) {
+                failing = true;
+                LOGGER.warning("Payment journal replay paused, " + journal.pending()
+                    + " entries pending: " + e.getMessage());
+            }
+        } catch (RuntimeException e) {
+            LOGGER.severe("Payment journal replay failed: " + e.getMessage());
+        }
+    }
+}
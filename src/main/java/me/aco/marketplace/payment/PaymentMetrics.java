@@ -0,0 +1,176 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-process payment metrics: a latency histogram per processing stage,
+ * payment outcomes by category and rollbacks. Recording is lock-free and
+ * allocation-free, so it stays on the hot path permanently. Stage timings
+ * are also emitted as spans when tracing is enabled.
+ */
+public final class PaymentMetrics {
+    
+    /**
+     * Timed steps of payment processing.
+     */
+    public enum Stage {
+        /** Borrowing a connection from the pool */
+        ACQUIRE,
+        /** The single-statement credit of a payment */
+        CREDIT,
+        /** Reading a user's status after a credit matched no row */
+        LOOKUP,
+        /** Loading and locking the users of a batch */
+        LOCK_USERS,
+        /** Inserting transfers */
+        SAVE_TRANSFERS,
+        /** Updating user balances */
+        UPDATE_BALANCES,
+        /** Folding the payment ledger into balance snapshots */
+        COMPACT,
+        /** Recording or reading an idempotency key */
+        IDEMPOTENCY,
+        /** Committing a transaction */
+        COMMIT,
+        /** A whole single payment */
+        PAYMENT,
+        /** A whole batch of payments */
+        BATCH,
+        /** A whole batch of transfers of any type */
+        TRANSFERS,
+        /** Parsing a request body */
+        PARSE,
+        /** Writing a response body */
+        SERIALIZE;
+        
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+    
+    /**
+     * What became of a payment.
+     */
+    public enum Outcome {
+        SUCCESS, ACCEPTED, VALIDATION, NOT_FOUND, INACTIVE, INSUFFICIENT_BALANCE, SQL, UNAVAILABLE, UNEXPECTED;
+        
+        final String label = name().toLowerCase(Locale.ROOT);
+    }
+    
+    /** Histogram bounds exported to Prometheus: powers of two from 16us to 17s */
+    private static final int FIRST_BOUND_SHIFT = 14;
+    private static final int LAST_BOUND_SHIFT = 34;
+    
+    private static final LatencyHistogram[] STAGES = new LatencyHistogram[Stage.values().length];
+    private static final LongAdder[] OUTCOMES = new LongAdder[Outcome.values().length];
+    private static final LongAdder ROLLBACKS = new LongAdder();
+    
+    static {
+        for (int i = 0; i < STAGES.length; i++) {
+            STAGES[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < OUTCOMES.length; i++) {
+            OUTCOMES[i] = new LongAdder();
+        }
+    }
+    
+    private PaymentMetrics() {
+    }
+    
+    /**
+     * Start timing a stage.
+     */
+    public static long start() {
+        return System.nanoTime();
+    }
+    
+    /**
+     * Record a stage that started at the given {@link #start()} time.
+     */
+    public static void record(Stage stage, long startNanos) {
+        long elapsed = System.nanoTime() - startNanos;
+        STAGES[stage.ordinal()].record(elapsed);
+        PaymentTracing.stage(stage, elapsed);
+    }
+    
+    /**
+     * Record an elapsed time without emitting a span.
+     */
+    static void observe(Stage stage, long elapsedNanos) {
+        STAGES[stage.ordinal()].record(elapsedNanos);
+    }
+    
+    /**
+     * Count the outcome of a finished payment.
+     */
+    public static void outcome(PaymentResult result) {
+        OUTCOMES[outcomeOf(result).ordinal()].increment();
+    }
+    
+    static void rollback() {
+        ROLLBACKS.increment();
+    }
+    
+    static Outcome outcomeOf(PaymentResult result) {
+        String status = result.status();
+        if (status.equals("SUCCESS")) {
+            return Outcome.SUCCESS;
+        } else if (status.equals("ACCEPTED")) {
+            return Outcome.ACCEPTED;
+        } else if (status.startsWith("FAILED: User not found") || status.startsWith("FAILED: Seller not found")) {
+            return Outcome.NOT_FOUND;
+        } else if (status.startsWith("FAILED: User account is not active")
+                || status.startsWith("FAILED: Seller account is not active")) {
+            return Outcome.INACTIVE;
+        } else if (status.startsWith("FAILED: Insufficient balance")) {
+            return Outcome.INSUFFICIENT_BALANCE;
+        } else if (status.startsWith("FAILED: Database error")) {
+            return Outcome.SQL;
+        } else if (result.unavailable()) {
+            return Outcome.UNAVAILABLE;
+        } else if (status.startsWith("FAILED: Unexpected error")) {
+            return Outcome.UNEXPECTED;
+        }
+        return Outcome.VALIDATION;
+    }
+    
+    /**
+     * Append all payment metrics in the Prometheus text exposition format.
+     */
+    public static void writePrometheus(StringBuilder out) {
+        out.append("# HELP payment_stage_duration_seconds Time spent in each payment processing stage.\n");
+        out.append("# TYPE payment_stage_duration_seconds histogram\n");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = STAGES[stage.ordinal()];
+            // Read the total first so that no bucket can exceed it
+            long count = histogram.count();
+            for (int shift = FIRST_BOUND_SHIFT; shift <= LAST_BOUND_SHIFT; shift++) {
+                long bound = 1L << shift;
+                out.append("payment_stage_duration_seconds_bucket{stage=\"").append(stage.label)
+                    .append("\",le=\"").append(seconds(bound)).append("\"} ")
+                    .append(Math.min(count, histogram.countBelow(bound))).append('\n');
+            }
+            out.append("payment_stage_duration_seconds_bucket{stage=\"").append(stage.label)
+                .append("\",le=\"+Inf\"} ").append(count).append('\n');
+            out.append("payment_stage_duration_seconds_sum{stage=\"").append(stage.label)
+                .append("\"} ").append(seconds(histogram.sum())).append('\n');
+            out.append("payment_stage_duration_seconds_count{stage=\"").append(stage.label)
+                .append("\"} ").append(count).append('\n');
+        }
+        
+        out.append("# HELP payment_outcomes_total Payments by outcome.\n");
+        out.append("# TYPE payment_outcomes_total counter\n");
+        for (Outcome outcome : Outcome.values()) {
+            out.append("payment_outcomes_total{outcome=\"").append(outcome.label).append("\"} ")
+                .append(OUTCOMES[outcome.ordinal()].sum()).append('\n');
+        }
+        
+        out.append("# HELP payment_rollbacks_total Transactions rolled back.\n");
+        out.append("# TYPE payment_rollbacks_total counter\n");
+        out.append("payment_rollbacks_total ").append(ROLLBACKS.sum()).append('\n');
+    }
+    
+    static String seconds(long nanos) {
+        return BigDecimal.valueOf(nanos).movePointLeft(9).stripTrailingZeros().toPlainString();
+    }
+}
@@ -0,0 +1,141 @@
+package me.aco.marketplace.payment;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Coalesces payments submitted by concurrent invocations into micro-batches.
+ * Each flusher thread waits briefly for more submissions after the first
+ * one arrives and applies the whole batch with
+ * {@link PaymentProcessor#applyPaymentGroups(List, List)}, so a burst of
+ * queue messages uses one pooled connection per flusher instead of one per
+ * message. Submissions wait in a bounded queue; when it is full they are
+ * rejected, and the queue message is retried later.
+ */
+public class PaymentMicroBatcher {
+    
+    private static final Logger LOGGER = Logger.getLogger(PaymentMicroBatcher.class.getName());
+    
+    private final PaymentProcessor paymentProcessor;
+    private final int maxBatchSize;
+    private final long lingerNanos;
+    private final BlockingQueue<Submission> submissions;
+    
+    /**
+     * @param flushers Number of batches applied concurrently, at most one pooled connection each
+     * @param capacity Number of submissions that can wait for a flusher
+     */
+    public PaymentMicroBatcher(PaymentProcessor paymentProcessor, int maxBatchSize, long lingerMillis,
+            int flushers, int capacity) {
+        this.paymentProcessor = paymentProcessor;
+        this.maxBatchSize = maxBatchSize;
+        this.lingerNanos = TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+        this.submissions = new ArrayBlockingQueue<>(capacity);
+        
+        for (int i = 0; i < flushers; i++) {
+            Thread flusher = new Thread(this::run, "payment-micro-batcher-" + i);
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+    
+    /**
+     * Submit payments for the next micro-batch.
+     * The future completes exceptionally when the payments cannot be applied,
+     * in which case none of them were, or when the queue is full.
+     * 
+     * @param idempotencyKeys Key of each command, or null to skip deduplication
+     */
+    public CompletableFuture<List<PaymentResult>> submit(List<AddPaymentCommand> commands, List<String> idempotencyKeys) {
+        Submission submission = new Submission(commands, idempotencyKeys, new CompletableFuture<>());
+        if (!submissions.offer(submission)) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Payment micro-batcher is full"));
+        }
+        return submission.result();
+    }
+    
+    private void run() {
+        try {
+            while (true) {
+                List<Submission> batch = new ArrayList<>();
+                Submission first = submissions.take();
+                batch.add(first);
+                int size = first.commands().size();
+                
+                long deadline = System.nanoTime() + lingerNanos;
+                while (size < maxBatchSize) {
+                    Submission next = submissions.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                    size += next.commands().size();
+                }
+                
+                flush(batch, size);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+    
+    /**
+     * Apply a batch in one transaction. If that fails, apply each submission
+     * on its own, so a payment that cannot be applied, or an error it causes,
+     * only fails the invocation that submitted it.
+     */
+    void flush(List<Submission> batch, int size) {
+        if (batch.size() == 1) {
+            apply(batch.get(0));
+            return;
+        }
+        
+        List<AddPaymentCommand> commands = new ArrayList<>(size);
+        List<String> idempotencyKeys = new ArrayList<>(size);
+        for (Submission submission : batch) {
+            commands.addAll(submission.commands());
+            for (int i = 0; i < submission.commands().size(); i++) {
+                idempotencyKeys.add(submission.idempotencyKeys() == null ? null : submission.idempotencyKeys().get(i));
+            }
+        }
+        
+        try {
+            List<PaymentResult> results = paymentProcessor.applyPaymentGroups(commands, idempotencyKeys);
+            
+            int offset = 0;
+            for (Submission submission : batch) {
+                int count = submission.commands().size();
+                submission.result().complete(new ArrayList<>(results.subList(offset, offset + count)));
+                offset += count;
+            }
+        } catch (Exception e) {
+            LOGGER.warning("Micro-batch of " + batch.size() + " submissions failed, applying them one by one: "
+                + e.getMessage());
+            for (Submission submission : batch) {
+                apply(submission);
+            }
+        }
+    }
+    
+    private void apply(Submission submission) {
+        try {
+            submission.result().complete(
+                paymentProcessor.applyPaymentGroups(submission.commands(), submission.idempotencyKeys()));
+        } catch (Exception e) {
+            submission.result().completeExceptionally(e);
+        }
+    }
+    
+    record Submission(
+        List<AddPaymentCommand> commands,
+        List<String> idempotencyKeys,
+        CompletableFuture<List<PaymentResult>> result
+    ) {
+    }
+}
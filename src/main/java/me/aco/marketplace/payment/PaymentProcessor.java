@@ -1,9 +1,30 @@
 package me.aco.marketplace.payment;
 
+import java.math.BigDecimal;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
 
+import javax.sql.DataSource;
+
+import me.aco.marketplace.payment.PaymentMetrics.Stage;
+import me.aco.marketplace.payment.database.CircuitBreakerOpenException;
 import me.aco.marketplace.payment.database.DatabaseConfig;
+import me.aco.marketplace.payment.database.IdempotencyRepository;
+import me.aco.marketplace.payment.database.LedgerRepository;
+import me.aco.marketplace.payment.database.PaymentStore;
 import me.aco.marketplace.payment.database.TransferRepository;
 import me.aco.marketplace.payment.database.UserRepository;
 
@@ -13,57 +34,155 @@ import me.aco.marketplace.payment.database.UserRepository;
  */
 public class PaymentProcessor {
     
+    private static final Logger LOGGER = Logger.getLogger(PaymentProcessor.class.getName());
+    
+    /**
+     * Recent idempotency keys and their results, shared by all instances
+     * so that retries hitting this worker never borrow a connection.
+     */
+    private static final LruCache<String, PaymentResult> IDEMPOTENCY_CACHE = new LruCache<>(10_000);
+    
+    /**
+     * Recently seen user statuses, so that payments to unknown or inactive
+     * users are rejected without a database round-trip.
+     */
+    static final UserStatusCache USER_STATUS_CACHE = UserStatusCache.fromSettings();
+    
+    /**
+     * Local journal for payments accepted while the pool cannot reach the
+     * database, or null when PAYMENT_JOURNAL_PATH is not set.
+     */
+    private static final PaymentJournal JOURNAL = openJournal();
+    
+    static {
+        if (LedgerRepository.ENABLED) {
+            LedgerCompactor.startFromSettings();
+        }
+    }
+    
+    /**
+     * Store for {@link #processPaymentAsync}, or null to use the one configured by PAYMENT_STORE.
+     */
+    private final PaymentStore store;
+    private final PaymentJournal journal;
+    private final Supplier<DataSource> dataSource;
+    
+    public PaymentProcessor() {
+        this(null);
+    }
+    
+    PaymentProcessor(PaymentStore store) {
+        this(store, JOURNAL, DatabaseConfig::getDataSource);
+    }
+    
+    PaymentProcessor(PaymentStore store, PaymentJournal journal, Supplier<DataSource> dataSource) {
+        this.store = store;
+        this.journal = journal;
+        this.dataSource = dataSource;
+    }
+    
     /**
      * Process a payment and return the result.
      * This method contains the core business logic from AddPaymentCommandHandler.
+     * The balance increment and both transfer inserts run as a single
+     * auto-committed statement, so a successful payment costs one round-trip.
      * 
      * @param command The payment command containing userId and amount
      * @return PaymentResult with the outcome of the payment
      */
     public PaymentResult processPayment(AddPaymentCommand command) {
+        return processPayment(command, null);
+    }
+    
+    /**
+     * Process a payment at most once per idempotency key.
+     * A repeated key returns the result of the first successful payment,
+     * from the in-process cache when possible and otherwise from the
+     * payment_idempotency_keys table, which is written in the same
+     * transaction as the transfer. Failed payments are not recorded,
+     * so they can be retried with the same key.
+     * 
+     * @param command The payment command containing userId and amount
+     * @param idempotencyKey Client supplied key, or null to skip deduplication
+     * @return PaymentResult with the outcome of the payment
+     */
+    public PaymentResult processPayment(AddPaymentCommand command, String idempotencyKey) {
+        try (PaymentTracing.Trace trace = PaymentTracing.start(Stage.PAYMENT)) {
+            PaymentResult result = process(command, idempotencyKey);
+            trace.result(result);
+            return result;
+        }
+    }
+    
+    private PaymentResult process(AddPaymentCommand command, String idempotencyKey) {
+        if (idempotencyKey != null) {
+            PaymentResult cached = IDEMPOTENCY_CACHE.get(idempotencyKey);
+            if (cached != null) {
+                return replay(cached, command);
+            }
+        }
+        
         Connection conn = null;
         
         try {
             // Validate the command
             command.validate();
             
+            // Reject users already known to be missing or inactive
+            String rejection = USER_STATUS_CACHE.rejection(command.userId());
+            if (rejection != null) {
+                throw new IllegalArgumentException(rejection);
+            }
+            
             // Get database connection
-            conn = DatabaseConfig.getDataSource().getConnection();
-            conn.setAutoCommit(false); // Start transaction
+            conn = connect(dataSource);
+            if (idempotencyKey != null) {
+                conn.setAutoCommit(false); // Key and transfer commit together
+            }
             
             // Create repositories
             UserRepository userRepo = new UserRepository(conn);
             TransferRepository transferRepo = new TransferRepository(conn);
             
-            // 1. Fetch user from database
-            UserRepository.User user = userRepo.findById(command.userId());
-            if (user == null) {
-                throw new IllegalArgumentException("User not found: " + command.userId());
-            }
+            // 1. Credit the user and create the PaymentTransfer in one atomic statement
+            long started = PaymentMetrics.start();
+            TransferRepository.CreditedPayment credited =
+                transferRepo.creditPayment(command.userId(), command.amountMinor());
+            PaymentMetrics.record(Stage.CREDIT, started);
             
-            if (!user.isActive()) {
-                throw new IllegalArgumentException("User account is not active");
+            // 2. Nothing was written, so find out why (cold path only)
+            if (credited == null) {
+                throw new IllegalArgumentException(rejectionOf(userRepo, command.userId()));
             }
             
-            // 2. Add balance to user
-            user.addBalance(command.amount());
-            
-            // 3. Create PaymentTransfer entity
-            Long transferId = transferRepo.savePaymentTransfer(command.userId(), command.amount());
-            
-            // 4. Update user balance in database
-            userRepo.updateBalance(command.userId(), user.getBalance());
-            
-            // Commit transaction
-            conn.commit();
-            
-            return PaymentResult.success(
-                transferId,
+            PaymentResult result = PaymentResult.success(
+                credited.transferId(),
                 command.userId(),
                 command.amount(),
-                user.getBalance()
+                credited.newBalance()
             );
             
+            // 3. Record the idempotency key, or undo the payment if it was already used
+            if (idempotencyKey != null) {
+                IdempotencyRepository idempotencyRepo = new IdempotencyRepository(conn);
+                started = PaymentMetrics.start();
+                boolean saved = idempotencyRepo.save(idempotencyKey, result);
+                PaymentMetrics.record(Stage.IDEMPOTENCY, started);
+                if (saved) {
+                    commit(conn);
+                    USER_STATUS_CACHE.committed(command.userId());
+                } else {
+                    conn.rollback();
+                    PaymentMetrics.rollback();
+                    result = idempotencyRepo.findByKey(idempotencyKey);
+                }
+                IDEMPOTENCY_CACHE.put(idempotencyKey, result);
+                return replay(result, command);
+            }
+            
+            USER_STATUS_CACHE.committed(command.userId());
+            return result;
+            
         } catch (IllegalArgumentException e) {
             rollback(conn);
             return PaymentResult.failure(
@@ -73,10 +192,14 @@ public class PaymentProcessor {
             );
         } catch (SQLException e) {
             rollback(conn);
+            if (conn == null && e instanceof SQLTransientConnectionException
+                    && journal != null && journal.append(command, idempotencyKey)) {
+                return PaymentResult.accepted(command.userId(), command.amount());
+            }
             return PaymentResult.failure(
                 command.userId(),
                 command.amount(),
-                "Database error: " + e.getMessage()
+                databaseError(e)
             );
         } catch (Exception e) {
             rollback(conn);
@@ -90,25 +213,691 @@ public class PaymentProcessor {
         }
     }
     
-    private void rollback(Connection conn) {
-        if (conn != null) {
+    /**
+     * Process a payment without blocking the caller.
+     * The credit, both transfer inserts and the idempotency key are written
+     * by one auto-committed statement through the PaymentStore, so no
+     * connection is held between statements and a pipelined store can carry
+     * many concurrent payments on a few connections. A key that is already
+     * recorded fails that statement, which writes nothing, and the stored
+     * result is returned as in {@link #processPayment(AddPaymentCommand, String)}.
+     * 
+     * @param command The payment command containing userId and amount
+     * @param idempotencyKey Client supplied key, or null to skip deduplication
+     * @return the outcome of the payment; the future never completes exceptionally
+     */
+    public CompletableFuture<PaymentResult> processPaymentAsync(AddPaymentCommand command, String idempotencyKey) {
+        long started = PaymentMetrics.start();
+        return processAsync(command, idempotencyKey).thenApply(result -> {
+            PaymentMetrics.observe(Stage.PAYMENT, System.nanoTime() - started);
+            PaymentMetrics.outcome(result);
+            return result;
+        });
+    }
+    
+    private CompletableFuture<PaymentResult> processAsync(AddPaymentCommand command, String idempotencyKey) {
+        if (idempotencyKey != null) {
+            PaymentResult cached = IDEMPOTENCY_CACHE.get(idempotencyKey);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(replay(cached, command));
+            }
+        }
+        
+        try {
+            command.validate();
+            String rejection = USER_STATUS_CACHE.rejection(command.userId());
+            if (rejection != null) {
+                throw new IllegalArgumentException(rejection);
+            }
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(
+                PaymentResult.failure(command.userId(), command.amount(), e.getMessage()));
+        }
+        
+        PaymentStore payments = store != null ? store : StoreHolder.INSTANCE;
+        long started = PaymentMetrics.start();
+        
+        // 1. Credit the user, create the PaymentTransfer and record the key in one statement
+        return payments.creditPayment(command.userId(), command.amountMinor(), idempotencyKey)
+            .thenCompose(credited -> {
+                PaymentMetrics.record(Stage.CREDIT, started);
+                
+                // 2. Nothing was written, so find out why (cold path only)
+                if (credited == null) {
+                    return payments.findStatus(command.userId()).thenApply(status -> {
+                        String rejection = USER_STATUS_CACHE.record(command.userId(), status);
+                        return PaymentResult.failure(command.userId(), command.amount(),
+                            rejection != null ? rejection : "User account is not active");
+                    });
+                }
+                
+                USER_STATUS_CACHE.committed(command.userId());
+                PaymentResult result = PaymentResult.success(
+                    credited.transferId(),
+                    command.userId(),
+                    command.amount(),
+                    credited.newBalance()
+                );
+                if (idempotencyKey != null) {
+                    IDEMPOTENCY_CACHE.put(idempotencyKey, result);
+                }
+                return CompletableFuture.completedFuture(result);
+            })
+            .exceptionallyCompose(error -> {
+                // 3. The key was already recorded, so return the stored result
+                if (idempotencyKey != null && PaymentStore.isDuplicateKey(error)) {
+                    PaymentMetrics.rollback();
+                    return payments.findByKey(idempotencyKey).thenApply(stored -> {
+                        IDEMPOTENCY_CACHE.put(idempotencyKey, stored);
+                        return replay(stored, command);
+                    });
+                }
+                return CompletableFuture.completedFuture(failureOf(command, idempotencyKey, error));
+            })
+            .exceptionally(error -> failureOf(command, idempotencyKey, error));
+    }
+    
+    /**
+     * Result of a payment whose statement failed. Payments that never reached
+     * the database are journaled when a journal is configured.
+     */
+    private PaymentResult failureOf(AddPaymentCommand command, String idempotencyKey, Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof SQLTransientConnectionException
+                && journal != null && journal.append(command, idempotencyKey)) {
+            return PaymentResult.accepted(command.userId(), command.amount());
+        }
+        String message = cause instanceof SQLException sqlException
+            ? databaseError(sqlException)
+            : "Unexpected error: " + cause.getMessage();
+        return PaymentResult.failure(command.userId(), command.amount(), message);
+    }
+    
+    /**
+     * Failure message of a database error. An open circuit breaker is
+     * reported as unavailability, which the API answers with 503.
+     */
+    static String databaseError(SQLException e) {
+        return e instanceof CircuitBreakerOpenException ? PaymentResult.DATABASE_UNAVAILABLE : "Database error: " + e.getMessage();
+    }
+    
+    /**
+     * Process several payments in a single transaction.
+     * Users are loaded and locked in one query, and the transfer inserts and
+     * balance updates are sent as JDBC batches, so the database sees a handful
+     * of round-trips and one commit regardless of the batch size.
+     * In ledger mode users are read without locking them and the payments
+     * are appended to the ledger instead of updating balances.
+     * 
+     * Invalid commands, unknown users and inactive accounts fail individually;
+     * a database error fails every payment that has not already been rejected.
+     * 
+     * @param commands The payment commands to process
+     * @return One PaymentResult per command, in the same order
+     */
+    public List<PaymentResult> processPayments(List<AddPaymentCommand> commands) {
+        try (PaymentTracing.Trace trace = PaymentTracing.start(Stage.BATCH)) {
+            List<PaymentResult> results = processBatch(commands);
+            trace.results(results);
+            return results;
+        }
+    }
+    
+    private List<PaymentResult> processBatch(List<AddPaymentCommand> commands) {
+        PaymentResult[] results = new PaymentResult[commands.size()];
+        
+        // Validate the commands before borrowing a connection
+        List<Integer> pending = new ArrayList<>();
+        Set<Long> userIds = new LinkedHashSet<>();
+        for (int i = 0; i < commands.size(); i++) {
+            AddPaymentCommand command = commands.get(i);
             try {
+                command.validate();
+                String rejection = USER_STATUS_CACHE.rejection(command.userId());
+                if (rejection != null) {
+                    throw new IllegalArgumentException(rejection);
+                }
+                pending.add(i);
+                userIds.add(command.userId());
+            } catch (IllegalArgumentException e) {
+                results[i] = PaymentResult.failure(command.userId(), command.amount(), e.getMessage());
+            }
+        }
+        
+        if (pending.isEmpty()) {
+            return Arrays.asList(results);
+        }
+        
+        Connection conn = null;
+        
+        try {
+            conn = connect(dataSource);
+            conn.setAutoCommit(false); // Start transaction
+            
+            UserRepository userRepo = new UserRepository(conn);
+            TransferRepository transferRepo = new TransferRepository(conn);
+            
+            // 1. Fetch and lock all users of the batch; the ledger needs no locks
+            long started = PaymentMetrics.start();
+            Map<Long, UserRepository.UserStatus> statuses = LedgerRepository.ENABLED
+                ? new LedgerRepository(conn).findStatuses(userIds)
+                : userRepo.findStatusesForUpdate(userIds);
+            PaymentMetrics.record(Stage.LOCK_USERS, started);
+            
+            // 2. Apply the amounts in memory, in request order, in minor units
+            List<Integer> accepted = new ArrayList<>(pending.size());
+            List<AddPaymentCommand> acceptedCommands = new ArrayList<>(pending.size());
+            long[] newBalances = new long[commands.size()];
+            Map<Long, Long> finalBalances = new LinkedHashMap<>();
+            
+            for (int i : pending) {
+                AddPaymentCommand command = commands.get(i);
+                UserRepository.UserStatus status = statuses.get(command.userId());
+                
+                if (status == null || !status.active()) {
+                    results[i] = PaymentResult.failure(command.userId(), command.amount(),
+                        USER_STATUS_CACHE.record(command.userId(), status));
+                } else {
+                    Long previous = finalBalances.get(status.id());
+                    long balance = Money.add(
+                        previous != null ? previous : Money.fromDecimal(status.balance()),
+                        command.amountMinor()
+                    );
+                    newBalances[i] = balance;
+                    finalBalances.put(status.id(), balance);
+                    accepted.add(i);
+                    acceptedCommands.add(command);
+                }
+            }
+            
+            if (!accepted.isEmpty()) {
+                // 3. Create PaymentTransfer entities
+                started = PaymentMetrics.start();
+                List<Long> transferIds = transferRepo.savePaymentTransfers(acceptedCommands);
+                PaymentMetrics.record(Stage.SAVE_TRANSFERS, started);
+                
+                // 4. Update user balances in database, or append them to the ledger
+                started = PaymentMetrics.start();
+                if (LedgerRepository.ENABLED) {
+                    appendToLedger(conn, transferIds, acceptedCommands);
+                } else {
+                    userRepo.updateBalances(finalBalances);
+                }
+                PaymentMetrics.record(Stage.UPDATE_BALANCES, started);
+                
+                commit(conn);
+                finalBalances.keySet().forEach(USER_STATUS_CACHE::committed);
+                
+                for (int k = 0; k < accepted.size(); k++) {
+                    int i = accepted.get(k);
+                    AddPaymentCommand command = commands.get(i);
+                    results[i] = PaymentResult.success(
+                        transferIds.get(k),
+                        command.userId(),
+                        command.amount(),
+                        Money.toDecimal(newBalances[i])
+                    );
+                }
+            } else {
                 conn.rollback();
+                PaymentMetrics.rollback();
+            }
+            
+        } catch (SQLException e) {
+            rollback(conn);
+            failRemaining(commands, results, databaseError(e));
+        } catch (Exception e) {
+            rollback(conn);
+            failRemaining(commands, results, "Unexpected error: " + e.getMessage());
+        } finally {
+            closeConnection(conn);
+        }
+        
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Apply payments grouped by user in a single transaction.
+     * Each user gets one aggregated balance increment and one multi-row
+     * transfer insert. Groups are applied in user id order so concurrent
+     * transactions always lock users in the same order. In ledger mode no
+     * user is locked; all groups are appended to the ledger in one insert.
+     * 
+     * Invalid commands, unknown users and inactive accounts fail individually.
+     * 
+     * @param commands The payment commands to apply
+     * @return One PaymentResult per command, in the same order
+     * @throws SQLException if the transaction fails; nothing is written in that case
+     */
+    public List<PaymentResult> applyPaymentGroups(List<AddPaymentCommand> commands) throws SQLException {
+        return applyPaymentGroups(commands, null);
+    }
+    
+    /**
+     * Apply payments grouped by user, each at most once per idempotency key.
+     * Payments whose key is already recorded, or repeated earlier in the same
+     * call, are not applied again and get the stored result instead, as in
+     * {@link #processPayment(AddPaymentCommand, String)}. The keys of applied
+     * payments are recorded in the same transaction with one insert.
+     * 
+     * @param commands The payment commands to apply
+     * @param idempotencyKeys Key of each command, or null; a null list skips deduplication
+     * @return One PaymentResult per command, in the same order
+     * @throws SQLException if the transaction fails, or another transaction
+     *         recorded one of the keys meanwhile; nothing is written in that case
+     */
+    public List<PaymentResult> applyPaymentGroups(List<AddPaymentCommand> commands, List<String> idempotencyKeys)
+            throws SQLException {
+        try (PaymentTracing.Trace trace = PaymentTracing.start(Stage.BATCH)) {
+            try {
+                List<PaymentResult> results = applyGroups(commands, idempotencyKeys);
+                trace.results(results);
+                return results;
+            } catch (SQLException e) {
+                trace.failed(e);
+                throw e;
+            }
+        }
+    }
+    
+    private List<PaymentResult> applyGroups(List<AddPaymentCommand> commands, List<String> idempotencyKeys)
+            throws SQLException {
+        PaymentResult[] results = new PaymentResult[commands.size()];
+        
+        // Replay known keys and validate the commands before borrowing a connection
+        Map<String, Integer> firstByKey = new LinkedHashMap<>();
+        Map<Integer, Integer> repeats = new LinkedHashMap<>();
+        List<Integer> pending = new ArrayList<>();
+        for (int i = 0; i < commands.size(); i++) {
+            AddPaymentCommand command = commands.get(i);
+            String key = idempotencyKeys == null ? null : idempotencyKeys.get(i);
+            if (key != null) {
+                PaymentResult cached = IDEMPOTENCY_CACHE.get(key);
+                if (cached != null) {
+                    results[i] = replay(cached, command);
+                    continue;
+                }
+                Integer first = firstByKey.putIfAbsent(key, i);
+                if (first != null) {
+                    repeats.put(i, first);
+                    continue;
+                }
+            }
+            try {
+                command.validate();
+                String rejection = USER_STATUS_CACHE.rejection(command.userId());
+                if (rejection != null) {
+                    throw new IllegalArgumentException(rejection);
+                }
+                pending.add(i);
+            } catch (IllegalArgumentException e) {
+                results[i] = PaymentResult.failure(command.userId(), command.amount(), e.getMessage());
+            }
+        }
+        
+        if (pending.isEmpty()) {
+            return repeated(commands, results, repeats);
+        }
+        
+        Connection conn = null;
+        
+        try {
+            conn = connect(dataSource);
+            conn.setAutoCommit(false); // Start transaction
+            
+            UserRepository userRepo = new UserRepository(conn);
+            TransferRepository transferRepo = new TransferRepository(conn);
+            IdempotencyRepository idempotencyRepo = new IdempotencyRepository(conn);
+            
+            // 1. Replay payments whose key was recorded by an earlier delivery
+            Set<String> recorded = Set.of();
+            if (!firstByKey.isEmpty()) {
+                long started = PaymentMetrics.start();
+                recorded = idempotencyRepo.findExistingKeys(firstByKey.keySet());
+                for (String key : recorded) {
+                    int i = firstByKey.get(key);
+                    PaymentResult stored = idempotencyRepo.findByKey(key);
+                    IDEMPOTENCY_CACHE.put(key, stored);
+                    results[i] = replay(stored, commands.get(i));
+                }
+                PaymentMetrics.record(Stage.IDEMPOTENCY, started);
+            }
+            
+            Map<Long, List<Integer>> groups = new TreeMap<>();
+            for (int i : pending) {
+                String key = idempotencyKeys == null ? null : idempotencyKeys.get(i);
+                if (key == null || !recorded.contains(key)) {
+                    groups.computeIfAbsent(commands.get(i).userId(), id -> new ArrayList<>()).add(i);
+                }
+            }
+            
+            LedgerRepository ledgerRepo = LedgerRepository.ENABLED ? new LedgerRepository(conn) : null;
+            Map<Long, UserRepository.UserStatus> statuses =
+                ledgerRepo != null && !groups.isEmpty() ? ledgerRepo.findStatuses(groups.keySet()) : null;
+            List<Long> ledgerTransferIds = new ArrayList<>();
+            List<AddPaymentCommand> ledgerCommands = new ArrayList<>();
+            Set<Long> committedUsers = new LinkedHashSet<>();
+            
+            for (Map.Entry<Long, List<Integer>> group : groups.entrySet()) {
+                Long userId = group.getKey();
+                List<Integer> indexes = group.getValue();
+                
+                long[] amounts = new long[indexes.size()];
+                long total = 0;
+                for (int k = 0; k < amounts.length; k++) {
+                    amounts[k] = commands.get(indexes.get(k)).amountMinor();
+                    total = Money.add(total, amounts[k]);
+                }
+                
+                // 2. One aggregated balance increment per user, or a read in ledger mode
+                long started = PaymentMetrics.start();
+                BigDecimal newBalance = ledgerRepo != null
+                    ? creditedBalance(statuses.get(userId), total)
+                    : userRepo.incrementBalance(userId, total);
+                PaymentMetrics.record(Stage.UPDATE_BALANCES, started);
+                if (newBalance == null) {
+                    String error = ledgerRepo != null
+                        ? rejectionOf(userId, statuses.get(userId))
+                        : rejectionOf(userRepo, userId);
+                    for (int i : indexes) {
+                        results[i] = PaymentResult.failure(userId, commands.get(i).amount(), error);
+                    }
+                    continue;
+                }
+                
+                // 3. One multi-row transfer insert per user
+                started = PaymentMetrics.start();
+                List<Long> transferIds = transferRepo.savePaymentTransfers(userId, amounts);
+                PaymentMetrics.record(Stage.SAVE_TRANSFERS, started);
+                committedUsers.add(userId);
+                if (ledgerRepo != null) {
+                    ledgerTransferIds.addAll(transferIds);
+                    for (int i : indexes) {
+                        ledgerCommands.add(commands.get(i));
+                    }
+                }
+                
+                long balance = Money.subtract(Money.fromDecimal(newBalance), total);
+                for (int k = 0; k < amounts.length; k++) {
+                    balance = Money.add(balance, amounts[k]);
+                    results[indexes.get(k)] = PaymentResult.success(
+                        transferIds.get(k),
+                        userId,
+                        Money.toDecimal(amounts[k]),
+                        Money.toDecimal(balance)
+                    );
+                }
+            }
+            
+            // 4. One multi-row ledger insert for all users
+            if (!ledgerCommands.isEmpty()) {
+                long started = PaymentMetrics.start();
+                appendToLedger(conn, ledgerTransferIds, ledgerCommands);
+                PaymentMetrics.record(Stage.UPDATE_BALANCES, started);
+            }
+            
+            // 5. Record the keys of the applied payments in the same transaction
+            List<String> appliedKeys = new ArrayList<>();
+            List<PaymentResult> appliedResults = new ArrayList<>();
+            for (Map.Entry<String, Integer> first : firstByKey.entrySet()) {
+                PaymentResult result = results[first.getValue()];
+                if (!recorded.contains(first.getKey()) && result != null && result.status().equals("SUCCESS")) {
+                    appliedKeys.add(first.getKey());
+                    appliedResults.add(result);
+                }
+            }
+            if (!appliedKeys.isEmpty()) {
+                long started = PaymentMetrics.start();
+                int saved = idempotencyRepo.saveAll(appliedKeys, appliedResults);
+                PaymentMetrics.record(Stage.IDEMPOTENCY, started);
+                if (saved != appliedKeys.size()) {
+                    throw new SQLException("Idempotency key recorded concurrently");
+                }
+            }
+            
+            commit(conn);
+            committedUsers.forEach(USER_STATUS_CACHE::committed);
+            for (int k = 0; k < appliedKeys.size(); k++) {
+                IDEMPOTENCY_CACHE.put(appliedKeys.get(k), appliedResults.get(k));
+            }
+            
+        } catch (SQLException e) {
+            rollback(conn);
+            throw e;
+        } finally {
+            closeConnection(conn);
+        }
+        
+        return repeated(commands, results, repeats);
+    }
+    
+    /**
+     * Give payments that repeat an earlier key of the same call the result of that payment.
+     */
+    private List<PaymentResult> repeated(List<AddPaymentCommand> commands, PaymentResult[] results,
+            Map<Integer, Integer> repeats) {
+        repeats.forEach((i, first) -> results[i] = results[first].status().equals("SUCCESS")
+            ? replay(results[first], commands.get(i))
+            : results[first]);
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Apply journaled payments in one transaction, in journal order.
+     * Each payment is recorded under the idempotency key of its entry, so
+     * entries that were already applied, by an earlier replay or by a client
+     * retry with the same key, are skipped and get a null result.
+     * 
+     * @param entries The journal entries to apply
+     * @return One PaymentResult per entry, or null for skipped entries
+     * @throws SQLException if the transaction fails; nothing is written in that case
+     */
+    List<PaymentResult> replayJournal(List<PaymentJournal.Entry> entries) throws SQLException {
+        PaymentResult[] results = new PaymentResult[entries.size()];
+        Set<Long> committedUsers = new LinkedHashSet<>();
+        
+        Connection conn = null;
+        
+        try {
+            conn = connect(dataSource);
+            conn.setAutoCommit(false); // Start transaction
+            
+            UserRepository userRepo = new UserRepository(conn);
+            TransferRepository transferRepo = new TransferRepository(conn);
+            IdempotencyRepository idempotencyRepo = new IdempotencyRepository(conn);
+            
+            // 1. Skip entries whose key is already recorded
+            Set<String> keys = new LinkedHashSet<>();
+            for (PaymentJournal.Entry entry : entries) {
+                keys.add(entry.idempotencyKey());
+            }
+            Set<String> applied = idempotencyRepo.findExistingKeys(keys);
+            
+            for (int i = 0; i < entries.size(); i++) {
+                PaymentJournal.Entry entry = entries.get(i);
+                AddPaymentCommand command = entry.command();
+                if (!applied.add(entry.idempotencyKey())) {
+                    continue;
+                }
+                
+                // 2. Credit the user exactly as a live payment would
+                TransferRepository.CreditedPayment credited =
+                    transferRepo.creditPayment(command.userId(), command.amountMinor());
+                if (credited == null) {
+                    results[i] = PaymentResult.failure(command.userId(), command.amount(),
+                        rejectionOf(userRepo, command.userId()));
+                    continue;
+                }
+                
+                results[i] = PaymentResult.success(
+                    credited.transferId(),
+                    command.userId(),
+                    command.amount(),
+                    credited.newBalance()
+                );
+                
+                // 3. Record the key in the same transaction
+                if (!idempotencyRepo.save(entry.idempotencyKey(), results[i])) {
+                    throw new SQLException("Idempotency key recorded concurrently: " + entry.idempotencyKey());
+                }
+                committedUsers.add(command.userId());
+            }
+            
+            commit(conn);
+            committedUsers.forEach(USER_STATUS_CACHE::committed);
+            
+        } catch (SQLException e) {
+            rollback(conn);
+            throw e;
+        } finally {
+            closeConnection(conn);
+        }
+        
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Borrow a pooled connection, timing the wait.
+     */
+    static Connection connect() throws SQLException {
+        return connect(DatabaseConfig::getDataSource);
+    }
+    
+    /**
+     * Borrow a connection from a pool, timing the wait. A pool that cannot
+     * be created, because the database is down, fails like a pool timeout.
+     */
+    static Connection connect(Supplier<DataSource> dataSource) throws SQLException {
+        long started = PaymentMetrics.start();
+        Connection conn;
+        try {
+            conn = dataSource.get().getConnection();
+        } catch (RuntimeException e) {
+            // Hikari fails pool initialization with an unchecked exception
+            throw new SQLTransientConnectionException("Database pool unavailable: " + e.getMessage(), e);
+        }
+        PaymentMetrics.record(Stage.ACQUIRE, started);
+        return conn;
+    }
+    
+    static void commit(Connection conn) throws SQLException {
+        long started = PaymentMetrics.start();
+        conn.commit();
+        PaymentMetrics.record(Stage.COMMIT, started);
+    }
+    
+    /**
+     * Open the configured journal and start replaying it in the background.
+     */
+    private static PaymentJournal openJournal() {
+        PaymentJournal journal = PaymentJournal.fromSettings();
+        if (journal != null) {
+            new PaymentJournalReplayer(journal, new PaymentProcessor(),
+                Settings.getInt("PAYMENT_JOURNAL_REPLAY_BATCH_SIZE", 100))
+                .start(Settings.getLong("PAYMENT_JOURNAL_REPLAY_INTERVAL_MS", 1_000));
+        }
+        return journal;
+    }
+    
+    /**
+     * Append the ledger entries of saved transfers, in the same order.
+     */
+    private static void appendToLedger(Connection conn, List<Long> transferIds, List<AddPaymentCommand> commands)
+            throws SQLException {
+        long[] userIds = new long[commands.size()];
+        long[] amounts = new long[commands.size()];
+        for (int i = 0; i < amounts.length; i++) {
+            userIds[i] = commands.get(i).userId();
+            amounts[i] = commands.get(i).amountMinor();
+        }
+        new LedgerRepository(conn).append(transferIds, userIds, amounts);
+    }
+    
+    /**
+     * Balance of a user read from the ledger after crediting total, or null if it cannot be credited.
+     */
+    private static BigDecimal creditedBalance(UserRepository.UserStatus status, long total) {
+        if (status == null || !status.active()) {
+            return null;
+        }
+        return Money.toDecimal(Money.add(Money.fromDecimal(status.balance()), total));
+    }
+    
+    /**
+     * Why a user read from the ledger cannot be credited, remembered for later payments.
+     */
+    private static String rejectionOf(Long userId, UserRepository.UserStatus status) {
+        String rejection = USER_STATUS_CACHE.record(userId, status);
+        return rejection != null ? rejection : "User account is not active";
+    }
+    
+    /**
+     * Look up why a credit matched no row and remember it for later payments.
+     * A user that reads as active again was deactivated and reactivated
+     * in between; the payment is still rejected as inactive.
+     */
+    private static String rejectionOf(UserRepository userRepo, Long userId) throws SQLException {
+        long started = PaymentMetrics.start();
+        UserRepository.UserStatus status = userRepo.findStatus(userId);
+        PaymentMetrics.record(Stage.LOOKUP, started);
+        String rejection = USER_STATUS_CACHE.record(userId, status);
+        return rejection != null ? rejection : "User account is not active";
+    }
+    
+    /**
+     * Return a stored result, unless the key is being reused for a different payment.
+     */
+    private PaymentResult replay(PaymentResult stored, AddPaymentCommand command) {
+        if (!stored.userId().equals(command.userId())
+                || Money.fromDecimal(stored.amount()) != command.amountMinor()) {
+            return PaymentResult.failure(
+                command.userId(),
+                command.amount(),
+                "Idempotency key was already used for a different payment"
+            );
+        }
+        return stored;
+    }
+    
+    private void failRemaining(List<AddPaymentCommand> commands, PaymentResult[] results, String errorMessage) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                AddPaymentCommand command = commands.get(i);
+                results[i] = PaymentResult.failure(command.userId(), command.amount(), errorMessage);
+            }
+        }
+    }
+    
+    static void rollback(Connection conn) {
+        if (conn != null) {
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    PaymentMetrics.rollback();
+                }
             } catch (SQLException e) {
                 // Log error but don't throw
-                System.err.println("Failed to rollback transaction: " + e.getMessage());
+                LOGGER.warning("Failed to rollback transaction: " + e.getMessage());
             }
         }
     }
     
-    private void closeConnection(Connection conn) {
+    static void closeConnection(Connection conn) {
         if (conn != null) {
             try {
                 conn.close();
             } catch (SQLException e) {
                 // Log error but don't throw
-                System.err.println("Failed to close connection: " + e.getMessage());
+                LOGGER.warning("Failed to close connection: " + e.getMessage());
             }
         }
     }
+    
+    /**
+     * Created on first use of {@link #processPaymentAsync}, so workers that
+     * only use the synchronous paths never start the pipelined client.
+     */
+    private static class StoreHolder {
+        static final PaymentStore INSTANCE = PaymentStore.fromSettings();
+    }
 }
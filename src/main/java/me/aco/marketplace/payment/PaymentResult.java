@@ -11,6 +11,12 @@ public record PaymentResult(
     LocalDateTime timestamp,
     String status
 ) {
+    /**
+     * Error of a payment rejected without trying, because the database circuit
+     * breaker is open or the payment could not be queued for a connection.
+     */
+    public static final String DATABASE_UNAVAILABLE = "Database unavailable";
+    
     public static PaymentResult success(Long transferId, Long userId, BigDecimal amount, BigDecimal newBalance) {
         return new PaymentResult(
             transferId,
@@ -22,6 +28,17 @@ public record PaymentResult(
         );
     }
     
+    public static PaymentResult accepted(Long userId, BigDecimal amount) {
+        return new PaymentResult(
+            null,
+            userId,
+            amount,
+            null,
+            LocalDateTime.now(),
+            "ACCEPTED"
+        );
+    }
+    
     public static PaymentResult failure(Long userId, BigDecimal amount, String errorMessage) {
         return new PaymentResult(
             null,
@@ -32,4 +49,11 @@ public record PaymentResult(
             "FAILED: " + errorMessage
         );
     }
+    
+    /**
+     * True if the payment failed because the database was unavailable.
+     */
+    public boolean unavailable() {
+        return status.equals("FAILED: " + DATABASE_UNAVAILABLE);
+    }
 }
@@ -0,0 +1,122 @@
+package me.aco.marketplace.payment;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import io.opentelemetry.api.GlobalOpenTelemetry;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.api.trace.Tracer;
+import io.opentelemetry.context.Scope;
+
+/**
+ * Optional OpenTelemetry spans for payment processing, enabled with
+ * PAYMENT_TRACING_ENABLED. Spans go to whatever SDK or agent registered
+ * the global OpenTelemetry instance, such as the Application Insights agent;
+ * without one they are no-ops. Stages are recorded as child spans after
+ * they finish, so the hot path never allocates a span while tracing is off.
+ */
+final class PaymentTracing {
+    
+    private static final Tracer TRACER = Settings.getBoolean("PAYMENT_TRACING_ENABLED", false)
+        ? GlobalOpenTelemetry.getTracer("me.aco.marketplace.payment")
+        : null;
+    
+    private PaymentTracing() {
+    }
+    
+    /**
+     * Start timing a whole payment or batch, as the current span when tracing.
+     */
+    static Trace start(PaymentMetrics.Stage stage) {
+        return new Trace(stage, TRACER == null ? null : TRACER.spanBuilder(spanName(stage)).startSpan());
+    }
+    
+    /**
+     * Emit a finished stage as a child of the current span.
+     */
+    static void stage(PaymentMetrics.Stage stage, long elapsedNanos) {
+        if (TRACER == null || !Span.current().getSpanContext().isValid()) {
+            return;
+        }
+        Instant now = Instant.now();
+        long endNanos = TimeUnit.SECONDS.toNanos(now.getEpochSecond()) + now.getNano();
+        TRACER.spanBuilder(spanName(stage))
+            .setStartTimestamp(endNanos - elapsedNanos, TimeUnit.NANOSECONDS)
+            .startSpan()
+            .end(endNanos, TimeUnit.NANOSECONDS);
+    }
+    
+    private static String spanName(PaymentMetrics.Stage stage) {
+        return "payment." + stage.label;
+    }
+    
+    /**
+     * Timing of a whole payment or batch. Closing it records the duration
+     * and ends the span.
+     */
+    static final class Trace implements AutoCloseable {
+        
+        private final PaymentMetrics.Stage stage;
+        private final long started = System.nanoTime();
+        private final Span span;
+        private final Scope scope;
+        
+        private Trace(PaymentMetrics.Stage stage, Span span) {
+            this.stage = stage;
+            this.span = span;
+            this.scope = span == null ? null : span.makeCurrent();
+        }
+        
+        /**
+         * Count the outcome of a single payment.
+         */
+        void result(PaymentResult result) {
+            PaymentMetrics.outcome(result);
+            if (span != null) {
+                span.setAttribute("payment.user_id", result.userId() == null ? -1 : result.userId());
+                span.setAttribute("payment.status", result.status());
+                if (result.status().startsWith("FAILED")) {
+                    span.setStatus(StatusCode.ERROR, result.status());
+                }
+            }
+        }
+        
+        /**
+         * Count the outcomes of a batch.
+         */
+        void results(List<PaymentResult> results) {
+            long failed = 0;
+            for (PaymentResult result : results) {
+                PaymentMetrics.outcome(result);
+                if (result.status().startsWith("FAILED")) {
+                    failed++;
+                }
+            }
+            if (span != null) {
+                span.setAttribute("payment.batch_size", results.size());
+                span.setAttribute("payment.failed", failed);
+            }
+        }
+        
+        /**
+         * Mark the span as failed by an exception that escapes the batch.
+         */
+        void failed(Exception e) {
+            if (span != null) {
+                span.recordException(e);
+                span.setStatus(StatusCode.ERROR, e.getMessage());
+            }
+        }
+        
+        @Override
+        public void close() {
+            PaymentMetrics.observe(stage, System.nanoTime() - started);
+            if (span != null) {
+                scope.close();
+                span.end();
+            }
+        }
+    }
+}
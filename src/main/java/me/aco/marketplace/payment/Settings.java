@@ -0,0 +1,42 @@
+package me.aco.marketplace.payment;
+
+/**
+ * Access to application settings.
+ * Values come from environment variables (local.settings.json or Azure
+ * app settings), falling back to system properties of the same name
+ * (used by benchmarks and tests) and then to the given default.
+ */
+public final class Settings {
+    
+    private Settings() {
+    }
+    
+    public static String get(String name, String defaultValue) {
+        String value = System.getenv(name);
+        if (value == null) {
+            value = System.getProperty(name);
+        }
+        return value != null ? value : defaultValue;
+    }
+    
+    public static int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+    
+    public static long getLong(String name, long defaultValue) {
+        String value = get(name, null);
+        if (value == null || value.isBlank()) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalStateException("Invalid value for " + name + ": " + value, e);
+        }
+    }
+    
+    public static boolean getBoolean(String name, boolean defaultValue) {
+        String value = get(name, null);
+        return value == null || value.isBlank() ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
@@ -0,0 +1,164 @@
+package me.aco.marketplace.payment;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Serializes payments per user in front of PaymentProcessor.
+ * Every user id maps to one stripe, and a stripe runs at most one database
+ * transaction at a time, so payments for a hot account queue in memory
+ * instead of holding pooled connections while they wait for the row lock.
+ * Payments of one user that pile up on a stripe are coalesced into one
+ * transaction with one balance increment; users sharing a stripe never
+ * share a transaction. Each stripe holds a bounded number of payments,
+ * and payments beyond that are rejected as unavailable.
+ */
+public class StripedPaymentDispatcher {
+    
+    private static final Logger LOGGER = Logger.getLogger(StripedPaymentDispatcher.class.getName());
+    
+    private final PaymentProcessor paymentProcessor;
+    private final Stripe[] stripes;
+    private final int maxBatchSize;
+    private final Executor executor;
+    
+    /**
+     * @param capacity Number of payments that can wait on one stripe
+     */
+    public StripedPaymentDispatcher(PaymentProcessor paymentProcessor, int stripeCount, int maxBatchSize, int capacity) {
+        this(paymentProcessor, stripeCount, maxBatchSize, capacity, Executors.newFixedThreadPool(stripeCount, runnable -> {
+            Thread thread = new Thread(runnable, "payment-stripe");
+            thread.setDaemon(true);
+            return thread;
+        }));
+    }
+    
+    StripedPaymentDispatcher(PaymentProcessor paymentProcessor, int stripeCount, int maxBatchSize, int capacity,
+            Executor executor) {
+        this.paymentProcessor = paymentProcessor;
+        this.maxBatchSize = maxBatchSize;
+        this.stripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new Stripe(capacity);
+        }
+        this.executor = executor;
+    }
+    
+    /**
+     * Queue a payment on the stripe of its user.
+     * If the stripe is full, the payment fails as unavailable without trying.
+     */
+    public CompletableFuture<PaymentResult> submit(AddPaymentCommand command) {
+        try {
+            command.validate();
+        } catch (IllegalArgumentException e) {
+            return CompletableFuture.completedFuture(
+                PaymentResult.failure(command.userId(), command.amount(), e.getMessage()));
+        }
+        
+        Stripe stripe = stripes[Math.floorMod(Long.hashCode(command.userId()), stripes.length)];
+        Pending pending = new Pending(command, new CompletableFuture<>());
+        if (!stripe.queue.offer(pending)) {
+            return CompletableFuture.completedFuture(
+                PaymentResult.failure(command.userId(), command.amount(), PaymentResult.DATABASE_UNAVAILABLE));
+        }
+        if (stripe.scheduled.compareAndSet(false, true)) {
+            executor.execute(() -> drain(stripe));
+        }
+        return pending.result();
+    }
+    
+    private void drain(Stripe stripe) {
+        while (true) {
+            List<Pending> batch = new ArrayList<>();
+            Pending next;
+            while (batch.size() < maxBatchSize && (next = stripe.queue.poll()) != null) {
+                batch.add(next);
+            }
+            
+            if (!batch.isEmpty()) {
+                process(batch);
+                continue;
+            }
+            
+            // Release the stripe, then take it back if work raced in
+            stripe.scheduled.set(false);
+            if (stripe.queue.isEmpty() || !stripe.scheduled.compareAndSet(false, true)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * Apply a batch one user at a time. If a user's coalesced transaction
+     * fails, apply each of their payments on its own, so a payment that
+     * cannot be applied only fails itself.
+     */
+    private void process(List<Pending> batch) {
+        Map<Long, List<Pending>> byUser = new LinkedHashMap<>();
+        for (Pending pending : batch) {
+            byUser.computeIfAbsent(pending.command().userId(), userId -> new ArrayList<>()).add(pending);
+        }
+        
+        for (List<Pending> group : byUser.values()) {
+            if (group.size() == 1 || !applyGroup(group)) {
+                for (Pending pending : group) {
+                    pending.result().complete(processPayment(pending.command()));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Apply the payments of one user in one transaction.
+     * 
+     * @return false if the transaction failed and nothing was applied
+     */
+    private boolean applyGroup(List<Pending> group) {
+        List<AddPaymentCommand> commands = new ArrayList<>(group.size());
+        for (Pending pending : group) {
+            commands.add(pending.command());
+        }
+        
+        try {
+            List<PaymentResult> results = paymentProcessor.applyPaymentGroups(commands);
+            for (int i = 0; i < group.size(); i++) {
+                group.get(i).result().complete(results.get(i));
+            }
+            return true;
+        } catch (Exception e) {
+            LOGGER.warning("Coalesced payments of user " + commands.get(0).userId()
+                + " failed, applying them one by one: " + e.getMessage());
+            return false;
+        }
+    }
+    
+    private PaymentResult processPayment(AddPaymentCommand command) {
+        try {
+            return paymentProcessor.processPayment(command);
+        } catch (Exception e) {
+            return PaymentResult.failure(command.userId(), command.amount(), "Unexpected error: " + e.getMessage());
+        }
+    }
+    
+    private static class Stripe {
+        final BlockingQueue<Pending> queue;
+        final AtomicBoolean scheduled = new AtomicBoolean();
+        
+        Stripe(int capacity) {
+            this.queue = new ArrayBlockingQueue<>(capacity);
+        }
+    }
+    
+    private record Pending(AddPaymentCommand command, CompletableFuture<PaymentResult> result) {
+    }
+}
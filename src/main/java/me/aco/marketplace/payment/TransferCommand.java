@@ -0,0 +1,55 @@
+package me.aco.marketplace.payment;
+
+import java.math.BigDecimal;
+
+/**
+ * A transfer of any {@link TransferType}, with the amount in minor units of {@link Money}.
+ * The user is credited by a payment and debited by a withdrawal; for a
+ * purchase the user is the buyer and sellerId the user credited.
+ * Missing and invalid amounts use the sentinels of {@link AddPaymentCommand}.
+ */
+public record TransferCommand(
+    TransferType type,
+    Long userId,
+    Long sellerId,
+    long amountMinor
+) {
+    public static TransferCommand payment(Long userId, long amountMinor) {
+        return new TransferCommand(TransferType.PAYMENT, userId, null, amountMinor);
+    }
+    
+    public static TransferCommand withdrawal(Long userId, long amountMinor) {
+        return new TransferCommand(TransferType.WITHDRAWAL, userId, null, amountMinor);
+    }
+    
+    public static TransferCommand purchase(Long buyerId, Long sellerId, long amountMinor) {
+        return new TransferCommand(TransferType.PURCHASE, buyerId, sellerId, amountMinor);
+    }
+    
+    /**
+     * The amount as a decimal, or null if it is missing or invalid.
+     */
+    public BigDecimal amount() {
+        return new AddPaymentCommand(userId, amountMinor).amount();
+    }
+    
+    public void validate() {
+        if (type == null) {
+            throw new IllegalArgumentException("Transfer type must be one of PAYMENT, WITHDRAWAL or PURCHASE");
+        }
+        
+        // Same rules for the user and the amount as a payment
+        new AddPaymentCommand(userId, amountMinor).validate();
+        
+        if (type.hasSeller()) {
+            if (sellerId == null) {
+                throw new IllegalArgumentException("Seller ID cannot be null");
+            }
+            if (sellerId.equals(userId)) {
+                throw new IllegalArgumentException("Buyer and seller must be different users");
+            }
+        } else if (sellerId != null) {
+            throw new IllegalArgumentException("Seller ID is only allowed for purchases");
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package me.aco.marketplace.payment;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import me.aco.marketplace.payment.PaymentMetrics.Stage;
+import me.aco.marketplace.payment.database.LedgerRepository;
+import me.aco.marketplace.payment.database.TransferRepository;
+import me.aco.marketplace.payment.database.UserRepository;
+
+/**
+ * Processes batches of transfers of every {@link TransferType} on one path.
+ * All users of a batch, buyers and sellers included, are locked in one
+ * query in id order, so batches touching the same users cannot deadlock.
+ * The transfers are then applied in memory in request order, each one
+ * checked against the balances left by the transfers before it, and all
+ * transfer rows and net balance changes are written by one statement,
+ * which checks again that no debit takes a balance below zero. A batch
+ * therefore costs three round-trips and one commit whatever its size
+ * and mix of types.
+ */
+public class TransferEngine {
+    
+    /**
+     * Process several transfers in a single transaction.
+     * Invalid transfers, unknown or inactive users and debits larger than
+     * the balance fail individually; a database error fails every transfer
+     * that has not already been rejected. The new balance of a result is
+     * that of its user: the payee, the withdrawing user or the buyer.
+     * 
+     * @param commands The transfers to process
+     * @return One PaymentResult per command, in the same order
+     */
+    public List<PaymentResult> processTransfers(List<TransferCommand> commands) {
+        try (PaymentTracing.Trace trace = PaymentTracing.start(Stage.TRANSFERS)) {
+            List<PaymentResult> results = process(commands);
+            trace.results(results);
+            return results;
+        }
+    }
+    
+    private List<PaymentResult> process(List<TransferCommand> commands) {
+        PaymentResult[] results = new PaymentResult[commands.size()];
+        UserStatusCache userStatusCache = PaymentProcessor.USER_STATUS_CACHE;
+        
+        // Validate the commands before borrowing a connection
+        List<Integer> pending = new ArrayList<>();
+        Set<Long> userIds = new TreeSet<>();
+        for (int i = 0; i < commands.size(); i++) {
+            TransferCommand command = commands.get(i);
+            try {
+                command.validate();
+                String rejection = userStatusCache.rejection(command.userId());
+                if (rejection != null) {
+                    throw new IllegalArgumentException(rejection);
+                }
+                pending.add(i);
+                userIds.add(command.userId());
+                if (command.sellerId() != null) {
+                    userIds.add(command.sellerId());
+                }
+            } catch (IllegalArgumentException e) {
+                results[i] = PaymentResult.failure(command.userId(), command.amount(), e.getMessage());
+            }
+        }
+        
+        if (pending.isEmpty()) {
+            return Arrays.asList(results);
+        }
+        
+        Connection conn = null;
+        
+        try {
+            conn = PaymentProcessor.connect();
+            conn.setAutoCommit(false); // Start transaction
+            
+            // 1. Fetch and lock all users of the batch in id order
+            long started = PaymentMetrics.start();
+            Map<Long, UserRepository.UserStatus> statuses = LedgerRepository.ENABLED
+                ? new LedgerRepository(conn).findStatusesForUpdate(userIds)
+                : new UserRepository(conn).findStatusesForUpdate(userIds);
+            PaymentMetrics.record(Stage.LOCK_USERS, started);
+            
+            // 2. Apply the transfers in memory, in request order, in minor units
+            Plan plan = plan(commands, pending, statuses, results);
+            
+            if (!plan.accepted().isEmpty()) {
+                // 3. Save all transfers and balance changes in one statement
+                started = PaymentMetrics.start();
+                List<Long> transferIds = new TransferRepository(conn)
+                    .applyTransfers(plan.acceptedCommands(), plan.userIds(), plan.deltas());
+                PaymentMetrics.record(Stage.SAVE_TRANSFERS, started);
+                
+                PaymentProcessor.commit(conn);
+                plan.balances().keySet().forEach(userStatusCache::committed);
+                
+                for (int k = 0; k < plan.accepted().size(); k++) {
+                    int i = plan.accepted().get(k);
+                    TransferCommand command = commands.get(i);
+                    results[i] = PaymentResult.success(
+                        transferIds.get(k),
+                        command.userId(),
+                        command.amount(),
+                        Money.toDecimal(plan.newBalances()[k])
+                    );
+                }
+            } else {
+                conn.rollback();
+                PaymentMetrics.rollback();
+            }
+            
+        } catch (SQLException e) {
+            PaymentProcessor.rollback(conn);
+            failRemaining(commands, results, PaymentProcessor.databaseError(e));
+        } catch (Exception e) {
+            PaymentProcessor.rollback(conn);
+            failRemaining(commands, results, "Unexpected error: " + e.getMessage());
+        } finally {
+            PaymentProcessor.closeConnection(conn);
+        }
+        
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Apply the pending transfers to the locked balances, in request order.
+     * Rejected transfers get their failure result; the others leave the
+     * balance changes they add up to.
+     */
+    static Plan plan(List<TransferCommand> commands, List<Integer> pending,
+            Map<Long, UserRepository.UserStatus> statuses, PaymentResult[] results) {
+        UserStatusCache userStatusCache = PaymentProcessor.USER_STATUS_CACHE;
+        Map<Long, Long> balances = new LinkedHashMap<>();
+        Map<Long, Long> deltas = new LinkedHashMap<>();
+        List<Integer> accepted = new ArrayList<>(pending.size());
+        List<TransferCommand> acceptedCommands = new ArrayList<>(pending.size());
+        long[] newBalances = new long[pending.size()];
+        
+        for (int i : pending) {
+            TransferCommand command = commands.get(i);
+            UserRepository.UserStatus user = statuses.get(command.userId());
+            String rejection = user == null || !user.active() ? userStatusCache.record(command.userId(), user) : null;
+            
+            if (rejection == null && command.sellerId() != null) {
+                UserRepository.UserStatus seller = statuses.get(command.sellerId());
+                if (seller == null || !seller.active()) {
+                    userStatusCache.record(command.sellerId(), seller);
+                    rejection = seller == null ? "Seller not found: " + command.sellerId() : "Seller account is not active";
+                }
+            }
+            
+            long userBalance = 0;
+            if (rejection == null) {
+                long userDelta = command.type().userDelta(command.amountMinor());
+                userBalance = Money.add(balanceOf(balances, user), userDelta);
+                if (command.type().debitsUser() && userBalance < 0) {
+                    rejection = "Insufficient balance";
+                }
+            }
+            
+            if (rejection != null) {
+                results[i] = PaymentResult.failure(command.userId(), command.amount(), rejection);
+                continue;
+            }
+            
+            move(balances, deltas, user.id(), userBalance, command.type().userDelta(command.amountMinor()));
+            if (command.sellerId() != null) {
+                UserRepository.UserStatus seller = statuses.get(command.sellerId());
+                move(balances, deltas, seller.id(), Money.add(balanceOf(balances, seller), command.amountMinor()),
+                    command.amountMinor());
+            }
+            newBalances[accepted.size()] = userBalance;
+            accepted.add(i);
+            acceptedCommands.add(command);
+        }
+        
+        long[] userIds = new long[deltas.size()];
+        long[] userDeltas = new long[deltas.size()];
+        int k = 0;
+        for (Map.Entry<Long, Long> delta : deltas.entrySet()) {
+            userIds[k] = delta.getKey();
+            userDeltas[k++] = delta.getValue();
+        }
+        return new Plan(accepted, acceptedCommands, Arrays.copyOf(newBalances, accepted.size()),
+            balances, userIds, userDeltas);
+    }
+    
+    private static long balanceOf(Map<Long, Long> balances, UserRepository.UserStatus status) {
+        Long balance = balances.get(status.id());
+        return balance != null ? balance : Money.fromDecimal(status.balance());
+    }
+    
+    private static void move(Map<Long, Long> balances, Map<Long, Long> deltas, Long userId, long balance, long delta) {
+        balances.put(userId, balance);
+        deltas.merge(userId, delta, Money::add);
+    }
+    
+    private static void failRemaining(List<TransferCommand> commands, PaymentResult[] results, String errorMessage) {
+        for (int i = 0; i < results.length; i++) {
+            if (results[i] == null) {
+                TransferCommand command = commands.get(i);
+                results[i] = PaymentResult.failure(command.userId(), command.amount(), errorMessage);
+            }
+        }
+    }
+    
+    /**
+     * Outcome of applying a batch in memory.
+     * 
+     * @param accepted Indexes of the accepted commands, in request order
+     * @param acceptedCommands The accepted commands, in the same order
+     * @param newBalances Balance of the user of each accepted command right after it
+     * @param balances Final balance of every user changed, in minor units
+     * @param userIds Users whose balance changes
+     * @param deltas Net change of each of those users, in minor units
+     */
+    record Plan(
+        List<Integer> accepted,
+        List<TransferCommand> acceptedCommands,
+        long[] newBalances,
+        Map<Long, Long> balances,
+        long[] userIds,
+        long[] deltas
+    ) {
+    }
+}
@@ -0,0 +1,55 @@
+package me.aco.marketplace.payment;
+
+import java.util.Locale;
+
+/**
+ * Kinds of transfer, as stored in transfers.transfer_type.
+ * Each kind says how it moves money: the user of a transfer is credited
+ * or debited, and a kind with a seller credits the seller with the amount.
+ * Debits may not take a balance below zero.
+ */
+public enum TransferType {
+    /** Credit to the user */
+    PAYMENT(1, false),
+    /** Debit from the user */
+    WITHDRAWAL(-1, false),
+    /** Debit from the user, the buyer, credited to the seller */
+    PURCHASE(-1, true);
+    
+    private final int userSign;
+    private final boolean hasSeller;
+    
+    TransferType(int userSign, boolean hasSeller) {
+        this.userSign = userSign;
+        this.hasSeller = hasSeller;
+    }
+    
+    /**
+     * Change of the user's balance for an amount in minor units.
+     */
+    public long userDelta(long amountMinor) {
+        return userSign * amountMinor;
+    }
+    
+    public boolean debitsUser() {
+        return userSign < 0;
+    }
+    
+    public boolean hasSeller() {
+        return hasSeller;
+    }
+    
+    /**
+     * The kind with this name, ignoring case, or null if there is none.
+     */
+    public static TransferType of(String name) {
+        if (name == null) {
+            return null;
+        }
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
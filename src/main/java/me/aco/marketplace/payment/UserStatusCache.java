@@ -0,0 +1,60 @@
+package me.aco.marketplace.payment;
+
+import me.aco.marketplace.payment.database.UserRepository;
+
+/**
+ * Read-through cache of user status for payment processing.
+ * Unknown and inactive users are remembered for a short time so that
+ * repeated payments to them are rejected before a connection is borrowed.
+ * Entries of active users are refreshed on every commit; they are never
+ * used to accept a payment, which the credit statement still checks in SQL.
+ */
+class UserStatusCache {
+    
+    private final LruCache<Long, Entry> entries;
+    
+    UserStatusCache(int capacity, long ttlMillis) {
+        this.entries = new LruCache<>(capacity, ttlMillis);
+    }
+    
+    static UserStatusCache fromSettings() {
+        return new UserStatusCache(
+            Settings.getInt("PAYMENT_USER_CACHE_SIZE", 50_000),
+            Settings.getLong("PAYMENT_USER_CACHE_TTL_MS", 30_000)
+        );
+    }
+    
+    /**
+     * The reason a payment to this user must be rejected, or null if it is
+     * unknown to the cache or the user was active when last seen.
+     */
+    String rejection(Long userId) {
+        Entry entry = entries.get(userId);
+        if (entry == null || entry.active()) {
+            return null;
+        }
+        return entry.exists() ? "User account is not active" : "User not found: " + userId;
+    }
+    
+    /**
+     * Record a status read from the database, or a missing user when status is null.
+     * 
+     * @return the rejection reason for this status, or null if the user is active
+     */
+    String record(Long userId, UserRepository.UserStatus status) {
+        entries.put(userId, status == null
+            ? new Entry(false, false)
+            : new Entry(true, status.active()));
+        return rejection(userId);
+    }
+    
+    /**
+     * Refresh a user after a payment to them was committed.
+     */
+    void committed(Long userId) {
+        entries.put(userId, new Entry(true, true));
+    }
+    
+    private record Entry(boolean exists, boolean active) {
+    }
+}
@@ -0,0 +1,115 @@
+package me.aco.marketplace.payment.database;
+
+import com.zaxxer.hikari.HikariConfigMXBean;
+import com.zaxxer.hikari.HikariDataSource;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Resizes the pool from observed acquire latency and utilization.
+ * Grows when threads wait for connections longer than the target,
+ * shrinks one connection at a time when the pool was mostly idle over
+ * the last interval. Utilization is the time connections were borrowed
+ * during the interval divided by the time the pool's connections were
+ * available, so a pool that is busy between two samples is not shrunk.
+ */
+class AdaptivePoolSizer {
+    
+    private static final Logger LOGGER = Logger.getLogger(AdaptivePoolSizer.class.getName());
+    
+    private final PoolMetrics metrics;
+    private final int minSize;
+    private final int maxSize;
+    private final int minIdle;
+    private final long targetAcquireNanos;
+    private PoolMetrics.Snapshot previous;
+    private long previousNanos;
+    
+    /**
+     * @param minIdle Configured minimum idle connections, kept whenever the pool is at least that large
+     */
+    AdaptivePoolSizer(PoolMetrics metrics, int minSize, int maxSize, int minIdle, long targetAcquireMillis) {
+        this.metrics = metrics;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.minIdle = minIdle;
+        this.targetAcquireNanos = TimeUnit.MILLISECONDS.toNanos(targetAcquireMillis);
+    }
+    
+    void start(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "adaptive-pool-sizer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::resize, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    private void resize() {
+        try {
+            HikariDataSource pool = DatabaseConfig.currentPool();
+            PoolMetrics.Snapshot current = metrics.snapshot();
+            long now = System.nanoTime();
+            PoolMetrics.Snapshot last = previous;
+            long elapsedNanos = now - previousNanos;
+            previous = current;
+            previousNanos = now;
+            if (pool == null || pool.isClosed() || last == null) {
+                return;
+            }
+            
+            HikariConfigMXBean config = pool.getHikariConfigMXBean();
+            int size = config.getMaximumPoolSize();
+            int newSize = nextSize(size, last, current, elapsedNanos);
+            
+            if (newSize != size) {
+                // Shrink the idle floor with the pool, and restore it as the pool grows back
+                int idle = Math.min(minIdle, newSize);
+                if (newSize < size) {
+                    config.setMinimumIdle(idle);
+                    config.setMaximumPoolSize(newSize);
+                } else {
+                    config.setMaximumPoolSize(newSize);
+                    config.setMinimumIdle(idle);
+                }
+                LOGGER.info("Resized connection pool from " + size + " to " + newSize
+                    + " (avg acquire " + TimeUnit.NANOSECONDS.toMicros(averageAcquireNanos(last, current))
+                    + " us, pending " + current.pendingThreads()
+                    + ", utilization " + Math.round(utilization(size, last, current, elapsedNanos) * 100) + "%)");
+            }
+        } catch (RuntimeException e) {
+            LOGGER.warning("Adaptive pool sizing failed: " + e.getMessage());
+        }
+    }
+    
+    /**
+     * Pool size for the next interval, given the counters at its start and end.
+     */
+    int nextSize(int size, PoolMetrics.Snapshot last, PoolMetrics.Snapshot current, long elapsedNanos) {
+        boolean timedOut = current.timeouts() > last.timeouts();
+        if (timedOut || current.pendingThreads() > 0 || averageAcquireNanos(last, current) > targetAcquireNanos) {
+            return Math.min(maxSize, size + Math.max(1, size / 4));
+        }
+        if (utilization(size, last, current, elapsedNanos) < 0.5) {
+            return Math.max(minSize, size - 1);
+        }
+        return size;
+    }
+    
+    private static long averageAcquireNanos(PoolMetrics.Snapshot last, PoolMetrics.Snapshot current) {
+        long acquires = current.acquireCount() - last.acquireCount();
+        return acquires == 0 ? 0 : (current.acquireNanos() - last.acquireNanos()) / acquires;
+    }
+    
+    /**
+     * Share of the pool's connection time that was borrowed during the interval.
+     */
+    private static double utilization(int size, PoolMetrics.Snapshot last, PoolMetrics.Snapshot current,
+            long elapsedNanos) {
+        double availableMillis = (double) size * TimeUnit.NANOSECONDS.toMillis(elapsedNanos);
+        return availableMillis <= 0 ? 0.0 : (current.usageMillis() - last.usageMillis()) / availableMillis;
+    }
+}
@@ -0,0 +1,22 @@
+package me.aco.marketplace.payment.database;
+
+import com.zaxxer.hikari.SQLExceptionOverride;
+
+import java.sql.SQLException;
+
+/**
+ * Reports failures of statements on pooled connections to the circuit
+ * breaker. Hikari calls it for every SQLException thrown through one of
+ * its connections; eviction is left to Hikari's own rules.
+ */
+public class BreakerExceptionOverride implements SQLExceptionOverride {
+    
+    @java.lang.Override // Override alone is the verdict enum inherited from SQLExceptionOverride
+    public Override adjudicate(SQLException e) {
+        CircuitBreaker breaker = DatabaseConfig.circuitBreaker();
+        if (breaker != null && CircuitBreaker.isUnavailable(e)) {
+            breaker.onFailure(e);
+        }
+        return Override.CONTINUE_EVICT;
+    }
+}
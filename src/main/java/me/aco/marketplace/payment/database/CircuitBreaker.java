@@ -0,0 +1,225 @@
+package me.aco.marketplace.payment.database;
+
+import me.aco.marketplace.payment.Settings;
+
+import java.sql.SQLException;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTimeoutException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker in front of the database.
+ * Closed, it records the outcome of recent calls in a sliding window and
+ * opens once the share of failures reaches the threshold. Open, it rejects
+ * every call with a volatile read and no I/O, until the open period has
+ * elapsed. Half-open, it lets a few probe calls through: if they all
+ * succeed it closes again, and any failure opens it for another period.
+ * 
+ * Only failures that mean the database is unreachable or unusable count;
+ * constraint violations and other errors of a single statement do not.
+ */
+public class CircuitBreaker {
+    
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+    
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+    
+    private final boolean[] window;
+    private final int minimumCalls;
+    private final int failureRatePercent;
+    private final long openNanos;
+    private final int halfOpenProbes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder[] transitions = new LongAdder[State.values().length];
+    
+    private volatile State state = State.CLOSED;
+    private volatile long openUntilNanos;
+    private volatile int calls;
+    private volatile int failures;
+    private int next;
+    private int probesStarted;
+    private int probesSucceeded;
+    
+    public CircuitBreaker(int windowSize, int minimumCalls, int failureRatePercent, long openMillis, int halfOpenProbes) {
+        this.window = new boolean[windowSize];
+        this.minimumCalls = minimumCalls;
+        this.failureRatePercent = failureRatePercent;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenProbes = halfOpenProbes;
+        for (int i = 0; i < transitions.length; i++) {
+            transitions[i] = new LongAdder();
+        }
+    }
+    
+    /**
+     * Breaker configured by DB_BREAKER_WINDOW_SIZE (default 20 calls),
+     * DB_BREAKER_MIN_CALLS (default 10), DB_BREAKER_FAILURE_RATE (default 50 percent),
+     * DB_BREAKER_OPEN_MS (default 5000) and DB_BREAKER_HALF_OPEN_PROBES (default 3),
+     * or null when DB_BREAKER_ENABLED is false.
+     */
+    static CircuitBreaker fromSettings() {
+        if (!Settings.getBoolean("DB_BREAKER_ENABLED", true)) {
+            return null;
+        }
+        return new CircuitBreaker(
+            Settings.getInt("DB_BREAKER_WINDOW_SIZE", 20),
+            Settings.getInt("DB_BREAKER_MIN_CALLS", 10),
+            Settings.getInt("DB_BREAKER_FAILURE_RATE", 50),
+            Settings.getLong("DB_BREAKER_OPEN_MS", 5_000),
+            Settings.getInt("DB_BREAKER_HALF_OPEN_PROBES", 3)
+        );
+    }
+    
+    /**
+     * Ask to make a call.
+     * 
+     * @throws CircuitBreakerOpenException if the breaker is open, or half-open with all probes in flight
+     */
+    public void acquirePermission() throws CircuitBreakerOpenException {
+        State current = state;
+        if (current == State.CLOSED) {
+            return;
+        }
+        if (current == State.OPEN && System.nanoTime() - openUntilNanos < 0) {
+            rejected.increment();
+            throw new CircuitBreakerOpenException();
+        }
+        
+        lock.lock();
+        try {
+            if (state == State.OPEN && System.nanoTime() - openUntilNanos >= 0) {
+                transition(State.HALF_OPEN);
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesStarted >= halfOpenProbes) {
+                    rejected.increment();
+                    throw new CircuitBreakerOpenException();
+                }
+                probesStarted++;
+            } else if (state == State.OPEN) {
+                rejected.increment();
+                throw new CircuitBreakerOpenException();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    public void onSuccess() {
+        record(false);
+    }
+    
+    /**
+     * Record a failed call. Errors that do not mean the database is unavailable count as successes.
+     */
+    public void onFailure(SQLException e) {
+        record(isUnavailable(e));
+    }
+    
+    public State state() {
+        return state;
+    }
+    
+    public long rejected() {
+        return rejected.sum();
+    }
+    
+    /**
+     * How often the breaker has entered a state.
+     */
+    public long transitions(State to) {
+        return transitions[to.ordinal()].sum();
+    }
+    
+    /**
+     * True if the exception means the database cannot be reached or cannot
+     * serve writes: connection failures, timeouts, server shutdown and
+     * resource exhaustion, and a primary that has become read-only in a failover.
+     */
+    static boolean isUnavailable(SQLException e) {
+        if (e instanceof CircuitBreakerOpenException) {
+            return false;
+        }
+        if (e instanceof SQLTransientConnectionException || e instanceof SQLRecoverableException
+                || e instanceof SQLTimeoutException) {
+            return true;
+        }
+        String sqlState = e.getSQLState();
+        if (sqlState == null) {
+            return false;
+        }
+        return sqlState.startsWith("08") // connection exception
+            || sqlState.startsWith("53") // insufficient resources
+            || sqlState.startsWith("57P") // admin or crash shutdown, cannot connect now
+            || sqlState.equals("25006"); // read-only transaction
+    }
+    
+    private void record(boolean failed) {
+        if (!failed && state == State.CLOSED && failures == 0 && calls == window.length) {
+            return; // A full window of successes stays the same
+        }
+        
+        lock.lock();
+        try {
+            switch (state) {
+                case CLOSED -> {
+                    if (calls == window.length) {
+                        failures -= window[next] ? 1 : 0;
+                    } else {
+                        calls++;
+                    }
+                    window[next] = failed;
+                    failures += failed ? 1 : 0;
+                    next = (next + 1) % window.length;
+                    if (calls >= minimumCalls && failures * 100 >= failureRatePercent * calls) {
+                        open();
+                    }
+                }
+                case HALF_OPEN -> {
+                    if (failed) {
+                        open();
+                    } else if (++probesSucceeded >= halfOpenProbes) {
+                        transition(State.CLOSED);
+                        LOGGER.info("Database circuit breaker closed");
+                    }
+                }
+                case OPEN -> {
+                    // Calls admitted before the breaker opened
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+    
+    private void open() {
+        long openMillis = TimeUnit.NANOSECONDS.toMillis(openNanos);
+        if (state == State.HALF_OPEN) {
+            LOGGER.warning("Database circuit breaker probe failed; rejecting calls for " + openMillis + " ms");
+        } else {
+            LOGGER.warning("Database circuit breaker opened after " + failures + " failures in " + calls
+                + " calls; rejecting calls for " + openMillis + " ms");
+        }
+        openUntilNanos = System.nanoTime() + openNanos;
+        transition(State.OPEN);
+    }
+    
+    private void transition(State to) {
+        state = to;
+        transitions[to.ordinal()].increment();
+        calls = 0;
+        failures = 0;
+        next = 0;
+        probesStarted = 0;
+        probesSucceeded = 0;
+    }
+}
@@ -0,0 +1,15 @@
+package me.aco.marketplace.payment.database;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * Thrown instead of waiting for a connection while the database circuit breaker is open.
+ * It is a transient connection failure, so callers that journal payments
+ * while the database is unreachable do so without waiting for a timeout.
+ */
+public class CircuitBreakerOpenException extends SQLTransientConnectionException {
+    
+    public CircuitBreakerOpenException() {
+        super("Database circuit breaker is open", "08001");
+    }
+}
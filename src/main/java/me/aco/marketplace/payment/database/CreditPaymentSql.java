@@ -0,0 +1,110 @@
+package me.aco.marketplace.payment.database;
+
+import me.aco.marketplace.payment.Money;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The single-statement payment credit, shared by TransferRepository and
+ * PipelinedPaymentStore. The SQL is written once with PostgreSQL's numbered
+ * placeholders, as the pipelined client sends it: $1 is the amount in minor
+ * units, $2 the user id and $3 the idempotency key. The JDBC form is derived
+ * from it, with one positional parameter per placeholder occurrence.
+ */
+final class CreditPaymentSql {
+    
+    private static final Pattern PLACEHOLDER = Pattern.compile("\\$(\\d+)");
+    
+    private CreditPaymentSql() {
+    }
+    
+    /**
+     * Credit a user and record the payment transfer, optionally with its
+     * idempotency key. In ledger mode the user row is only read, and the
+     * payment is appended to the ledger; the new balance is the one read
+     * plus this payment. See LedgerRepository.
+     */
+    static String of(boolean ledger, boolean withKey) {
+        StringBuilder sql = new StringBuilder("WITH credited AS (\n");
+        if (ledger) {
+            sql.append("""
+                    SELECT u.id, u.balance + $1::bigint * %1$s
+                           + COALESCE((SELECT sum(l.amount) FROM payment_ledger l WHERE l.user_id = u.id), 0) AS balance
+                    FROM users u
+                    WHERE u.id = $2 AND u.active
+                """);
+        } else {
+            sql.append("""
+                    UPDATE users SET balance = balance + $1::bigint * %1$s, updated_at = CURRENT_TIMESTAMP
+                    WHERE id = $2 AND active
+                    RETURNING id, balance
+                """);
+        }
+        sql.append("""
+            ), transfer AS (
+                INSERT INTO transfers (amount, transfer_type)
+                SELECT $1::bigint * %1$s, 'PAYMENT' FROM credited
+                RETURNING id, amount
+            ), payment AS (
+                INSERT INTO payment_transfers (id, user_id)
+                SELECT transfer.id, credited.id FROM transfer, credited
+            """);
+        if (ledger) {
+            sql.append("""
+                ), ledger AS (
+                    INSERT INTO payment_ledger (transfer_id, user_id, amount)
+                    SELECT transfer.id, credited.id, transfer.amount FROM transfer, credited
+                """);
+        }
+        if (withKey) {
+            sql.append("""
+                ), idempotency AS (
+                    INSERT INTO payment_idempotency_keys (idempotency_key, transfer_id, user_id, amount, new_balance)
+                    SELECT $3, transfer.id, credited.id, transfer.amount, credited.balance FROM transfer, credited
+                """);
+        }
+        sql.append("""
+            )
+            SELECT transfer.id AS transfer_id, credited.balance AS balance
+            FROM transfer, credited
+            """);
+        return sql.toString().formatted(Money.SQL_UNIT);
+    }
+    
+    /**
+     * JDBC form of a statement with numbered placeholders.
+     */
+    static Jdbc jdbc(String sql) {
+        Matcher matcher = PLACEHOLDER.matcher(sql);
+        StringBuilder jdbcSql = new StringBuilder(sql.length());
+        List<Integer> parameters = new ArrayList<>();
+        while (matcher.find()) {
+            parameters.add(Integer.parseInt(matcher.group(1)));
+            matcher.appendReplacement(jdbcSql, "?");
+        }
+        matcher.appendTail(jdbcSql);
+        return new Jdbc(jdbcSql.toString(), parameters.stream().mapToInt(Integer::intValue).toArray());
+    }
+    
+    /**
+     * Statement with positional parameters.
+     * 
+     * @param parameters Placeholder number of each positional parameter
+     */
+    record Jdbc(String sql, int[] parameters) {
+        
+        /**
+         * Bind the values of the numbered placeholders, $1 first.
+         */
+        void bind(PreparedStatement stmt, Object... values) throws SQLException {
+            for (int i = 0; i < parameters.length; i++) {
+                stmt.setObject(i + 1, values[parameters[i] - 1]);
+            }
+        }
+    }
+}
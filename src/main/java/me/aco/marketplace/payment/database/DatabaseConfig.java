@@ -2,8 +2,23 @@ package me.aco.marketplace.payment.database;
 
 import com.zaxxer.hikari.HikariConfig;
 import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+import me.aco.marketplace.payment.Settings;
 
 import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Database configuration for PostgreSQL connection.
@@ -11,56 +26,271 @@ import javax.sql.DataSource;
  */
 public class DatabaseConfig {
     
-    private static HikariDataSource dataSource;
+    /**
+     * Current pool. Read without locking on every request; only creation,
+     * reconfiguration and close take the lifecycle lock.
+     */
+    private static volatile HikariDataSource dataSource;
+    private static final ReentrantLock lifecycleLock = new ReentrantLock();
+    private static final long RETIRE_TIMEOUT_SECONDS = 60;
+    private static final PoolMetrics poolMetrics = new PoolMetrics();
+    private static final CircuitBreaker circuitBreaker = CircuitBreaker.fromSettings();
+    private static final DataSource guardedDataSource =
+        circuitBreaker != null ? new GuardedDataSource(circuitBreaker) : null;
+    private static AdaptivePoolSizer adaptivePoolSizer;
     
     /**
-     * Get or create the DataSource singleton.
-     * Connection details are read from environment variables.
+     * Number of times the pool was reconfigured, guarded by the lifecycle lock.
+     * Each pool gets its own name, so its JMX beans never collide with those
+     * of the pool it replaces, which are unregistered when that one closes.
      */
-    public static synchronized DataSource getDataSource() {
-        if (dataSource == null) {
-            HikariConfig config = new HikariConfig();
-            
-            // Read from environment variables (set in local.settings.json or Azure config)
-            String jdbcUrl = System.getenv("DB_URL");
-            String username = System.getenv("DB_USERNAME");
-            String password = System.getenv("DB_PASSWORD");
-            
-            // Default values for local development
-            if (jdbcUrl == null) {
-                jdbcUrl = "jdbc:postgresql://localhost:5432/marketplace";
-            }
-            if (username == null) {
-                username = "postgres";
+    private static int generation;
+    
+    /**
+     * Get the DataSource singleton.
+     * Connection details are read from environment variables. Unless
+     * DB_BREAKER_ENABLED is false, connections are borrowed through the
+     * circuit breaker, and the pool is created on the first borrow.
+     */
+    public static DataSource getDataSource() {
+        return guardedDataSource != null ? guardedDataSource : pool();
+    }
+    
+    /**
+     * Get the DataSource for reads that tolerate replication lag.
+     * When DB_REPLICA_URL is set, connections come from the read replica
+     * while it is within DB_REPLICA_MAX_LAG_MS of the primary; otherwise,
+     * and always without a replica, they come from {@link #getDataSource()}.
+     * Writes, and reads that must see them, stay on getDataSource().
+     */
+    public static DataSource getReadDataSource() {
+        ReplicaRouter router = ReplicaHolder.INSTANCE;
+        return router != null ? router : getDataSource();
+    }
+    
+    /**
+     * Get or create the pool itself, bypassing the circuit breaker.
+     */
+    static HikariDataSource pool() {
+        HikariDataSource current = dataSource;
+        if (current != null) {
+            return current;
+        }
+        
+        lifecycleLock.lock();
+        try {
+            if (dataSource == null) {
+                dataSource = createDataSource(generation);
             }
-            if (password == null) {
-                password = "postgres";
+            return dataSource;
+        } finally {
+            lifecycleLock.unlock();
+        }
+    }
+    
+    /**
+     * Replace the pool with one built from the current settings.
+     * New requests get the new pool immediately. The old pool is closed in
+     * the background once its borrowed connections have been returned, so
+     * in-flight transactions are not aborted. The new pool is named
+     * DB_POOL_NAME with the generation appended, e.g. payment-pool-1.
+     */
+    public static void reconfigure() {
+        HikariDataSource previous;
+        lifecycleLock.lock();
+        try {
+            previous = dataSource;
+            dataSource = createDataSource(++generation);
+        } finally {
+            lifecycleLock.unlock();
+        }
+        
+        if (previous != null) {
+            retire(previous);
+        }
+    }
+    
+    private static void retire(HikariDataSource previous) {
+        Thread retirer = new Thread(() -> {
+            HikariPoolMXBean poolStats = previous.getHikariPoolMXBean();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(RETIRE_TIMEOUT_SECONDS);
+            try {
+                while (poolStats != null && poolStats.getActiveConnections() > 0 && System.nanoTime() < deadline) {
+                    Thread.sleep(100);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-            
-            config.setJdbcUrl(jdbcUrl);
-            config.setUsername(username);
-            config.setPassword(password);
-            
-            // Connection pool settings optimized for serverless
-            config.setMaximumPoolSize(5);
-            config.setMinimumIdle(1);
-            config.setConnectionTimeout(10000);
-            config.setIdleTimeout(300000);
-            config.setMaxLifetime(600000);
-            
-            dataSource = new HikariDataSource(config);
+            previous.close();
+        }, "datasource-retire");
+        retirer.setDaemon(true);
+        retirer.start();
+    }
+    
+    private static HikariDataSource createDataSource(int generation) {
+        HikariConfig config = new HikariConfig();
+        
+        // Read from environment variables (set in local.settings.json or Azure config)
+        String jdbcUrl = Settings.get("DB_URL", "jdbc:postgresql://localhost:5432/marketplace");
+        String username = Settings.get("DB_USERNAME", "postgres");
+        String password = Settings.get("DB_PASSWORD", "postgres");
+        
+        config.setJdbcUrl(jdbcUrl);
+        config.setUsername(username);
+        config.setPassword(password);
+        
+        // Connection pool settings, defaults optimized for serverless
+        int maximumPoolSize = Settings.getInt("DB_POOL_MAX_SIZE", 5);
+        int minimumIdle = Settings.getInt("DB_POOL_MIN_IDLE", 1);
+        String poolName = Settings.get("DB_POOL_NAME", "payment-pool");
+        config.setPoolName(generation == 0 ? poolName : poolName + "-" + generation);
+        config.setMaximumPoolSize(maximumPoolSize);
+        config.setMinimumIdle(minimumIdle);
+        config.setInitializationFailTimeout(Settings.getLong("DB_INITIALIZATION_FAIL_TIMEOUT_MS", 1));
+        applyPoolSettings(config);
+        
+        // Metrics: acquire latency, usage and timeouts, plus JMX beans
+        config.setMetricsTrackerFactory(poolMetrics);
+        config.setRegisterMbeans(true);
+        
+        if (circuitBreaker != null) {
+            config.setExceptionOverrideClassName(BreakerExceptionOverride.class.getName());
         }
         
+        if (adaptivePoolSizer == null && Settings.getBoolean("DB_POOL_ADAPTIVE", false)) {
+            adaptivePoolSizer = new AdaptivePoolSizer(
+                poolMetrics,
+                Settings.getInt("DB_POOL_ADAPTIVE_MIN_SIZE", minimumIdle),
+                Settings.getInt("DB_POOL_ADAPTIVE_MAX_SIZE", maximumPoolSize * 4),
+                minimumIdle,
+                Settings.getLong("DB_POOL_ADAPTIVE_TARGET_ACQUIRE_MS", 5)
+            );
+            adaptivePoolSizer.start(Settings.getLong("DB_POOL_ADAPTIVE_INTERVAL_MS", 10000));
+        }
+        
+        return new HikariDataSource(config);
+    }
+    
+    /**
+     * Timeouts and statement cache settings shared by the primary and the replica pool.
+     */
+    static void applyPoolSettings(HikariConfig config) {
+        config.setConnectionTimeout(Settings.getLong("DB_CONNECTION_TIMEOUT_MS", 10000));
+        config.setIdleTimeout(Settings.getLong("DB_IDLE_TIMEOUT_MS", 300000));
+        config.setMaxLifetime(Settings.getLong("DB_MAX_LIFETIME_MS", 600000));
+        config.setKeepaliveTime(Settings.getLong("DB_KEEPALIVE_TIME_MS", 0));
+        config.setValidationTimeout(Settings.getLong("DB_VALIDATION_TIMEOUT_MS", 5000));
+        config.setLeakDetectionThreshold(Settings.getLong("DB_LEAK_DETECTION_THRESHOLD_MS", 0));
+        
+        // pgJDBC keeps a per-connection cache of prepared statements keyed by SQL text.
+        // Pooled connections live for minutes, so hot statements switch to named
+        // server-side statements (parsed and planned once) after prepareThreshold uses.
+        // Use 0 behind a transaction-mode PgBouncer, which cannot keep named statements.
+        config.addDataSourceProperty("prepareThreshold", Settings.getInt("DB_PREPARE_THRESHOLD", 1));
+        config.addDataSourceProperty("preparedStatementCacheQueries", Settings.getInt("DB_PREPARED_STATEMENT_CACHE_QUERIES", 256));
+        config.addDataSourceProperty("preparedStatementCacheSizeMiB", Settings.getInt("DB_PREPARED_STATEMENT_CACHE_SIZE_MIB", 5));
+    }
+    
+    /**
+     * Metrics of the connection pool: acquire latency, timeouts, pending threads and utilization.
+     */
+    public static PoolMetrics poolMetrics() {
+        return poolMetrics;
+    }
+    
+    /**
+     * The circuit breaker in front of the pool, or null when DB_BREAKER_ENABLED is false.
+     */
+    public static CircuitBreaker circuitBreaker() {
+        return circuitBreaker;
+    }
+    
+    /**
+     * The read replica router, or null when DB_REPLICA_URL is not set.
+     */
+    public static ReplicaRouter replicaRouter() {
+        return ReplicaHolder.INSTANCE;
+    }
+    
+    /**
+     * The current pool, without creating one.
+     */
+    static HikariDataSource currentPool() {
         return dataSource;
     }
     
+    /**
+     * Warm up the pool before the first request.
+     * Borrows the minimum idle number of connections at the same time, so
+     * each one is a distinct physical connection, and runs the preparation
+     * on every connection in parallel.
+     */
+    public static void warmUp(ConnectionCallback preparation) throws SQLException, InterruptedException {
+        HikariDataSource pool = pool();
+        int connections = Math.max(1, pool.getMinimumIdle());
+        long timeoutMillis = pool.getConnectionTimeout();
+        
+        CountDownLatch borrowed = new CountDownLatch(connections);
+        List<Callable<Void>> tasks = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            tasks.add(() -> {
+                try (Connection conn = pool.getConnection()) {
+                    borrowed.countDown();
+                    preparation.accept(conn);
+                    // Hold the connection until all are borrowed
+                    borrowed.await(timeoutMillis, TimeUnit.MILLISECONDS);
+                }
+                return null;
+            });
+        }
+        
+        ExecutorService executor = Executors.newFixedThreadPool(connections);
+        try {
+            for (Future<Void> result : executor.invokeAll(tasks)) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof SQLException sqlException) {
+                        throw sqlException;
+                    }
+                    throw new SQLException("Pool warm-up failed", e.getCause());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+    
     /**
      * Close the datasource (call this on shutdown if needed)
      */
-    public static synchronized void close() {
-        if (dataSource != null && !dataSource.isClosed()) {
-            dataSource.close();
+    public static void close() {
+        HikariDataSource previous;
+        lifecycleLock.lock();
+        try {
+            previous = dataSource;
             dataSource = null;
+        } finally {
+            lifecycleLock.unlock();
         }
+        
+        if (previous != null && !previous.isClosed()) {
+            previous.close();
+        }
+    }
+    
+    /**
+     * Created on the first read, so workers that only write never connect to the replica.
+     */
+    private static class ReplicaHolder {
+        static final ReplicaRouter INSTANCE = ReplicaRouter.fromSettings();
+    }
+    
+    /**
+     * Work to run on a pooled connection.
+     */
+    @FunctionalInterface
+    public interface ConnectionCallback {
+        void accept(Connection connection) throws SQLException;
     }
 }
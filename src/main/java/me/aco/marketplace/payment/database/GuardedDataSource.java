@@ -0,0 +1,93 @@
+package me.aco.marketplace.payment.database;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLTransientConnectionException;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * The DataSource handed out by DatabaseConfig: the current pool behind the
+ * circuit breaker. Every borrow asks the breaker first and reports whether
+ * a connection could be had, so while the database is down callers are
+ * turned away at once instead of each waiting for the connection timeout.
+ * A pool that cannot be created, because the database is down when the
+ * instance starts, counts as a failure too. Failures of statements on
+ * borrowed connections are reported by {@link BreakerExceptionOverride}.
+ */
+class GuardedDataSource implements DataSource {
+    
+    private final CircuitBreaker breaker;
+    private final Supplier<? extends DataSource> pool;
+    
+    GuardedDataSource(CircuitBreaker breaker) {
+        this(breaker, DatabaseConfig::pool);
+    }
+    
+    GuardedDataSource(CircuitBreaker breaker, Supplier<? extends DataSource> pool) {
+        this.breaker = breaker;
+        this.pool = pool;
+    }
+    
+    @Override
+    public Connection getConnection() throws SQLException {
+        breaker.acquirePermission();
+        try {
+            Connection connection = pool.get().getConnection();
+            breaker.onSuccess();
+            return connection;
+        } catch (SQLException e) {
+            breaker.onFailure(e);
+            throw e;
+        } catch (RuntimeException e) {
+            // Hikari fails pool initialization with an unchecked exception
+            SQLException failure = new SQLTransientConnectionException(
+                "Database pool unavailable: " + e.getMessage(), e);
+            breaker.onFailure(failure);
+            throw failure;
+        }
+    }
+    
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Credentials are configured on the pool");
+    }
+    
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return pool.get().getLogWriter();
+    }
+    
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        pool.get().setLogWriter(out);
+    }
+    
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        pool.get().setLoginTimeout(seconds);
+    }
+    
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return pool.get().getLoginTimeout();
+    }
+    
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return pool.get().getParentLogger();
+    }
+    
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        return type.isInstance(this) ? type.cast(this) : pool.get().unwrap(type);
+    }
+    
+    @Override
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || pool.get().isWrapperFor(type);
+    }
+}
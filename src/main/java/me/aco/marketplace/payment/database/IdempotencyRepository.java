@@ -0,0 +1,133 @@
+package me.aco.marketplace.payment.database;
+
+import me.aco.marketplace.payment.PaymentResult;
+
+import java.math.BigDecimal;
+import java.sql.*;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Repository for idempotency keys of processed payments.
+ * Handles payment_idempotency_keys table.
+ */
+public class IdempotencyRepository {
+    
+    private final Connection connection;
+    
+    public IdempotencyRepository(Connection connection) {
+        this.connection = connection;
+    }
+    
+    /**
+     * Record the result of a payment under its idempotency key.
+     * Must run in the same transaction as the payment itself. If another
+     * transaction holds the same key, this waits for it to finish.
+     * 
+     * @return false if the key was already recorded by a committed payment
+     */
+    public boolean save(String idempotencyKey, PaymentResult result) throws SQLException {
+        String sql = """
+            INSERT INTO payment_idempotency_keys (idempotency_key, transfer_id, user_id, amount, new_balance)
+            VALUES (?, ?, ?, ?, ?)
+            ON CONFLICT (idempotency_key) DO NOTHING
+            """;
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, idempotencyKey);
+            stmt.setLong(2, result.transferId());
+            stmt.setLong(3, result.userId());
+            stmt.setBigDecimal(4, result.amount());
+            stmt.setBigDecimal(5, result.newBalance());
+            return stmt.executeUpdate() == 1;
+        }
+    }
+    
+    /**
+     * Record the results of several payments under their idempotency keys
+     * with one multi-row insert. Must run in the same transaction as the
+     * payments; keys held by other transactions are waited for.
+     * 
+     * @return the number of keys recorded; keys already recorded by a committed payment are not counted
+     */
+    public int saveAll(List<String> idempotencyKeys, List<PaymentResult> results) throws SQLException {
+        String sql = """
+            INSERT INTO payment_idempotency_keys (idempotency_key, transfer_id, user_id, amount, new_balance)
+            SELECT * FROM unnest(?::varchar[], ?::bigint[], ?::bigint[], ?::numeric[], ?::numeric[])
+            ON CONFLICT (idempotency_key) DO NOTHING
+            """;
+        
+        Long[] transferIds = new Long[results.size()];
+        Long[] userIds = new Long[results.size()];
+        BigDecimal[] amounts = new BigDecimal[results.size()];
+        BigDecimal[] newBalances = new BigDecimal[results.size()];
+        for (int i = 0; i < results.size(); i++) {
+            PaymentResult result = results.get(i);
+            transferIds[i] = result.transferId();
+            userIds[i] = result.userId();
+            amounts[i] = result.amount();
+            newBalances[i] = result.newBalance();
+        }
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setArray(1, connection.createArrayOf("varchar", idempotencyKeys.toArray()));
+            stmt.setArray(2, connection.createArrayOf("bigint", transferIds));
+            stmt.setArray(3, connection.createArrayOf("bigint", userIds));
+            stmt.setArray(4, connection.createArrayOf("numeric", amounts));
+            stmt.setArray(5, connection.createArrayOf("numeric", newBalances));
+            return stmt.executeUpdate();
+        }
+    }
+    
+    /**
+     * Find which of the given idempotency keys are already recorded.
+     */
+    public Set<String> findExistingKeys(Collection<String> idempotencyKeys) throws SQLException {
+        String sql = "SELECT idempotency_key FROM payment_idempotency_keys WHERE idempotency_key = ANY(?)";
+        
+        Set<String> existing = new HashSet<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setArray(1, connection.createArrayOf("varchar", idempotencyKeys.toArray()));
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    existing.add(rs.getString("idempotency_key"));
+                }
+            }
+        }
+        
+        return existing;
+    }
+    
+    /**
+     * Get the stored result of the payment recorded under an idempotency key.
+     */
+    public PaymentResult findByKey(String idempotencyKey) throws SQLException {
+        String sql = """
+            SELECT transfer_id, user_id, amount, new_balance, created_at
+            FROM payment_idempotency_keys
+            WHERE idempotency_key = ?
+            """;
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, idempotencyKey);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return new PaymentResult(
+                        rs.getLong("transfer_id"),
+                        rs.getLong("user_id"),
+                        rs.getBigDecimal("amount"),
+                        rs.getBigDecimal("new_balance"),
+                        rs.getTimestamp("created_at").toLocalDateTime(),
+                        "SUCCESS"
+                    );
+                }
+            }
+        }
+        
+        return null;
+    }
+}
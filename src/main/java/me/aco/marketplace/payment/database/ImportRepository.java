@@ -0,0 +1,228 @@
+package me.aco.marketplace.payment.database;
+
+import java.math.BigDecimal;
+import java.sql.*;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import me.aco.marketplace.payment.Money;
+
+/**
+ * Repository for bulk payment imports.
+ * Handles the payment_imports table and a per-transaction staging table
+ * that is loaded with COPY and applied with set-based statements.
+ * All methods must run in one transaction.
+ */
+public class ImportRepository {
+    
+    private static final String APPLY_SQL = """
+        WITH valid AS (
+            SELECT s.user_id, s.amount, nextval(pg_get_serial_sequence('transfers', 'id')) AS transfer_id
+            FROM payment_import_staging s
+            JOIN users u ON u.id = s.user_id AND u.active
+        ), transfer AS (
+            INSERT INTO transfers (id, amount, transfer_type) OVERRIDING SYSTEM VALUE
+            SELECT transfer_id, amount, 'PAYMENT' FROM valid
+        ), payment AS (
+            INSERT INTO payment_transfers (id, user_id)
+            SELECT transfer_id, user_id FROM valid
+        ), credited AS (
+            UPDATE users SET balance = balance + totals.amount, updated_at = CURRENT_TIMESTAMP
+            FROM (SELECT user_id, SUM(amount) AS amount FROM valid GROUP BY user_id) totals
+            WHERE users.id = totals.user_id
+        )
+        SELECT COUNT(*) AS imported, COALESCE(SUM(amount), 0) AS total FROM valid
+        """;
+    
+    private final Connection connection;
+    
+    public ImportRepository(Connection connection) {
+        this.connection = connection;
+    }
+    
+    /**
+     * Record an import by name.
+     * 
+     * @return false if an import with this name was already committed
+     */
+    public boolean claim(String name) throws SQLException {
+        String sql = "INSERT INTO payment_imports (name) VALUES (?) ON CONFLICT (name) DO NOTHING";
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setString(1, name);
+            return stmt.executeUpdate() == 1;
+        }
+    }
+    
+    /**
+     * Create the staging table, dropped automatically at commit.
+     */
+    public void createStaging() throws SQLException {
+        String sql = """
+            CREATE TEMP TABLE payment_import_staging (
+                line_no BIGINT NOT NULL,
+                user_id BIGINT NOT NULL,
+                amount  DECIMAL(19, 2) NOT NULL
+            ) ON COMMIT DROP
+            """;
+        
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+    
+    /**
+     * Start streaming rows into the staging table.
+     */
+    public StagingCopy openStagingCopy() throws SQLException {
+        String sql = "COPY payment_import_staging (line_no, user_id, amount) FROM STDIN WITH (FORMAT text)";
+        return new StagingCopy(connection.unwrap(PGConnection.class).getCopyAPI().copyIn(sql));
+    }
+    
+    /**
+     * Lock every staged user in id order and refresh the planner statistics
+     * of the staging table, which temporary tables don't get from autovacuum.
+     */
+    public void lockStagedUsers() throws SQLException {
+        String sql = """
+            SELECT COUNT(*) FROM (
+                SELECT id FROM users
+                WHERE id IN (SELECT user_id FROM payment_import_staging)
+                ORDER BY id
+                FOR UPDATE
+            ) locked
+            """;
+        
+        try (Statement stmt = connection.createStatement()) {
+            stmt.execute("ANALYZE payment_import_staging");
+            stmt.executeQuery(sql).close();
+        }
+    }
+    
+    /**
+     * Report staged rows whose user is unknown or inactive, in line order.
+     */
+    public void findRejections(RejectionHandler handler) throws SQLException {
+        String sql = """
+            SELECT s.line_no, s.user_id, u.id IS NULL AS missing
+            FROM payment_import_staging s
+            LEFT JOIN users u ON u.id = s.user_id
+            WHERE u.id IS NULL OR NOT u.active
+            ORDER BY s.line_no
+            """;
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setFetchSize(1000);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    handler.accept(rs.getLong("line_no"), rs.getLong("user_id"), rs.getBoolean("missing"));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Create a transfer for every staged row of an active user and credit
+     * each user once with the sum of their rows, in a single statement.
+     */
+    public AppliedImport apply() throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(APPLY_SQL);
+             ResultSet rs = stmt.executeQuery()) {
+            rs.next();
+            return new AppliedImport(rs.getLong("imported"), rs.getBigDecimal("total"));
+        }
+    }
+    
+    /**
+     * Store the outcome of a claimed import.
+     */
+    public void complete(String name, long importedRows, long rejectedRows, BigDecimal totalAmount) throws SQLException {
+        String sql = """
+            UPDATE payment_imports
+            SET imported_rows = ?, rejected_rows = ?, total_amount = ?
+            WHERE name = ?
+            """;
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setLong(1, importedRows);
+            stmt.setLong(2, rejectedRows);
+            stmt.setBigDecimal(3, totalAmount);
+            stmt.setString(4, name);
+            stmt.executeUpdate();
+        }
+    }
+    
+    /**
+     * Receives staged rows that could not be applied.
+     */
+    @FunctionalInterface
+    public interface RejectionHandler {
+        void accept(long lineNumber, long userId, boolean missing) throws SQLException;
+    }
+    
+    /**
+     * Outcome of {@link #apply()}.
+     */
+    public record AppliedImport(long importedRows, BigDecimal totalAmount) {
+    }
+    
+    /**
+     * Buffered writer for the COPY stream of the staging table.
+     * Rows are encoded in COPY text format into a fixed buffer and sent
+     * when it fills, so memory does not grow with the number of rows.
+     */
+    public static class StagingCopy implements AutoCloseable {
+        
+        private static final int BUFFER_SIZE = 64 * 1024;
+        
+        private final CopyIn copyIn;
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final StringBuilder row = new StringBuilder(64);
+        private int length;
+        
+        private StagingCopy(CopyIn copyIn) {
+            this.copyIn = copyIn;
+        }
+        
+        public void add(long lineNumber, long userId, long amountMinor) throws SQLException {
+            row.setLength(0);
+            Money.appendTo(row.append(lineNumber).append('\t').append(userId).append('\t'), amountMinor).append('\n');
+            if (length + row.length() > buffer.length) {
+                flush();
+            }
+            // The row is ASCII, so each char is one byte
+            for (int i = 0; i < row.length(); i++) {
+                buffer[length++] = (byte) row.charAt(i);
+            }
+        }
+        
+        /**
+         * Send the remaining rows and end the COPY.
+         * 
+         * @return the number of rows loaded
+         */
+        public long finish() throws SQLException {
+            flush();
+            return copyIn.endCopy();
+        }
+        
+        private void flush() throws SQLException {
+            if (length > 0) {
+                copyIn.writeToCopy(buffer, 0, length);
+                length = 0;
+            }
+        }
+        
+        /**
+         * Abort the COPY if it was not finished, so the connection can be rolled back.
+         */
+        @Override
+        public void close() throws SQLException {
+            if (copyIn.isActive()) {
+                copyIn.cancelCopy();
+            }
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package me.aco.marketplace.payment.database;
+
+import me.aco.marketplace.payment.PaymentResult;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * PaymentStore on the blocking JDBC repositories.
+ * Each operation borrows a pooled connection on a virtual thread, so the
+ * caller never blocks, but every statement still holds a connection for
+ * its full round-trip.
+ */
+public class JdbcPaymentStore implements PaymentStore {
+    
+    private final DataSource dataSource;
+    private final ExecutorService executor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("payment-store-", 0).factory());
+    
+    public JdbcPaymentStore(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+    
+    @Override
+    public CompletableFuture<TransferRepository.CreditedPayment> creditPayment(Long userId, long amountMinor,
+            String idempotencyKey) {
+        return run(conn -> {
+            TransferRepository transferRepo = new TransferRepository(conn);
+            return idempotencyKey == null
+                ? transferRepo.creditPayment(userId, amountMinor)
+                : transferRepo.creditPayment(userId, amountMinor, idempotencyKey);
+        });
+    }
+    
+    @Override
+    public CompletableFuture<UserRepository.UserStatus> findStatus(Long userId) {
+        return run(conn -> new UserRepository(conn).findStatus(userId));
+    }
+    
+    @Override
+    public CompletableFuture<PaymentResult> findByKey(String idempotencyKey) {
+        return run(conn -> new IdempotencyRepository(conn).findByKey(idempotencyKey));
+    }
+    
+    private <T> CompletableFuture<T> run(ConnectionWork<T> work) {
+        return CompletableFuture.supplyAsync(() -> {
+            try (Connection conn = dataSource.getConnection()) {
+                return work.apply(conn);
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+    
+    @FunctionalInterface
+    private interface ConnectionWork<T> {
+        T apply(Connection connection) throws SQLException;
+    }
+}
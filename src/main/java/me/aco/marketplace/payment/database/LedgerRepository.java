@@ -0,0 +1,162 @@
+package me.aco.marketplace.payment.database;
+
+import me.aco.marketplace.payment.Money;
+import me.aco.marketplace.payment.Settings;
+
+import java.sql.*;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Repository for the payment ledger.
+ * In ledger mode payments append to payment_ledger instead of updating
+ * users.balance, so concurrent payments to the same user never wait for
+ * each other's row lock. A user's balance is users.balance, the last
+ * snapshot, plus the entries that have not been folded into it yet.
+ */
+public class LedgerRepository {
+    
+    /**
+     * True when PAYMENT_BALANCE_MODE is ledger; the default, row, updates users.balance directly.
+     */
+    public static final boolean ENABLED =
+        "ledger".equalsIgnoreCase(Settings.get("PAYMENT_BALANCE_MODE", "row").trim());
+    
+    private static final String FIND_STATUSES_SQL = """
+        SELECT u.id, u.active,
+               u.balance + COALESCE((SELECT sum(l.amount) FROM payment_ledger l WHERE l.user_id = u.id), 0) AS balance
+        FROM users u
+        WHERE u.id = ANY(?)
+        """;
+    
+    private static final String FIND_STATUSES_FOR_UPDATE_SQL = FIND_STATUSES_SQL + """
+        ORDER BY u.id
+        FOR UPDATE OF u
+        """;
+    
+    /**
+     * Folds the oldest entries into the users they belong to and deletes them
+     * in one statement, so a concurrent read sees each entry exactly once:
+     * either in the ledger or in the snapshot. Users are locked in id order.
+     */
+    private static final String COMPACT_SQL = """
+        WITH folded AS (
+            DELETE FROM payment_ledger
+            WHERE transfer_id IN (
+                SELECT transfer_id FROM payment_ledger
+                ORDER BY transfer_id
+                LIMIT ?
+                FOR UPDATE SKIP LOCKED
+            )
+            RETURNING user_id, amount
+        ), totals AS (
+            SELECT user_id, sum(amount) AS total FROM folded GROUP BY user_id
+        ), locked AS (
+            SELECT u.id, totals.total FROM users u JOIN totals ON totals.user_id = u.id
+            ORDER BY u.id
+            FOR NO KEY UPDATE OF u
+        ), snapshot AS (
+            UPDATE users SET balance = users.balance + locked.total, updated_at = CURRENT_TIMESTAMP
+            FROM locked
+            WHERE users.id = locked.id
+        )
+        SELECT count(*) AS entries FROM folded
+        """;
+    
+    private final Connection connection;
+    
+    public LedgerRepository(Connection connection) {
+        this.connection = connection;
+    }
+    
+    /**
+     * Find the status of several users without locking them.
+     * Balances include the entries not yet folded into the snapshot.
+     */
+    public Map<Long, UserRepository.UserStatus> findStatuses(Collection<Long> userIds) throws SQLException {
+        return findStatuses(FIND_STATUSES_SQL, userIds);
+    }
+    
+    /**
+     * Find and lock the status of several users, with balances including the
+     * ledger tail. Rows are locked in id order so concurrent transactions
+     * cannot deadlock, and compaction of these users waits for the lock.
+     */
+    public Map<Long, UserRepository.UserStatus> findStatusesForUpdate(Collection<Long> userIds) throws SQLException {
+        return findStatuses(FIND_STATUSES_FOR_UPDATE_SQL, userIds);
+    }
+    
+    /**
+     * Find the status of a user, with the balance including the ledger tail.
+     * 
+     * @return the status, or null when the user does not exist
+     */
+    public UserRepository.UserStatus findStatus(Long userId) throws SQLException {
+        return findStatuses(List.of(userId)).get(userId);
+    }
+    
+    /**
+     * Append one entry per transfer with a single multi-row insert.
+     */
+    public void append(List<Long> transferIds, long[] userIds, long[] amountsMinor) throws SQLException {
+        String sql = """
+            INSERT INTO payment_ledger (transfer_id, user_id, amount)
+            SELECT transfer_id, user_id, amount * %s
+            FROM unnest(?::bigint[], ?::bigint[], ?::bigint[]) AS e(transfer_id, user_id, amount)
+            """.formatted(Money.SQL_UNIT);
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setArray(1, connection.createArrayOf("bigint", transferIds.toArray()));
+            stmt.setArray(2, connection.createArrayOf("bigint", boxed(userIds)));
+            stmt.setArray(3, connection.createArrayOf("bigint", boxed(amountsMinor)));
+            
+            int rowsAffected = stmt.executeUpdate();
+            if (rowsAffected != transferIds.size()) {
+                throw new SQLException("Failed to append ledger entries");
+            }
+        }
+    }
+    
+    /**
+     * Fold up to limit of the oldest entries into users.balance.
+     * Entries locked by a concurrent compaction are skipped.
+     * 
+     * @return the number of entries folded
+     */
+    public long compact(int limit) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(COMPACT_SQL)) {
+            stmt.setInt(1, limit);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                return rs.next() ? rs.getLong("entries") : 0;
+            }
+        }
+    }
+    
+    private Map<Long, UserRepository.UserStatus> findStatuses(String sql, Collection<Long> userIds) throws SQLException {
+        Map<Long, UserRepository.UserStatus> statuses = new LinkedHashMap<>();
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setArray(1, connection.createArrayOf("bigint", userIds.toArray()));
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    UserRepository.UserStatus status = new UserRepository.UserStatus(
+                        rs.getLong("id"), rs.getBoolean("active"), rs.getBigDecimal("balance"));
+                    statuses.put(status.id(), status);
+                }
+            }
+        }
+        
+        return statuses;
+    }
+    
+    static Long[] boxed(long[] values) {
+        Long[] boxed = new Long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            boxed[i] = values[i];
+        }
+        return boxed;
+    }
+}
@@ -0,0 +1,73 @@
+package me.aco.marketplace.payment.database;
+
+import me.aco.marketplace.payment.PaymentResult;
+import me.aco.marketplace.payment.Settings;
+
+import java.sql.SQLException;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Asynchronous data access for single payments, extracted from
+ * UserRepository, TransferRepository and IdempotencyRepository.
+ * Every operation is one auto-committed statement, so implementations
+ * are free to pipeline statements from many payments on few connections.
+ * 
+ * Futures complete exceptionally with an SQLException; a failure to reach
+ * the database is reported as an SQLTransientConnectionException.
+ */
+public interface PaymentStore {
+    
+    /**
+     * SQLState of a unique violation, reported when an idempotency key is already recorded.
+     */
+    String UNIQUE_VIOLATION = "23505";
+    
+    /**
+     * Credit a user and record the payment transfer in a single statement.
+     * With an idempotency key, the key is recorded by the same statement;
+     * if the key is already recorded, the whole statement fails with
+     * {@link #UNIQUE_VIOLATION} and nothing is written.
+     * 
+     * @param idempotencyKey Key to record with the payment, or null
+     * @return the transfer id and the new balance, or null when the user
+     *         does not exist or is not active
+     */
+    CompletableFuture<TransferRepository.CreditedPayment> creditPayment(Long userId, long amountMinor,
+        String idempotencyKey);
+    
+    /**
+     * Find the status of a user.
+     * 
+     * @return the status, or null when the user does not exist
+     */
+    CompletableFuture<UserRepository.UserStatus> findStatus(Long userId);
+    
+    /**
+     * Get the stored result of the payment recorded under an idempotency key.
+     */
+    CompletableFuture<PaymentResult> findByKey(String idempotencyKey);
+    
+    /**
+     * Store configured by PAYMENT_STORE: jdbc (default) runs the statements on
+     * the Hikari pool, pipelined sends them through a non-blocking client.
+     */
+    static PaymentStore fromSettings() {
+        return switch (Settings.get("PAYMENT_STORE", "jdbc").trim().toLowerCase()) {
+            case "jdbc" -> new JdbcPaymentStore(DatabaseConfig.getDataSource());
+            case "pipelined" -> PipelinedPaymentStore.fromSettings();
+            default -> throw new IllegalArgumentException("Unknown PAYMENT_STORE: " + Settings.get("PAYMENT_STORE", ""));
+        };
+    }
+    
+    /**
+     * True if the exception, or its cause, reports an idempotency key that is already recorded.
+     */
+    static boolean isDuplicateKey(Throwable error) {
+        for (Throwable e = error; e != null; e = e.getCause()) {
+            if (e instanceof SQLException sqlException && UNIQUE_VIOLATION.equals(sqlException.getSQLState())) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
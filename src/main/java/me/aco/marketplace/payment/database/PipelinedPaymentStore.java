@@ -0,0 +1,151 @@
+package me.aco.marketplace.payment.database;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import io.vertx.pgclient.PgBuilder;
+import io.vertx.pgclient.PgConnectOptions;
+import io.vertx.pgclient.PgException;
+import io.vertx.sqlclient.Pool;
+import io.vertx.sqlclient.PoolOptions;
+import io.vertx.sqlclient.Row;
+import io.vertx.sqlclient.RowIterator;
+import io.vertx.sqlclient.RowSet;
+import io.vertx.sqlclient.Tuple;
+
+import me.aco.marketplace.payment.PaymentResult;
+import me.aco.marketplace.payment.Settings;
+
+import java.net.ConnectException;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+
+/**
+ * PaymentStore on the non-blocking vertx-pg-client.
+ * Statements are written to a connection without waiting for the results
+ * of the ones before them, up to the pipelining limit, so a couple of
+ * connections carry as many concurrent payments as there are in flight
+ * and each payment costs one network round-trip but no blocked thread.
+ */
+public class PipelinedPaymentStore implements PaymentStore {
+    
+    private static final String CREDIT_PAYMENT_SQL = CreditPaymentSql.of(LedgerRepository.ENABLED, false);
+    private static final String CREDIT_PAYMENT_WITH_KEY_SQL = CreditPaymentSql.of(LedgerRepository.ENABLED, true);
+    
+    private static final String FIND_STATUS_SQL = "SELECT id, active, balance FROM users WHERE id = $1";
+    
+    private static final String FIND_BY_KEY_SQL = """
+        SELECT transfer_id, user_id, amount, new_balance, created_at
+        FROM payment_idempotency_keys
+        WHERE idempotency_key = $1
+        """;
+    
+    private final Vertx vertx;
+    private final Pool pool;
+    
+    public PipelinedPaymentStore(Vertx vertx, Pool pool) {
+        this.vertx = vertx;
+        this.pool = pool;
+    }
+    
+    /**
+     * Store connecting with DB_URL, DB_USERNAME and DB_PASSWORD.
+     * DB_ASYNC_POOL_MAX_SIZE connections (default 2) are shared by all
+     * payments, each with up to DB_PIPELINING_LIMIT statements in flight
+     * (default 256), served by DB_ASYNC_EVENT_LOOPS threads (default 1).
+     */
+    public static PipelinedPaymentStore fromSettings() {
+        String jdbcUrl = Settings.get("DB_URL", "jdbc:postgresql://localhost:5432/marketplace");
+        PgConnectOptions connectOptions = PgConnectOptions.fromUri(jdbcUrl.replaceFirst("^jdbc:", ""))
+            .setUser(Settings.get("DB_USERNAME", "postgres"))
+            .setPassword(Settings.get("DB_PASSWORD", "postgres"))
+            .setPipeliningLimit(Settings.getInt("DB_PIPELINING_LIMIT", 256))
+            .setCachePreparedStatements(true);
+        
+        Vertx vertx = Vertx.vertx(new VertxOptions().setEventLoopPoolSize(Settings.getInt("DB_ASYNC_EVENT_LOOPS", 1)));
+        Pool pool = PgBuilder.pool()
+            .with(new PoolOptions().setMaxSize(Settings.getInt("DB_ASYNC_POOL_MAX_SIZE", 2)))
+            .connectingTo(connectOptions)
+            .using(vertx)
+            .build();
+        return new PipelinedPaymentStore(vertx, pool);
+    }
+    
+    @Override
+    public CompletableFuture<TransferRepository.CreditedPayment> creditPayment(Long userId, long amountMinor,
+            String idempotencyKey) {
+        Future<RowSet<Row>> rows = idempotencyKey == null
+            ? pool.preparedQuery(CREDIT_PAYMENT_SQL).execute(Tuple.of(amountMinor, userId))
+            : pool.preparedQuery(CREDIT_PAYMENT_WITH_KEY_SQL).execute(Tuple.of(amountMinor, userId, idempotencyKey));
+        return first(rows, row -> new TransferRepository.CreditedPayment(
+            row.getLong("transfer_id"),
+            row.getBigDecimal("balance")
+        ));
+    }
+    
+    @Override
+    public CompletableFuture<UserRepository.UserStatus> findStatus(Long userId) {
+        return first(pool.preparedQuery(FIND_STATUS_SQL).execute(Tuple.of(userId)), row -> new UserRepository.UserStatus(
+            row.getLong("id"),
+            row.getBoolean("active"),
+            row.getBigDecimal("balance")
+        ));
+    }
+    
+    @Override
+    public CompletableFuture<PaymentResult> findByKey(String idempotencyKey) {
+        return first(pool.preparedQuery(FIND_BY_KEY_SQL).execute(Tuple.of(idempotencyKey)), row -> new PaymentResult(
+            row.getLong("transfer_id"),
+            row.getLong("user_id"),
+            row.getBigDecimal("amount"),
+            row.getBigDecimal("new_balance"),
+            row.getLocalDateTime("created_at"),
+            "SUCCESS"
+        ));
+    }
+    
+    /**
+     * Close the pool and its event loop.
+     */
+    public void close() {
+        pool.close();
+        vertx.close();
+    }
+    
+    /**
+     * Map the first row, or complete with null when there is none.
+     */
+    private static <T> CompletableFuture<T> first(Future<RowSet<Row>> rows, Function<Row, T> mapper) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        rows.toCompletionStage().whenComplete((rowSet, error) -> {
+            if (error != null) {
+                result.completeExceptionally(toSqlException(error));
+                return;
+            }
+            try {
+                RowIterator<Row> iterator = rowSet.iterator();
+                result.complete(iterator.hasNext() ? mapper.apply(iterator.next()) : null);
+            } catch (RuntimeException e) {
+                result.completeExceptionally(e);
+            }
+        });
+        return result;
+    }
+    
+    /**
+     * Report driver errors the way the JDBC repositories do.
+     */
+    private static SQLException toSqlException(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        if (cause instanceof PgException pgException) {
+            return new SQLException(pgException.getMessage(), pgException.getSqlState(), pgException);
+        }
+        if (cause instanceof ConnectException) {
+            return new SQLTransientConnectionException(cause.getMessage(), cause);
+        }
+        return new SQLException(cause.getMessage(), cause);
+    }
+}
@@ -0,0 +1,79 @@
+package me.aco.marketplace.payment.database;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection pool metrics collected through Hikari's metrics tracker hook.
+ * Counters survive pool reconfiguration; gauges follow the current pool.
+ */
+public class PoolMetrics implements MetricsTrackerFactory {
+    
+    private final LongAdder acquireCount = new LongAdder();
+    private final LongAdder acquireNanos = new LongAdder();
+    private final LongAdder usageMillis = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    private volatile PoolStats poolStats;
+    
+    @Override
+    public IMetricsTracker create(String poolName, PoolStats poolStats) {
+        this.poolStats = poolStats;
+        return new IMetricsTracker() {
+            @Override
+            public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+                acquireCount.increment();
+                acquireNanos.add(elapsedAcquiredNanos);
+            }
+            
+            @Override
+            public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+                usageMillis.add(elapsedBorrowedMillis);
+            }
+            
+            @Override
+            public void recordConnectionTimeout() {
+                timeouts.increment();
+            }
+        };
+    }
+    
+    /**
+     * Current gauges and cumulative counters.
+     */
+    public Snapshot snapshot() {
+        PoolStats stats = poolStats;
+        return new Snapshot(
+            stats == null ? 0 : stats.getTotalConnections(),
+            stats == null ? 0 : stats.getActiveConnections(),
+            stats == null ? 0 : stats.getIdleConnections(),
+            stats == null ? 0 : stats.getPendingThreads(),
+            stats == null ? 0 : stats.getMaxConnections(),
+            acquireCount.sum(),
+            acquireNanos.sum(),
+            usageMillis.sum(),
+            timeouts.sum()
+        );
+    }
+    
+    /**
+     * Point-in-time view of the pool.
+     */
+    public record Snapshot(
+        int totalConnections,
+        int activeConnections,
+        int idleConnections,
+        int pendingThreads,
+        int maxConnections,
+        long acquireCount,
+        long acquireNanos,
+        long usageMillis,
+        long timeouts
+    ) {
+        public double utilization() {
+            return maxConnections == 0 ? 0.0 : (double) activeConnections / maxConnections;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package me.aco.marketplace.payment.database;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+import me.aco.marketplace.payment.Settings;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+
+/**
+ * The DataSource for reads, handed out by {@link DatabaseConfig#getReadDataSource()}
+ * when a read replica is configured. A background check measures how far
+ * the replica's replay is behind the primary. Connections come from a
+ * read-only pool on the replica while that lag is within the tolerance,
+ * and from the primary while it is not, while it is unknown, or when the
+ * replica cannot be reached.
+ */
+public class ReplicaRouter implements DataSource {
+    
+    private static final Logger LOGGER = Logger.getLogger(ReplicaRouter.class.getName());
+    
+    /**
+     * Zero on a primary. On a standby whose WAL receiver is not streaming,
+     * null: it may be disconnected and fall behind without replaying
+     * anything. On a standby that has replayed everything it received, the
+     * time since it last heard from the primary; otherwise the age of the
+     * last replayed transaction. Null before any replay, and when the user
+     * may not read pg_stat_wal_receiver (it needs pg_read_all_stats).
+     */
+    private static final String LAG_SQL = """
+        SELECT CASE
+            WHEN NOT pg_is_in_recovery() THEN 0
+            WHEN r.status IS DISTINCT FROM 'streaming' THEN NULL
+            WHEN pg_last_wal_receive_lsn() = pg_last_wal_replay_lsn()
+                THEN (EXTRACT(EPOCH FROM now() - r.last_msg_receipt_time) * 1000)::bigint
+            ELSE (EXTRACT(EPOCH FROM now() - pg_last_xact_replay_timestamp()) * 1000)::bigint
+        END AS lag_ms
+        FROM (SELECT 1) AS one
+        LEFT JOIN pg_stat_wal_receiver r ON true
+        """;
+    
+    /** Lag of a replica that has not been measured, or could not be */
+    private static final long UNKNOWN = Long.MAX_VALUE;
+    
+    private final long maxLagMillis;
+    private final ReentrantLock lifecycleLock = new ReentrantLock();
+    private final LongAdder replicaReads = new LongAdder();
+    private final LongAdder primaryReads = new LongAdder();
+    private volatile HikariDataSource replica;
+    private volatile long lagMillis = UNKNOWN;
+    
+    ReplicaRouter(long maxLagMillis) {
+        this.maxLagMillis = maxLagMillis;
+    }
+    
+    /**
+     * Router for the replica at DB_REPLICA_URL, checking its lag every
+     * DB_REPLICA_LAG_CHECK_INTERVAL_MS (default 1000) and reading from it
+     * while the lag is at most DB_REPLICA_MAX_LAG_MS (default 5000),
+     * or null when DB_REPLICA_URL is not set.
+     */
+    static ReplicaRouter fromSettings() {
+        if (Settings.get("DB_REPLICA_URL", "").isBlank()) {
+            return null;
+        }
+        ReplicaRouter router = new ReplicaRouter(Settings.getLong("DB_REPLICA_MAX_LAG_MS", 5_000));
+        router.start(Settings.getLong("DB_REPLICA_LAG_CHECK_INTERVAL_MS", 1_000));
+        return router;
+    }
+    
+    void start(long intervalMillis) {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "replica-lag-check");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::checkLag, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Borrow a connection on the replica if it is fresh enough, otherwise on the primary.
+     */
+    @Override
+    public Connection getConnection() throws SQLException {
+        if (fresh()) {
+            try {
+                Connection connection = replica().getConnection();
+                replicaReads.increment();
+                return connection;
+            } catch (SQLException e) {
+                // Until the next check succeeds
+                lagMillis = UNKNOWN;
+                LOGGER.warning("Read replica unavailable, reading from the primary: " + e.getMessage());
+            }
+        }
+        primaryReads.increment();
+        return DatabaseConfig.getDataSource().getConnection();
+    }
+    
+    /**
+     * True if reads currently go to the replica.
+     */
+    public boolean fresh() {
+        return lagMillis <= maxLagMillis;
+    }
+    
+    /**
+     * Last measured replication lag, or -1 if it is unknown.
+     */
+    public long lagMillis() {
+        long lag = lagMillis;
+        return lag == UNKNOWN ? -1 : lag;
+    }
+    
+    public long replicaReads() {
+        return replicaReads.sum();
+    }
+    
+    public long primaryReads() {
+        return primaryReads.sum();
+    }
+    
+    /**
+     * Record a measured lag, or null if it could not be measured.
+     */
+    void recordLag(Long measuredMillis) {
+        boolean wasFresh = fresh();
+        lagMillis = measuredMillis == null ? UNKNOWN : Math.max(0, measuredMillis);
+        if (wasFresh && !fresh()) {
+            LOGGER.warning("Read replica lag " + (measuredMillis == null ? "unknown" : measuredMillis + " ms")
+                + " exceeds " + maxLagMillis + " ms; reading from the primary");
+        } else if (!wasFresh && fresh()) {
+            LOGGER.info("Read replica lag " + measuredMillis + " ms; reading from the replica");
+        }
+    }
+    
+    private void checkLag() {
+        try (Connection conn = replica().getConnection();
+             PreparedStatement stmt = conn.prepareStatement(LAG_SQL);
+             ResultSet rs = stmt.executeQuery()) {
+            Long lag = null;
+            if (rs.next()) {
+                long value = rs.getLong("lag_ms");
+                lag = rs.wasNull() ? null : value;
+            }
+            recordLag(lag);
+        } catch (SQLException | RuntimeException e) {
+            recordLag(null);
+        }
+    }
+    
+    private HikariDataSource replica() {
+        HikariDataSource current = replica;
+        if (current != null) {
+            return current;
+        }
+        
+        lifecycleLock.lock();
+        try {
+            if (replica == null) {
+                replica = createReplica();
+            }
+            return replica;
+        } finally {
+            lifecycleLock.unlock();
+        }
+    }
+    
+    private static HikariDataSource createReplica() {
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(Settings.get("DB_REPLICA_URL", ""));
+        config.setUsername(Settings.get("DB_REPLICA_USERNAME", Settings.get("DB_USERNAME", "postgres")));
+        config.setPassword(Settings.get("DB_REPLICA_PASSWORD", Settings.get("DB_PASSWORD", "postgres")));
+        config.setPoolName(Settings.get("DB_POOL_NAME", "payment-pool") + "-replica");
+        config.setMaximumPoolSize(Settings.getInt("DB_REPLICA_POOL_MAX_SIZE", Settings.getInt("DB_POOL_MAX_SIZE", 5)));
+        config.setMinimumIdle(Settings.getInt("DB_POOL_MIN_IDLE", 1));
+        config.setReadOnly(true);
+        // Start without the replica; the lag check keeps reads on the primary until it answers
+        config.setInitializationFailTimeout(-1);
+        DatabaseConfig.applyPoolSettings(config);
+        // Give up on the replica quickly; the primary is the fallback
+        config.setConnectionTimeout(Settings.getLong("DB_REPLICA_CONNECTION_TIMEOUT_MS", 1_000));
+        return new HikariDataSource(config);
+    }
+    
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new SQLFeatureNotSupportedException("Credentials are configured on the pool");
+    }
+    
+    @Override
+    public PrintWriter getLogWriter() throws SQLException {
+        return replica().getLogWriter();
+    }
+    
+    @Override
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        replica().setLogWriter(out);
+    }
+    
+    @Override
+    public void setLoginTimeout(int seconds) throws SQLException {
+        replica().setLoginTimeout(seconds);
+    }
+    
+    @Override
+    public int getLoginTimeout() throws SQLException {
+        return replica().getLoginTimeout();
+    }
+    
+    @Override
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return replica().getParentLogger();
+    }
+    
+    @Override
+    public <T> T unwrap(Class<T> type) throws SQLException {
+        return type.isInstance(this) ? type.cast(this) : replica().unwrap(type);
+    }
+    
+    @Override
+    public boolean isWrapperFor(Class<?> type) throws SQLException {
+        return type.isInstance(this) || replica().isWrapperFor(type);
+    }
+}
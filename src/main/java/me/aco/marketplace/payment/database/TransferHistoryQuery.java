@@ -0,0 +1,56 @@
+package me.aco.marketplace.payment.database;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * One page of the payment transfer history.
+ * With a user id, pages follow the transfer id; otherwise they follow
+ * (created_at, id), so each page is a single index range scan that starts
+ * where the previous page ended.
+ * 
+ * @param userId Only transfers to this user, or null for all users
+ * @param from Inclusive lower bound of created_at, or null
+ * @param to Exclusive upper bound of created_at, or null
+ * @param after Position of the last row of the previous page, or null for the first page
+ * @param limit Maximum number of rows in the page
+ */
+public record TransferHistoryQuery(
+    Long userId,
+    LocalDateTime from,
+    LocalDateTime to,
+    Position after,
+    int limit
+) {
+    
+    /**
+     * Keyset position of a row, passed to clients as a cursor of the form
+     * {@code <id>_<created_at in epoch microseconds>}.
+     */
+    public record Position(long id, LocalDateTime createdAt) {
+        
+        public String toCursor() {
+            long micros = ChronoUnit.MICROS.between(LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC), createdAt);
+            return id + "_" + micros;
+        }
+        
+        /**
+         * @throws IllegalArgumentException if the cursor is malformed
+         */
+        public static Position fromCursor(String cursor) {
+            int separator = cursor.indexOf('_');
+            if (separator <= 0) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+            try {
+                long id = Long.parseLong(cursor.substring(0, separator));
+                long micros = Long.parseLong(cursor.substring(separator + 1));
+                LocalDateTime createdAt = LocalDateTime.ofEpochSecond(0, 0, ZoneOffset.UTC).plus(micros, ChronoUnit.MICROS);
+                return new Position(id, createdAt);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid cursor: " + cursor);
+            }
+        }
+    }
+}
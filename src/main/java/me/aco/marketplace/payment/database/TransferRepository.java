@@ -1,9 +1,18 @@
 package me.aco.marketplace.payment.database;
 
+import me.aco.marketplace.payment.AddPaymentCommand;
+import me.aco.marketplace.payment.Money;
 import me.aco.marketplace.payment.PaymentTransfer;
+import me.aco.marketplace.payment.TransferCommand;
+import me.aco.marketplace.payment.TransferType;
 
+import java.io.IOException;
 import java.math.BigDecimal;
 import java.sql.*;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * Repository for Transfer database operations.
@@ -11,12 +20,62 @@ import java.sql.*;
  */
 public class TransferRepository {
     
+    /**
+     * Amounts are bound as bigint minor units and scaled in SQL, which is exact.
+     */
+    private static final CreditPaymentSql.Jdbc CREDIT_PAYMENT_SQL =
+        CreditPaymentSql.jdbc(CreditPaymentSql.of(LedgerRepository.ENABLED, false));
+    
+    private static final CreditPaymentSql.Jdbc CREDIT_PAYMENT_WITH_KEY_SQL =
+        CreditPaymentSql.jdbc(CreditPaymentSql.of(LedgerRepository.ENABLED, true));
+    
+    /**
+     * Inserts transfers of every type and applies the balance changes of
+     * their users in one statement. Transfer ids are drawn from the
+     * sequence row by row and returned with the position of each transfer,
+     * so they map back to the commands exactly. Debited balances are checked
+     * again in SQL; a user it rejects is missing from the returned count.
+     */
+    private static final String APPLY_TRANSFERS_SQL = """
+        WITH c AS (
+            SELECT nextval(pg_get_serial_sequence('transfers', 'id')) AS id, e.*
+            FROM unnest(?::text[], ?::bigint[], ?::bigint[], ?::bigint[])
+                 WITH ORDINALITY AS e(transfer_type, user_id, seller_id, amount, ord)
+        ), transfer AS (
+            INSERT INTO transfers (id, amount, transfer_type) OVERRIDING SYSTEM VALUE
+            SELECT id, amount * %1$s, transfer_type FROM c
+        )%3$s, balances AS (
+            UPDATE users SET balance = users.balance + d.delta * %1$s, updated_at = CURRENT_TIMESTAMP
+            FROM unnest(?::bigint[], ?::bigint[]) AS d(id, delta)
+            WHERE users.id = d.id AND (d.delta >= 0 OR users.balance%2$s + d.delta * %1$s >= 0)
+            RETURNING users.id
+        )
+        SELECT c.id, (SELECT count(*) FROM balances) AS users
+        FROM c
+        ORDER BY c.ord
+        """.formatted(
+            Money.SQL_UNIT,
+            LedgerRepository.ENABLED
+                ? " + COALESCE((SELECT sum(l.amount) FROM payment_ledger l WHERE l.user_id = users.id), 0)"
+                : "",
+            childInserts()
+        );
+    
     private final Connection connection;
     
     public TransferRepository(Connection connection) {
         this.connection = connection;
     }
     
+    /**
+     * Parse the hot-path statements on this connection ahead of the first request.
+     */
+    public void prepareStatements() throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(CREDIT_PAYMENT_SQL.sql())) {
+            stmt.getParameterMetaData();
+        }
+    }
+    
     /**
      * Save a payment transfer to the database.
      * This inserts into both 'transfers' and 'payment_transfers' tables
@@ -51,6 +110,183 @@ public class TransferRepository {
         return transferId;
     }
     
+    /**
+     * Credit a user and record the payment transfer in a single statement.
+     * The balance is incremented in SQL, so concurrent payments for the same
+     * user cannot lose updates, and the row lock is held only for one statement.
+     * In ledger mode the user row is not written at all; see LedgerRepository.
+     * 
+     * @return the transfer id and the new balance, or null when the user
+     *         does not exist or is not active (nothing is written in that case)
+     */
+    public CreditedPayment creditPayment(Long userId, long amountMinor) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(CREDIT_PAYMENT_SQL.sql())) {
+            CREDIT_PAYMENT_SQL.bind(stmt, amountMinor, userId);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return new CreditedPayment(rs.getLong("transfer_id"), rs.getBigDecimal("balance"));
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Credit a user, record the payment transfer and its idempotency key in
+     * a single auto-committed statement. A key that is already recorded makes
+     * the statement fail with a unique violation, which undoes the credit.
+     * 
+     * @return the transfer id and the new balance, or null when the user
+     *         does not exist or is not active (nothing is written in that case)
+     */
+    public CreditedPayment creditPayment(Long userId, long amountMinor, String idempotencyKey) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(CREDIT_PAYMENT_WITH_KEY_SQL.sql())) {
+            CREDIT_PAYMENT_WITH_KEY_SQL.bind(stmt, amountMinor, userId, idempotencyKey);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return new CreditedPayment(rs.getLong("transfer_id"), rs.getBigDecimal("balance"));
+                }
+            }
+        }
+        
+        return null;
+    }
+    
+    /**
+     * Save several payment transfers using JDBC batches.
+     * Returns the generated transfer ids in the same order as the commands.
+     */
+    public List<Long> savePaymentTransfers(List<AddPaymentCommand> commands) throws SQLException {
+        String insertTransferSql = "INSERT INTO transfers (amount, transfer_type) VALUES (?::bigint * " + Money.SQL_UNIT + ", 'PAYMENT')";
+        
+        List<Long> transferIds = new ArrayList<>(commands.size());
+        try (PreparedStatement stmt = connection.prepareStatement(insertTransferSql, new String[] {"id"})) {
+            for (AddPaymentCommand command : commands) {
+                stmt.setLong(1, command.amountMinor());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+            
+            try (ResultSet rs = stmt.getGeneratedKeys()) {
+                while (rs.next()) {
+                    transferIds.add(rs.getLong(1));
+                }
+            }
+        }
+        
+        if (transferIds.size() != commands.size()) {
+            throw new SQLException("Failed to create transfers");
+        }
+        
+        String insertPaymentSql = "INSERT INTO payment_transfers (id, user_id) VALUES (?, ?)";
+        
+        try (PreparedStatement stmt = connection.prepareStatement(insertPaymentSql)) {
+            for (int i = 0; i < commands.size(); i++) {
+                stmt.setLong(1, transferIds.get(i));
+                stmt.setLong(2, commands.get(i).userId());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        
+        return transferIds;
+    }
+    
+    /**
+     * Save several payment transfers of one user with a single multi-row insert.
+     * Returns the generated transfer ids.
+     */
+    public List<Long> savePaymentTransfers(Long userId, long[] amountsMinor) throws SQLException {
+        String sql = """
+            WITH transfer AS (
+                INSERT INTO transfers (amount, transfer_type)
+                SELECT amount * %s, 'PAYMENT' FROM unnest(?::bigint[]) AS a(amount)
+                RETURNING id
+            )
+            INSERT INTO payment_transfers (id, user_id)
+            SELECT id, ? FROM transfer
+            RETURNING id
+            """.formatted(Money.SQL_UNIT);
+        
+        Long[] amounts = new Long[amountsMinor.length];
+        for (int i = 0; i < amountsMinor.length; i++) {
+            amounts[i] = amountsMinor[i];
+        }
+        
+        List<Long> transferIds = new ArrayList<>(amounts.length);
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setArray(1, connection.createArrayOf("bigint", amounts));
+            stmt.setLong(2, userId);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    transferIds.add(rs.getLong("id"));
+                }
+            }
+        }
+        
+        if (transferIds.size() != amounts.length) {
+            throw new SQLException("Failed to create transfers");
+        }
+        
+        return transferIds;
+    }
+    
+    /**
+     * Save transfers of any type and apply their balance changes in one statement.
+     * The users must already be locked by this transaction.
+     * 
+     * @param commands The validated transfers, in the order their ids are returned
+     * @param userIds The users whose balance changes
+     * @param deltasMinor The net change of each user, in minor units
+     * @return the generated transfer ids in the same order as the commands
+     * @throws SQLException if a debit would take a balance below zero; nothing is written in that case
+     */
+    public List<Long> applyTransfers(List<TransferCommand> commands, long[] userIds, long[] deltasMinor)
+            throws SQLException {
+        String[] types = new String[commands.size()];
+        Long[] users = new Long[commands.size()];
+        Long[] sellers = new Long[commands.size()];
+        Long[] amounts = new Long[commands.size()];
+        for (int i = 0; i < types.length; i++) {
+            TransferCommand command = commands.get(i);
+            types[i] = command.type().name();
+            users[i] = command.userId();
+            sellers[i] = command.sellerId();
+            amounts[i] = command.amountMinor();
+        }
+        
+        List<Long> transferIds = new ArrayList<>(types.length);
+        long updatedUsers = 0;
+        try (PreparedStatement stmt = connection.prepareStatement(APPLY_TRANSFERS_SQL)) {
+            stmt.setArray(1, connection.createArrayOf("text", types));
+            stmt.setArray(2, connection.createArrayOf("bigint", users));
+            stmt.setArray(3, connection.createArrayOf("bigint", sellers));
+            stmt.setArray(4, connection.createArrayOf("bigint", amounts));
+            stmt.setArray(5, connection.createArrayOf("bigint", LedgerRepository.boxed(userIds)));
+            stmt.setArray(6, connection.createArrayOf("bigint", LedgerRepository.boxed(deltasMinor)));
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    transferIds.add(rs.getLong("id"));
+                    updatedUsers = rs.getLong("users");
+                }
+            }
+        }
+        
+        if (transferIds.size() != types.length) {
+            throw new SQLException("Failed to create transfers");
+        }
+        if (updatedUsers != userIds.length) {
+            throw new SQLException("Insufficient balance to apply transfers");
+        }
+        
+        return transferIds;
+    }
+    
     /**
      * Get a payment transfer by ID.
      */
@@ -78,4 +314,113 @@ public class TransferRepository {
         
         return null;
     }
+    
+    /**
+     * Stream one page of payment transfer history to a handler, row by row.
+     * The connection must not be in auto-commit mode, so that pgJDBC reads
+     * the result through a server-side cursor fetchSize rows at a time
+     * instead of buffering the whole page.
+     * 
+     * @return the position of the last row, or null if the page was empty
+     */
+    public TransferHistoryQuery.Position streamPaymentTransfers(TransferHistoryQuery query, int fetchSize,
+            TransferRowHandler handler) throws SQLException, IOException {
+        StringBuilder sql = new StringBuilder();
+        List<Object> params = new ArrayList<>();
+        
+        if (query.userId() != null) {
+            // Walks payment_transfers (user_id, id)
+            sql.append("""
+                SELECT pt.id, pt.user_id, t.amount, t.created_at
+                FROM payment_transfers pt
+                JOIN transfers t ON t.id = pt.id
+                WHERE pt.user_id = ?
+                """);
+            params.add(query.userId());
+            if (query.after() != null) {
+                sql.append(" AND pt.id > ?");
+                params.add(query.after().id());
+            }
+            if (query.from() != null) {
+                sql.append(" AND t.created_at >= ?");
+                params.add(Timestamp.valueOf(query.from()));
+            }
+            if (query.to() != null) {
+                sql.append(" AND t.created_at < ?");
+                params.add(Timestamp.valueOf(query.to()));
+            }
+            sql.append(" ORDER BY pt.id LIMIT ?");
+        } else {
+            // Walks transfers (created_at, id)
+            sql.append("""
+                SELECT t.id, pt.user_id, t.amount, t.created_at
+                FROM transfers t
+                JOIN payment_transfers pt ON pt.id = t.id
+                WHERE t.transfer_type = 'PAYMENT'
+                """);
+            if (query.after() != null) {
+                sql.append(" AND (t.created_at, t.id) > (?, ?)");
+                params.add(Timestamp.valueOf(query.after().createdAt()));
+                params.add(query.after().id());
+            } else if (query.from() != null) {
+                sql.append(" AND t.created_at >= ?");
+                params.add(Timestamp.valueOf(query.from()));
+            }
+            if (query.to() != null) {
+                sql.append(" AND t.created_at < ?");
+                params.add(Timestamp.valueOf(query.to()));
+            }
+            sql.append(" ORDER BY t.created_at, t.id LIMIT ?");
+        }
+        params.add(query.limit());
+        
+        try (PreparedStatement stmt = connection.prepareStatement(sql.toString())) {
+            stmt.setFetchSize(fetchSize);
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
+            }
+            
+            TransferHistoryQuery.Position last = null;
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    long id = rs.getLong(1);
+                    LocalDateTime createdAt = rs.getTimestamp(4).toLocalDateTime();
+                    handler.accept(id, rs.getLong(2), rs.getBigDecimal(3), createdAt);
+                    last = new TransferHistoryQuery.Position(id, createdAt);
+                }
+            }
+            return last;
+        }
+    }
+    
+    /**
+     * One insert into the child table of each transfer type.
+     */
+    private static String childInserts() {
+        StringBuilder sql = new StringBuilder();
+        for (TransferType type : TransferType.values()) {
+            String insert = switch (type) {
+                case PAYMENT -> "INSERT INTO payment_transfers (id, user_id) SELECT id, user_id";
+                case WITHDRAWAL -> "INSERT INTO withdrawal_transfers (id, user_id) SELECT id, user_id";
+                case PURCHASE -> "INSERT INTO purchase_transfers (id, buyer_id, seller_id) SELECT id, user_id, seller_id";
+            };
+            sql.append(", ").append(type.name().toLowerCase(Locale.ROOT)).append(" AS (\n    ")
+                .append(insert).append(" FROM c WHERE transfer_type = '").append(type.name()).append("'\n)");
+        }
+        return sql.toString();
+    }
+    
+    /**
+     * Receives history rows as they are read, without building entities.
+     */
+    @FunctionalInterface
+    public interface TransferRowHandler {
+        void accept(long id, long userId, BigDecimal amount, LocalDateTime createdAt) throws IOException;
+    }
+    
+    /**
+     * Outcome of {@link #creditPayment(Long, long)}.
+     */
+    public record CreditedPayment(Long transferId, BigDecimal newBalance) {
+    }
 }
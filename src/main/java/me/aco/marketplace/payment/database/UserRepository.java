@@ -1,7 +1,12 @@
 package me.aco.marketplace.payment.database;
 
+import me.aco.marketplace.payment.Money;
+
 import java.math.BigDecimal;
 import java.sql.*;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 /**
  * Repository for User database operations.
@@ -9,6 +14,10 @@ import java.sql.*;
  */
 public class UserRepository {
     
+    private static final String FIND_STATUS_SQL = "SELECT id, active, balance FROM users WHERE id = ?";
+    private static final String FIND_STATUSES_FOR_UPDATE_SQL =
+        "SELECT id, active, balance FROM users WHERE id = ANY(?) ORDER BY id FOR UPDATE";
+    
     private final Connection connection;
     
     public UserRepository(Connection connection) {
@@ -16,24 +25,28 @@ public class UserRepository {
     }
     
     /**
-     * Find user by ID.
+     * Parse the hot-path statements on this connection ahead of the first request.
      */
-    public User findById(Long userId) throws SQLException {
-        String sql = "SELECT id, username, name, email, balance, active FROM users WHERE id = ?";
-        
-        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+    public void prepareStatements() throws SQLException {
+        for (String sql : new String[] {FIND_STATUS_SQL, FIND_STATUSES_FOR_UPDATE_SQL}) {
+            try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+                stmt.getParameterMetaData();
+            }
+        }
+    }
+    
+    /**
+     * Find the status of a user: only the columns payments depend on.
+     * 
+     * @return the status, or null when the user does not exist
+     */
+    public UserStatus findStatus(Long userId) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(FIND_STATUS_SQL)) {
             stmt.setLong(1, userId);
             
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
-                    return new User(
-                        rs.getLong("id"),
-                        rs.getString("username"),
-                        rs.getString("name"),
-                        rs.getString("email"),
-                        rs.getBigDecimal("balance"),
-                        rs.getBoolean("active")
-                    );
+                    return new UserStatus(rs.getLong("id"), rs.getBoolean("active"), rs.getBigDecimal("balance"));
                 }
             }
         }
@@ -41,6 +54,26 @@ public class UserRepository {
         return null;
     }
     
+    /**
+     * Find and lock the status of several users in one round-trip.
+     * Rows are locked in id order so concurrent batches cannot deadlock.
+     */
+    public Map<Long, UserStatus> findStatusesForUpdate(Collection<Long> userIds) throws SQLException {
+        Map<Long, UserStatus> statuses = new LinkedHashMap<>();
+        try (PreparedStatement stmt = connection.prepareStatement(FIND_STATUSES_FOR_UPDATE_SQL)) {
+            stmt.setArray(1, connection.createArrayOf("bigint", userIds.toArray()));
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    UserStatus status = new UserStatus(rs.getLong("id"), rs.getBoolean("active"), rs.getBigDecimal("balance"));
+                    statuses.put(status.id(), status);
+                }
+            }
+        }
+        
+        return statuses;
+    }
+    
     /**
      * Update user balance.
      */
@@ -59,58 +92,55 @@ public class UserRepository {
     }
     
     /**
-     * Simple User data class for this repository.
+     * Increment the balance of an active user in SQL.
+     * 
+     * @return the new balance, or null when the user does not exist or is not active
      */
-    public static class User {
-        private final Long id;
-        private final String username;
-        private final String name;
-        private final String email;
-        private BigDecimal balance;
-        private final boolean active;
+    public BigDecimal incrementBalance(Long userId, long amountMinor) throws SQLException {
+        String sql = "UPDATE users SET balance = balance + ?::bigint * " + Money.SQL_UNIT
+            + ", updated_at = CURRENT_TIMESTAMP WHERE id = ? AND active RETURNING balance";
         
-        public User(Long id, String username, String name, String email, BigDecimal balance, boolean active) {
-            this.id = id;
-            this.username = username;
-            this.name = name;
-            this.email = email;
-            this.balance = balance;
-            this.active = active;
-        }
-        
-        public Long getId() {
-            return id;
-        }
-        
-        public String getUsername() {
-            return username;
-        }
-        
-        public String getName() {
-            return name;
-        }
-        
-        public String getEmail() {
-            return email;
-        }
-        
-        public BigDecimal getBalance() {
-            return balance;
-        }
-        
-        public void setBalance(BigDecimal balance) {
-            this.balance = balance;
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            stmt.setLong(1, amountMinor);
+            stmt.setLong(2, userId);
+            
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    return rs.getBigDecimal("balance");
+                }
+            }
         }
         
-        public boolean isActive() {
-            return active;
-        }
+        return null;
+    }
+    
+    /**
+     * Update the balances of several users using a single JDBC batch.
+     * Balances are given in minor units.
+     */
+    public void updateBalances(Map<Long, Long> newBalances) throws SQLException {
+        String sql = "UPDATE users SET balance = ?::bigint * " + Money.SQL_UNIT + ", updated_at = CURRENT_TIMESTAMP WHERE id = ?";
         
-        public void addBalance(BigDecimal amount) {
-            if (amount.compareTo(BigDecimal.ZERO) <= 0) {
-                throw new IllegalArgumentException("Amount must be positive");
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (Map.Entry<Long, Long> entry : newBalances.entrySet()) {
+                stmt.setLong(1, entry.getValue());
+                stmt.setLong(2, entry.getKey());
+                stmt.addBatch();
+            }
+            
+            int[] rowsAffected = stmt.executeBatch();
+            int i = 0;
+            for (Long userId : newBalances.keySet()) {
+                if (rowsAffected[i++] == 0) {
+                    throw new SQLException("User not found: " + userId);
+                }
             }
-            this.balance = this.balance.add(amount);
         }
     }
+    
+    /**
+     * Narrow projection of a user for payment processing.
+     */
+    public record UserStatus(Long id, boolean active, BigDecimal balance) {
+    }
 }
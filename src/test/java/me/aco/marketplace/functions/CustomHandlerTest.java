@@ -0,0 +1,56 @@
+package me.aco.marketplace.functions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import org.junit.jupiter.api.Test;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Unit test for the CustomHandler entry point, over HTTP and without a database.
+ */
+public class CustomHandlerTest {
+    
+    /**
+     * Test that requests reach the Function methods and their responses come back unchanged.
+     */
+    @Test
+    public void testServesFunctions() throws Exception {
+        HttpServer server = CustomHandler.start(0);
+        try {
+            String base = "http://localhost:" + server.getAddress().getPort();
+            HttpClient client = HttpClient.newHttpClient();
+            
+            HttpResponse<String> payment = client.send(HttpRequest.newBuilder(URI.create(base + "/api/Payment"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, payment.statusCode());
+            assertEquals("{\"error\": \"Request body is required\"}", payment.body());
+            
+            HttpResponse<String> wrongMethod = client.send(HttpRequest.newBuilder(URI.create(base + "/api/Payment"))
+                .GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(405, wrongMethod.statusCode());
+            
+            HttpResponse<String> history = client.send(HttpRequest.newBuilder(URI.create(base + "/api/Payment/history?limit=0"))
+                .GET().build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, history.statusCode());
+            assertTrue(history.body().contains("limit must be between 1 and"));
+            
+            HttpResponse<String> batch = client.send(HttpRequest.newBuilder(URI.create(base + "/api/Payments/batch"))
+                .POST(HttpRequest.BodyPublishers.ofString("[]")).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(400, batch.statusCode());
+            assertEquals("{\"error\": \"At least one payment is required\"}", batch.body());
+            
+            HttpResponse<String> unknown = client.send(HttpRequest.newBuilder(URI.create(base + "/api/Payment/async"))
+                .POST(HttpRequest.BodyPublishers.noBody()).build(), HttpResponse.BodyHandlers.ofString());
+            assertEquals(404, unknown.statusCode());
+        } finally {
+            server.stop(0);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package me.aco.marketplace.functions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.Test;
+
+import com.google.gson.Gson;
+
+import me.aco.marketplace.payment.PaymentResult;
+
+/**
+ * Unit test for PaymentJsonCodec class.
+ */
+public class PaymentJsonCodecTest {
+    
+    private final Gson gson = Function.createGson();
+    
+    /**
+     * Test parsing a payment request, ignoring unknown fields.
+     */
+    @Test
+    public void testReadPaymentRequest() {
+        Function.PaymentRequest request = gson.fromJson(
+            "{\"userId\": 7, \"note\": {\"a\": 1}, \"amount\": 50.10}", Function.PaymentRequest.class);
+        
+        assertEquals(Long.valueOf(7), request.userId);
+        assertEquals(5010L, request.amountMinor);
+        assertNull(request.idempotencyKey);
+    }
+    
+    /**
+     * Test that a queued payment keeps its idempotency key through the queue message.
+     */
+    @Test
+    public void testPaymentRequestIdempotencyKey() {
+        Function.PaymentRequest request = new Function.PaymentRequest();
+        request.userId = 7L;
+        request.amountMinor = 5010L;
+        request.idempotencyKey = "order-42";
+        
+        String json = PaymentJsonCodec.toJson(gson, request);
+        
+        assertEquals("{\"userId\":7,\"amount\":50.10,\"idempotencyKey\":\"order-42\"}", json);
+        assertEquals("order-42", gson.fromJson(json, Function.PaymentRequest.class).idempotencyKey);
+    }
+    
+    /**
+     * Test writing a result with an ISO-8601 timestamp and exact amounts.
+     */
+    @Test
+    public void testWritePaymentResult() {
+        PaymentResult result = new PaymentResult(
+            3L, 7L, new BigDecimal("50.00"), new BigDecimal("150.00"),
+            LocalDateTime.of(2026, 1, 3, 10, 30), "SUCCESS");
+        
+        String json = PaymentJsonCodec.toJson(gson, result);
+        
+        assertEquals("{\"transferId\":3,\"userId\":7,\"amount\":50.00,\"newBalance\":150.00,"
+            + "\"timestamp\":\"2026-01-03T10:30:00\",\"status\":\"SUCCESS\"}", json);
+        assertEquals(result, gson.fromJson(json, PaymentResult.class));
+    }
+    
+    /**
+     * Test that null fields of a failed result are omitted.
+     */
+    @Test
+    public void testWriteFailedPaymentResult() {
+        String json = PaymentJsonCodec.toJson(gson, PaymentResult.failure(7L, null, "Amount cannot be null"));
+        
+        assertFalse(json.contains("transferId"));
+        assertTrue(json.contains("\"status\":\"FAILED: Amount cannot be null\""));
+        assertNull(gson.fromJson(json, PaymentResult.class).amount());
+    }
+}
@@ -0,0 +1,71 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for ConcurrencyLimiter.
+ */
+public class ConcurrencyLimiterTest {
+    
+    private static final long MILLIS = 1_000_000;
+    
+    /**
+     * Test that requests over the limit are rejected until a permit is released.
+     */
+    @Test
+    public void testRejectsOverLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10);
+        
+        ConcurrencyLimiter.Permit first = limiter.tryAcquire();
+        assertNotNull(first);
+        assertNotNull(limiter.tryAcquire());
+        assertNull(limiter.tryAcquire());
+        assertEquals(1, limiter.rejected());
+        
+        first.release();
+        first.release();
+        assertEquals(1, limiter.inFlight());
+        assertNotNull(limiter.tryAcquire());
+    }
+    
+    /**
+     * Test that the limit grows while latency is stable and the limit is in use.
+     */
+    @Test
+    public void testGrowsWhileLatencyIsStable() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 100);
+        for (int i = 0; i < 50; i++) {
+            limiter.onSample(10 * MILLIS, limiter.limit());
+        }
+        assertTrue(limiter.limit() > 10, "limit " + limiter.limit());
+        
+        int limit = limiter.limit();
+        for (int i = 0; i < 50; i++) {
+            limiter.onSample(10 * MILLIS, 1); // Mostly idle
+        }
+        assertEquals(limit, limiter.limit());
+    }
+    
+    /**
+     * Test that the limit shrinks towards the minimum when latency rises.
+     */
+    @Test
+    public void testShrinksWhenLatencyRises() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(50, 2, 100);
+        for (int i = 0; i < 100; i++) {
+            limiter.onSample(10 * MILLIS, limiter.limit());
+        }
+        int stable = limiter.limit();
+        
+        for (int i = 0; i < 20; i++) {
+            limiter.onSample(500 * MILLIS, limiter.limit());
+        }
+        assertTrue(limiter.limit() < stable / 2, "limit " + limiter.limit() + " was " + stable);
+        assertTrue(limiter.limit() >= 2);
+    }
+}
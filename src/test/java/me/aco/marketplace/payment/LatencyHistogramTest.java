@@ -0,0 +1,43 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for LatencyHistogram class.
+ */
+public class LatencyHistogramTest {
+    
+    /**
+     * Test that every bucket covers the values up to the next one.
+     */
+    @Test
+    public void testBucketsAreContiguous() {
+        for (long value : new long[] {0, 1, 7, 8, 15, 16, 17, 1_000, 65_535, 65_536, 1_000_000_007L, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(value < LatencyHistogram.upperBoundOf(bucket) || value == Long.MAX_VALUE);
+            assertTrue(bucket == 0 || value >= LatencyHistogram.upperBoundOf(bucket - 1));
+        }
+    }
+    
+    /**
+     * Test that counts below a power of two are exact and percentiles
+     * are within the bucket resolution.
+     */
+    @Test
+    public void testCountsAndPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long nanos = 1; nanos <= 1_000; nanos++) {
+            histogram.record(nanos * 1_000);
+        }
+        
+        assertEquals(1_000, histogram.count());
+        assertEquals(500_500_000L, histogram.sum());
+        assertEquals(262, histogram.countBelow(1L << 18));
+        
+        long median = histogram.valueAtPercentile(50);
+        assertTrue(median >= 500_000 && median <= 500_000 * 9 / 8, "median " + median);
+    }
+}
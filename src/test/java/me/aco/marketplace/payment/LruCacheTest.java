@@ -0,0 +1,46 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for LruCache class.
+ */
+public class LruCacheTest {
+    
+    /**
+     * Test that the least recently used entry is evicted at capacity.
+     */
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        LruCache<String, Integer> cache = new LruCache<>(2);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        
+        // Touch "a" so that "b" becomes the eldest entry
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        cache.put("c", 3);
+        
+        assertEquals(2, cache.size());
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+    }
+    
+    /**
+     * Test that entries expire after their time to live.
+     */
+    @Test
+    public void testExpiresEntries() throws Exception {
+        LruCache<String, Integer> cache = new LruCache<>(2, 20);
+        cache.put("a", 1);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        
+        Thread.sleep(50);
+        
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+}
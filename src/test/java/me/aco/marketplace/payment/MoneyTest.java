@@ -0,0 +1,82 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigDecimal;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for Money at the default scale of 2.
+ */
+public class MoneyTest {
+    
+    /**
+     * Test that amounts are parsed exactly, with or without decimals.
+     */
+    @Test
+    public void testParse() {
+        assertEquals(5000L, Money.parse("50"));
+        assertEquals(5050L, Money.parse("50.5"));
+        assertEquals(5010L, Money.parse("50.10"));
+        assertEquals(5010L, Money.parse("50.1000"));
+        assertEquals(1L, Money.parse("0.01"));
+        assertEquals(-1L, Money.parse("-0.01"));
+        assertEquals(12000L, Money.parse("1.2E2"));
+        assertEquals(Long.MAX_VALUE, Money.parse("92233720368547758.07"));
+        assertEquals(Long.MIN_VALUE, Money.parse("-92233720368547758.08"));
+    }
+    
+    /**
+     * Test that amounts are never rounded or truncated.
+     */
+    @Test
+    public void testParseRejectsInexactAmounts() {
+        assertThrows(ArithmeticException.class, () -> Money.parse("0.001"));
+        assertThrows(ArithmeticException.class, () -> Money.parse("1E-3"));
+        assertThrows(ArithmeticException.class, () -> Money.parse("92233720368547758.08"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("abc"));
+        assertThrows(NumberFormatException.class, () -> Money.parse("-"));
+        assertThrows(NumberFormatException.class, () -> Money.parse(""));
+    }
+    
+    /**
+     * Test formatting and the BigDecimal edges.
+     */
+    @Test
+    public void testFormatAndConvert() {
+        assertEquals("50.00", Money.format(5000L));
+        assertEquals("0.05", Money.format(5L));
+        assertEquals("-0.05", Money.format(-5L));
+        assertEquals("-92233720368547758.08", Money.format(Long.MIN_VALUE));
+        assertEquals(new BigDecimal("50.10"), Money.toDecimal(5010L));
+        assertEquals(5010L, Money.fromDecimal(new BigDecimal("50.1")));
+        assertThrows(ArithmeticException.class, () -> Money.fromDecimal(new BigDecimal("50.123")));
+    }
+    
+    /**
+     * Test that arithmetic fails instead of overflowing.
+     */
+    @Test
+    public void testOverflow() {
+        assertEquals(3L, Money.add(1L, 2L));
+        assertThrows(ArithmeticException.class, () -> Money.add(Long.MAX_VALUE, 1L));
+        assertThrows(ArithmeticException.class, () -> Money.subtract(Long.MIN_VALUE, 1L));
+    }
+    
+    /**
+     * Test that commands carry missing and unrepresentable amounts to validation.
+     */
+    @Test
+    public void testCommandAmounts() {
+        assertEquals(new AddPaymentCommand(1L, 5000L), new AddPaymentCommand(1L, new BigDecimal("50")));
+        assertEquals(AddPaymentCommand.NO_AMOUNT, new AddPaymentCommand(1L, (BigDecimal) null).amountMinor());
+        assertEquals(AddPaymentCommand.INVALID_AMOUNT, AddPaymentCommand.parseAmount("0.001"));
+        
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+            () -> new AddPaymentCommand(1L, new BigDecimal("0.001")).validate());
+        assertEquals("Amount is out of range or has more than 2 decimal places", e.getMessage());
+        assertThrows(IllegalArgumentException.class, () -> new AddPaymentCommand(1L, BigDecimal.ZERO).validate());
+    }
+}
@@ -0,0 +1,41 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for the connection permits of PaymentExecutor.
+ */
+public class PaymentExecutorTest {
+    
+    /**
+     * Test that work runs on a virtual thread and that work without a permit gets the unavailable result.
+     */
+    @Test
+    public void testUnavailableWithoutPermit() throws Exception {
+        PaymentExecutor executor = new PaymentExecutor(PaymentExecutor.Mode.VIRTUAL, 1, 50);
+        CountDownLatch holding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = Thread.ofPlatform().start(() -> executor.run(() -> {
+            holding.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return "held";
+        }, () -> "unavailable"));
+        assertTrue(holding.await(5, TimeUnit.SECONDS));
+        
+        assertEquals("unavailable", executor.run(() -> "ran", () -> "unavailable"));
+        
+        release.countDown();
+        holder.join();
+        assertTrue(executor.run(() -> Thread.currentThread().isVirtual(), () -> false));
+    }
+}
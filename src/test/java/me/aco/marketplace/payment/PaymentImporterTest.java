@@ -0,0 +1,52 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigDecimal;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for the line parsers of PaymentImporter.
+ */
+public class PaymentImporterTest {
+    
+    /**
+     * Test that CSV lines keep the amount exactly as written.
+     */
+    @Test
+    public void testParseCsv() {
+        assertEquals(new AddPaymentCommand(12L, new BigDecimal("50.00")), PaymentImporter.parseCsv("12,50.00"));
+        assertEquals(new AddPaymentCommand(12L, new BigDecimal("0.10")), PaymentImporter.parseCsv(" \"12\" , \"0.10\" "));
+        assertNull(PaymentImporter.parseCsv("12,").amount());
+        
+        assertThrows(IllegalArgumentException.class, () -> PaymentImporter.parseCsv("12"));
+        assertThrows(IllegalArgumentException.class, () -> PaymentImporter.parseCsv("12,50,1"));
+        assertThrows(IllegalArgumentException.class, () -> PaymentImporter.parseCsv("abc,50"));
+    }
+    
+    /**
+     * Test that NDJSON lines ignore unknown fields and reject malformed JSON.
+     */
+    @Test
+    public void testParseJson() {
+        assertEquals(new AddPaymentCommand(7L, new BigDecimal("25.50")),
+            PaymentImporter.parseJson("{\"userId\": 7, \"reference\": \"inv-1\", \"amount\": 25.50}"));
+        assertNull(PaymentImporter.parseJson("{\"userId\": null, \"amount\": 1}").userId());
+        
+        assertThrows(IllegalArgumentException.class, () -> PaymentImporter.parseJson("{\"userId\": 7,"));
+        assertThrows(IllegalArgumentException.class, () -> PaymentImporter.parseJson("[7, 25.50]"));
+        assertThrows(IllegalArgumentException.class, () -> PaymentImporter.parseJson("{\"userId\": \"x\"}"));
+    }
+    
+    /**
+     * Test that the format follows the file extension.
+     */
+    @Test
+    public void testFormatOf() {
+        assertEquals(PaymentImporter.Format.CSV, PaymentImporter.Format.of("settlement-2024-01.CSV"));
+        assertEquals(PaymentImporter.Format.NDJSON, PaymentImporter.Format.of("settlement-2024-01.ndjson"));
+    }
+}
@@ -0,0 +1,134 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Unit test for PaymentJournal class.
+ */
+public class PaymentJournalTest {
+    
+    @TempDir
+    Path directory;
+    
+    /**
+     * Test that unacknowledged entries survive reopening the journal.
+     */
+    @Test
+    public void testRecoversEntriesAfterReopen() throws Exception {
+        Path path = directory.resolve("payments.journal");
+        
+        try (PaymentJournal journal = PaymentJournal.open(path, 4096)) {
+            assertTrue(journal.append(new AddPaymentCommand(1L, new BigDecimal("10.50")), null));
+            assertTrue(journal.append(new AddPaymentCommand(2L, new BigDecimal("0.01")), "client-key"));
+        }
+        
+        try (PaymentJournal journal = PaymentJournal.open(path, 4096)) {
+            List<PaymentJournal.Entry> entries = journal.peek(10);
+            
+            assertEquals(2, entries.size());
+            assertEquals(new AddPaymentCommand(1L, new BigDecimal("10.50")), entries.get(0).command());
+            assertTrue(entries.get(0).idempotencyKey().startsWith("journal:"));
+            assertEquals(new AddPaymentCommand(2L, new BigDecimal("0.01")), entries.get(1).command());
+            assertEquals("client-key", entries.get(1).idempotencyKey());
+        }
+    }
+    
+    /**
+     * Test that acknowledged entries are not replayed again and that
+     * a new generation gets new derived keys.
+     */
+    @Test
+    public void testAcknowledgeStartsNewGeneration() throws Exception {
+        Path path = directory.resolve("payments.journal");
+        
+        try (PaymentJournal journal = PaymentJournal.open(path, 4096)) {
+            journal.append(new AddPaymentCommand(1L, BigDecimal.TEN), null);
+            journal.append(new AddPaymentCommand(2L, BigDecimal.TEN), null);
+            
+            List<PaymentJournal.Entry> first = journal.peek(1);
+            journal.acknowledge(first.get(0));
+            assertEquals(1, journal.pending());
+            assertEquals(Long.valueOf(2L), journal.peek(10).get(0).command().userId());
+            
+            journal.acknowledge(journal.peek(10).get(0));
+            assertEquals(0, journal.pending());
+            
+            journal.append(new AddPaymentCommand(3L, BigDecimal.ONE), null);
+            assertNotEquals(first.get(0).idempotencyKey(), journal.peek(10).get(0).idempotencyKey());
+        }
+        
+        try (PaymentJournal journal = PaymentJournal.open(path, 4096)) {
+            List<PaymentJournal.Entry> entries = journal.peek(10);
+            assertEquals(1, entries.size());
+            assertEquals(Long.valueOf(3L), entries.get(0).command().userId());
+        }
+    }
+    
+    /**
+     * Test that a corrupt entry ends recovery instead of being replayed.
+     */
+    @Test
+    public void testStopsAtCorruptEntry() throws Exception {
+        Path path = directory.resolve("payments.journal");
+        int secondEntry;
+        
+        try (PaymentJournal journal = PaymentJournal.open(path, 4096)) {
+            journal.append(new AddPaymentCommand(1L, BigDecimal.TEN), null);
+            journal.append(new AddPaymentCommand(2L, BigDecimal.TEN), null);
+            secondEntry = journal.peek(1).get(0).end();
+        }
+        
+        try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+            file.seek(secondEntry + 20);
+            file.writeByte(0x7f);
+        }
+        
+        try (PaymentJournal journal = PaymentJournal.open(path, 4096)) {
+            assertEquals(1, journal.pending());
+            assertEquals(Long.valueOf(1L), journal.peek(10).get(0).command().userId());
+        }
+    }
+    
+    /**
+     * Test that appends are refused once the file is full.
+     */
+    @Test
+    public void testRejectsAppendWhenFull() throws Exception {
+        try (PaymentJournal journal = PaymentJournal.open(directory.resolve("payments.journal"), 64)) {
+            assertFalse(journal.append(new AddPaymentCommand(1L, BigDecimal.TEN), "a-key-that-does-not-fit"));
+            assertEquals(0, journal.pending());
+        }
+    }
+    
+    /**
+     * Test that a payment is journaled when the pool cannot be created
+     * because the database is down.
+     */
+    @Test
+    public void testJournalsPaymentWhenPoolCannotBeCreated() throws Exception {
+        try (PaymentJournal journal = PaymentJournal.open(directory.resolve("payments.journal"), 4096)) {
+            PaymentProcessor processor = new PaymentProcessor(null, journal, () -> {
+                throw new RuntimeException("Failed to initialize pool: Connection to localhost:5432 refused.");
+            });
+            
+            PaymentResult result = processor.processPayment(new AddPaymentCommand(1L, BigDecimal.TEN), "client-key");
+            
+            assertEquals("ACCEPTED", result.status());
+            List<PaymentJournal.Entry> entries = journal.peek(10);
+            assertEquals(1, entries.size());
+            assertEquals(new AddPaymentCommand(1L, BigDecimal.TEN), entries.get(0).command());
+            assertEquals("client-key", entries.get(0).idempotencyKey());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for PaymentMicroBatcher against a processor that fails on one user.
+ */
+public class PaymentMicroBatcherTest {
+    
+    private static final long FAILING_USER = 13L;
+    
+    /**
+     * Test that a failing micro-batch only fails the submission that fails on its own.
+     */
+    @Test
+    public void testFailureIsolatedToSubmission() {
+        FailingProcessor processor = new FailingProcessor();
+        PaymentMicroBatcher batcher = new PaymentMicroBatcher(processor, 500, 20, 0, 10);
+        List<PaymentMicroBatcher.Submission> batch = List.of(
+            submission(1L, "a"),
+            submission(FAILING_USER, "b"),
+            submission(2L, "c")
+        );
+        
+        batcher.flush(batch, batch.size());
+        
+        assertEquals(4, processor.calls.size());
+        assertEquals(List.of("a", "b", "c"), processor.calls.get(0));
+        assertEquals("SUCCESS", batch.get(0).result().join().get(0).status());
+        assertEquals("SUCCESS", batch.get(2).result().join().get(0).status());
+        CompletionException failed = assertThrows(CompletionException.class, () -> batch.get(1).result().join());
+        assertTrue(failed.getCause() instanceof SQLException);
+    }
+    
+    /**
+     * Test that submissions are rejected while the queue is full.
+     */
+    @Test
+    public void testRejectsWhenFull() {
+        PaymentMicroBatcher batcher = new PaymentMicroBatcher(new FailingProcessor(), 500, 20, 0, 1);
+        List<AddPaymentCommand> commands = List.of(new AddPaymentCommand(1L, BigDecimal.ONE));
+        
+        batcher.submit(commands, List.of("a"));
+        CompletableFuture<List<PaymentResult>> rejected = batcher.submit(commands, List.of("b"));
+        
+        CompletionException failed = assertThrows(CompletionException.class, rejected::join);
+        assertTrue(failed.getCause() instanceof RejectedExecutionException);
+    }
+    
+    private static PaymentMicroBatcher.Submission submission(long userId, String idempotencyKey) {
+        return new PaymentMicroBatcher.Submission(
+            List.of(new AddPaymentCommand(userId, BigDecimal.ONE)),
+            List.of(idempotencyKey),
+            new CompletableFuture<>());
+    }
+    
+    /**
+     * Applies every payment, unless one of them is for the failing user.
+     */
+    private static class FailingProcessor extends PaymentProcessor {
+        
+        final List<List<String>> calls = new ArrayList<>();
+        
+        @Override
+        public List<PaymentResult> applyPaymentGroups(List<AddPaymentCommand> commands, List<String> idempotencyKeys)
+                throws SQLException {
+            calls.add(idempotencyKeys);
+            List<PaymentResult> results = new ArrayList<>();
+            for (AddPaymentCommand command : commands) {
+                if (command.userId() == FAILING_USER) {
+                    throw new SQLException("numeric field overflow");
+                }
+                results.add(PaymentResult.success(1L, command.userId(), command.amount(), command.amount()));
+            }
+            return results;
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+import me.aco.marketplace.payment.database.PaymentStore;
+import me.aco.marketplace.payment.database.TransferRepository;
+import me.aco.marketplace.payment.database.UserRepository;
+
+/**
+ * Unit test for PaymentProcessor.processPaymentAsync against an in-memory store.
+ */
+public class PaymentProcessorAsyncTest {
+    
+    /**
+     * Test that a payment credits the user and returns the new balance.
+     */
+    @Test
+    public void testSuccess() {
+        InMemoryStore store = new InMemoryStore();
+        store.users.put(9001L, new UserRepository.UserStatus(9001L, true, new BigDecimal("10.00")));
+        
+        PaymentResult result = new PaymentProcessor(store)
+            .processPaymentAsync(new AddPaymentCommand(9001L, new BigDecimal("5.00")), null).join();
+        
+        assertEquals("SUCCESS", result.status());
+        assertEquals(new BigDecimal("15.00"), result.newBalance());
+    }
+    
+    /**
+     * Test that unknown and inactive users fail without completing exceptionally.
+     */
+    @Test
+    public void testRejectedUsers() {
+        InMemoryStore store = new InMemoryStore();
+        store.users.put(9002L, new UserRepository.UserStatus(9002L, false, BigDecimal.ZERO));
+        PaymentProcessor processor = new PaymentProcessor(store);
+        
+        PaymentResult missing = processor.processPaymentAsync(new AddPaymentCommand(9003L, BigDecimal.ONE), null).join();
+        PaymentResult inactive = processor.processPaymentAsync(new AddPaymentCommand(9002L, BigDecimal.ONE), null).join();
+        
+        assertEquals("FAILED: User not found: 9003", missing.status());
+        assertEquals("FAILED: User account is not active", inactive.status());
+        assertNull(inactive.transferId());
+    }
+    
+    /**
+     * Test that a key recorded by another instance returns the stored result
+     * and a key reused for another payment is rejected.
+     */
+    @Test
+    public void testDuplicateKey() {
+        InMemoryStore store = new InMemoryStore();
+        store.users.put(9004L, new UserRepository.UserStatus(9004L, true, BigDecimal.ZERO));
+        PaymentResult stored = PaymentResult.success(77L, 9004L, new BigDecimal("3.00"), new BigDecimal("3.00"));
+        store.keys.put("async-test-key", stored);
+        PaymentProcessor processor = new PaymentProcessor(store);
+        
+        PaymentResult replayed = processor.processPaymentAsync(
+            new AddPaymentCommand(9004L, new BigDecimal("3.00")), "async-test-key").join();
+        PaymentResult reused = processor.processPaymentAsync(
+            new AddPaymentCommand(9004L, new BigDecimal("4.00")), "async-test-key").join();
+        
+        assertEquals(stored, replayed);
+        assertEquals("FAILED: Idempotency key was already used for a different payment", reused.status());
+        assertEquals(BigDecimal.ZERO, store.users.get(9004L).balance());
+    }
+    
+    /**
+     * Test that a database error becomes a failed result.
+     */
+    @Test
+    public void testDatabaseError() {
+        InMemoryStore store = new InMemoryStore();
+        store.failure = new SQLException("connection reset");
+        
+        PaymentResult result = new PaymentProcessor(store)
+            .processPaymentAsync(new AddPaymentCommand(9005L, BigDecimal.ONE), null).join();
+        
+        assertEquals("FAILED: Database error: connection reset", result.status());
+    }
+    
+    private static class InMemoryStore implements PaymentStore {
+        
+        final Map<Long, UserRepository.UserStatus> users = new HashMap<>();
+        final Map<String, PaymentResult> keys = new HashMap<>();
+        final AtomicLong transferIds = new AtomicLong();
+        SQLException failure;
+        
+        @Override
+        public CompletableFuture<TransferRepository.CreditedPayment> creditPayment(Long userId, long amountMinor,
+                String idempotencyKey) {
+            if (failure != null) {
+                return CompletableFuture.failedFuture(failure);
+            }
+            if (idempotencyKey != null && keys.containsKey(idempotencyKey)) {
+                return CompletableFuture.failedFuture(new SQLException("duplicate key", UNIQUE_VIOLATION));
+            }
+            UserRepository.UserStatus status = users.get(userId);
+            if (status == null || !status.active()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            BigDecimal balance = status.balance().add(Money.toDecimal(amountMinor));
+            users.put(userId, new UserRepository.UserStatus(userId, true, balance));
+            return CompletableFuture.completedFuture(
+                new TransferRepository.CreditedPayment(transferIds.incrementAndGet(), balance));
+        }
+        
+        @Override
+        public CompletableFuture<UserRepository.UserStatus> findStatus(Long userId) {
+            return CompletableFuture.completedFuture(users.get(userId));
+        }
+        
+        @Override
+        public CompletableFuture<PaymentResult> findByKey(String idempotencyKey) {
+            return CompletableFuture.completedFuture(keys.get(idempotencyKey));
+        }
+    }
+}
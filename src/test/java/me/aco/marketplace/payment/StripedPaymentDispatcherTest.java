@@ -0,0 +1,167 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for StripedPaymentDispatcher against an in-memory processor.
+ */
+public class StripedPaymentDispatcherTest {
+    
+    private static final long FAILING_USER = 13L;
+    
+    /**
+     * Test that a stripe is scheduled once while it has work, and again after it drained.
+     */
+    @Test
+    public void testStripeRescheduledAfterDrain() {
+        RecordingProcessor processor = new RecordingProcessor();
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        StripedPaymentDispatcher dispatcher = new StripedPaymentDispatcher(processor, 1, 500, 10, tasks::add);
+        
+        CompletableFuture<PaymentResult> first = dispatcher.submit(payment(1L));
+        CompletableFuture<PaymentResult> second = dispatcher.submit(payment(1L));
+        assertEquals(1, tasks.size());
+        
+        tasks.poll().run();
+        assertEquals("SUCCESS", first.join().status());
+        assertEquals("SUCCESS", second.join().status());
+        assertEquals(1, processor.groups.size());
+        
+        CompletableFuture<PaymentResult> third = dispatcher.submit(payment(1L));
+        assertEquals(1, tasks.size());
+        tasks.poll().run();
+        assertEquals("SUCCESS", third.join().status());
+    }
+    
+    /**
+     * Test that no payment is stranded when submissions race with a stripe releasing itself.
+     */
+    @Test
+    public void testConcurrentSubmissionsAllComplete() throws Exception {
+        RecordingProcessor processor = new RecordingProcessor();
+        ExecutorService stripes = Executors.newFixedThreadPool(2);
+        ExecutorService submitters = Executors.newFixedThreadPool(8);
+        StripedPaymentDispatcher dispatcher = new StripedPaymentDispatcher(processor, 2, 4, 100_000, stripes);
+        try {
+            int payments = 20_000;
+            List<CompletableFuture<PaymentResult>> results = Collections.synchronizedList(new ArrayList<>());
+            CountDownLatch start = new CountDownLatch(1);
+            for (int i = 0; i < payments; i++) {
+                long userId = i % 5;
+                submitters.execute(() -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    results.add(dispatcher.submit(payment(userId)));
+                });
+            }
+            start.countDown();
+            submitters.shutdown();
+            assertTrue(submitters.awaitTermination(30, TimeUnit.SECONDS));
+            
+            for (CompletableFuture<PaymentResult> result : results) {
+                assertEquals("SUCCESS", result.get(10, TimeUnit.SECONDS).status());
+            }
+            assertEquals(payments, processor.applied.get());
+        } finally {
+            stripes.shutdownNow();
+        }
+    }
+    
+    /**
+     * Test that users sharing a stripe get separate transactions, and that a
+     * failed transaction falls back to one payment at a time.
+     */
+    @Test
+    public void testUsersOnStripeAppliedSeparately() {
+        RecordingProcessor processor = new RecordingProcessor();
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        StripedPaymentDispatcher dispatcher = new StripedPaymentDispatcher(processor, 1, 500, 10, tasks::add);
+        
+        CompletableFuture<PaymentResult> a = dispatcher.submit(payment(1L));
+        CompletableFuture<PaymentResult> b = dispatcher.submit(payment(FAILING_USER));
+        CompletableFuture<PaymentResult> c = dispatcher.submit(payment(1L));
+        CompletableFuture<PaymentResult> d = dispatcher.submit(payment(FAILING_USER));
+        tasks.poll().run();
+        
+        assertEquals(List.of(List.of(1L, 1L), List.of(FAILING_USER, FAILING_USER)), processor.groups);
+        assertEquals("SUCCESS", a.join().status());
+        assertEquals("SUCCESS", c.join().status());
+        assertEquals("FAILED: numeric field overflow", b.join().status());
+        assertEquals("FAILED: numeric field overflow", d.join().status());
+        assertEquals(2, processor.singles.get());
+    }
+    
+    /**
+     * Test that payments are rejected as unavailable while their stripe is full.
+     */
+    @Test
+    public void testRejectsWhenStripeFull() {
+        Queue<Runnable> tasks = new ArrayDeque<>();
+        StripedPaymentDispatcher dispatcher = new StripedPaymentDispatcher(new RecordingProcessor(), 1, 500, 1, tasks::add);
+        
+        dispatcher.submit(payment(1L));
+        PaymentResult rejected = dispatcher.submit(payment(2L)).join();
+        
+        assertTrue(rejected.unavailable());
+    }
+    
+    private static AddPaymentCommand payment(long userId) {
+        return new AddPaymentCommand(userId, BigDecimal.ONE);
+    }
+    
+    /**
+     * Records the calls it gets, and fails every payment of the failing user.
+     */
+    private static class RecordingProcessor extends PaymentProcessor {
+        
+        final List<List<Long>> groups = Collections.synchronizedList(new ArrayList<>());
+        final AtomicInteger singles = new AtomicInteger();
+        final AtomicInteger applied = new AtomicInteger();
+        
+        @Override
+        public PaymentResult processPayment(AddPaymentCommand command) {
+            singles.incrementAndGet();
+            if (command.userId() == FAILING_USER) {
+                return PaymentResult.failure(command.userId(), command.amount(), "numeric field overflow");
+            }
+            applied.incrementAndGet();
+            return PaymentResult.success(1L, command.userId(), command.amount(), command.amount());
+        }
+        
+        @Override
+        public List<PaymentResult> applyPaymentGroups(List<AddPaymentCommand> commands) throws SQLException {
+            List<Long> userIds = new ArrayList<>();
+            List<PaymentResult> results = new ArrayList<>();
+            for (AddPaymentCommand command : commands) {
+                userIds.add(command.userId());
+                results.add(PaymentResult.success(1L, command.userId(), command.amount(), command.amount()));
+            }
+            groups.add(userIds);
+            if (userIds.contains(FAILING_USER)) {
+                throw new SQLException("numeric field overflow");
+            }
+            applied.addAndGet(commands.size());
+            return results;
+        }
+    }
+}
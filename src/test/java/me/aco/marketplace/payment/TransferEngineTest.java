@@ -0,0 +1,90 @@
+package me.aco.marketplace.payment;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import me.aco.marketplace.payment.database.UserRepository.UserStatus;
+
+/**
+ * Unit test for the in-memory planning of TransferEngine.
+ */
+public class TransferEngineTest {
+    
+    private static final Map<Long, UserStatus> STATUSES = Map.of(
+        1L, new UserStatus(1L, true, new BigDecimal("100.00")),
+        2L, new UserStatus(2L, true, new BigDecimal("5.00")),
+        3L, new UserStatus(3L, false, new BigDecimal("0.00"))
+    );
+    
+    /**
+     * Test that each transfer sees the balances left by the ones before it.
+     */
+    @Test
+    public void testAppliesInRequestOrder() {
+        List<TransferCommand> commands = List.of(
+            TransferCommand.withdrawal(2L, 800),
+            TransferCommand.purchase(1L, 2L, 9_000),
+            TransferCommand.withdrawal(2L, 800),
+            TransferCommand.withdrawal(1L, 1_001),
+            TransferCommand.payment(1L, 1)
+        );
+        PaymentResult[] results = new PaymentResult[commands.size()];
+        
+        TransferEngine.Plan plan = TransferEngine.plan(commands, List.of(0, 1, 2, 3, 4), STATUSES, results);
+        
+        assertEquals("FAILED: Insufficient balance", results[0].status());
+        assertEquals("FAILED: Insufficient balance", results[3].status());
+        assertEquals(List.of(1, 2, 4), plan.accepted());
+        assertArrayEquals(new long[] {1_000, 8_700, 1_001}, plan.newBalances());
+        assertArrayEquals(new long[] {1L, 2L}, plan.userIds());
+        assertArrayEquals(new long[] {-8_999, 8_200}, plan.deltas());
+        assertEquals(Map.of(1L, 1_001L, 2L, 8_700L), plan.balances());
+    }
+    
+    /**
+     * Test that a purchase is rejected when the buyer or the seller cannot take part.
+     */
+    @Test
+    public void testRejectsUnavailableUsers() {
+        List<TransferCommand> commands = List.of(
+            TransferCommand.purchase(1L, 3L, 100),
+            TransferCommand.purchase(1L, 4L, 100),
+            TransferCommand.purchase(3L, 1L, 100)
+        );
+        PaymentResult[] results = new PaymentResult[commands.size()];
+        
+        TransferEngine.Plan plan = TransferEngine.plan(commands, List.of(0, 1, 2), STATUSES, results);
+        
+        assertEquals("FAILED: Seller account is not active", results[0].status());
+        assertEquals("FAILED: Seller not found: 4", results[1].status());
+        assertEquals("FAILED: User account is not active", results[2].status());
+        assertEquals(List.of(), plan.accepted());
+        assertEquals(0, plan.userIds().length);
+    }
+    
+    /**
+     * Test validation of the type and the seller.
+     */
+    @Test
+    public void testValidate() {
+        TransferCommand.purchase(1L, 2L, 100).validate();
+        
+        assertThrows(IllegalArgumentException.class, () -> new TransferCommand(null, 1L, null, 100).validate());
+        assertThrows(IllegalArgumentException.class, () -> TransferCommand.purchase(1L, null, 100).validate());
+        assertThrows(IllegalArgumentException.class, () -> TransferCommand.purchase(1L, 1L, 100).validate());
+        assertThrows(IllegalArgumentException.class,
+            () -> new TransferCommand(TransferType.WITHDRAWAL, 1L, 2L, 100).validate());
+        assertThrows(IllegalArgumentException.class, () -> TransferCommand.withdrawal(1L, 0).validate());
+        
+        assertEquals(TransferType.PURCHASE, TransferType.of(" purchase "));
+        assertNull(TransferType.of("REFUND"));
+    }
+}
@@ -0,0 +1,47 @@
+package me.aco.marketplace.payment.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for the sizing decisions of AdaptivePoolSizer.
+ */
+public class AdaptivePoolSizerTest {
+    
+    private static final long INTERVAL = TimeUnit.SECONDS.toNanos(10);
+    
+    private final AdaptivePoolSizer sizer = new AdaptivePoolSizer(new PoolMetrics(), 2, 40, 4, 5);
+    
+    /**
+     * Test that a pool busy during the interval is kept even if it is idle when sampled.
+     */
+    @Test
+    public void testKeepsPoolBusyBetweenSamples() {
+        // 10 connections borrowed 80% of a 10 s interval, none active at the sample
+        PoolMetrics.Snapshot last = snapshot(0, 0, 0, 0);
+        PoolMetrics.Snapshot current = snapshot(0, 1_000, 1_000_000, 80_000);
+        
+        assertEquals(10, sizer.nextSize(10, last, current, INTERVAL));
+    }
+    
+    /**
+     * Test that the pool shrinks one step when it was mostly idle and grows by a quarter under contention.
+     */
+    @Test
+    public void testResizes() {
+        PoolMetrics.Snapshot last = snapshot(0, 0, 0, 0);
+        
+        assertEquals(9, sizer.nextSize(10, last, snapshot(0, 100, 100_000, 20_000), INTERVAL));
+        assertEquals(12, sizer.nextSize(10, last, snapshot(3, 100, 100_000, 100_000), INTERVAL));
+        assertEquals(12, sizer.nextSize(10, last, snapshot(0, 100, TimeUnit.MILLISECONDS.toNanos(1_000), 90_000),
+            INTERVAL));
+        assertEquals(2, sizer.nextSize(2, last, snapshot(0, 0, 0, 0), INTERVAL));
+    }
+    
+    private static PoolMetrics.Snapshot snapshot(int pending, long acquires, long acquireNanos, long usageMillis) {
+        return new PoolMetrics.Snapshot(10, 0, 10, pending, 10, acquires, acquireNanos, usageMillis, 0);
+    }
+}
@@ -0,0 +1,79 @@
+package me.aco.marketplace.payment.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for CircuitBreaker.
+ */
+public class CircuitBreakerTest {
+    
+    private static final SQLException TIMEOUT = new SQLTransientConnectionException("Connection is not available");
+    
+    /**
+     * Test that the breaker opens once the failure rate of the window reaches the threshold.
+     */
+    @Test
+    public void testOpensAtFailureRate() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(10, 4, 50, 60_000, 1);
+        breaker.onSuccess();
+        breaker.onSuccess();
+        breaker.onFailure(TIMEOUT);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        
+        breaker.onFailure(TIMEOUT);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertThrows(CircuitBreakerOpenException.class, breaker::acquirePermission);
+        assertEquals(1, breaker.rejected());
+        assertEquals(1, breaker.transitions(CircuitBreaker.State.OPEN));
+    }
+    
+    /**
+     * Test that errors of single statements do not count as failures.
+     */
+    @Test
+    public void testIgnoresStatementErrors() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(4, 2, 50, 60_000, 1);
+        for (int i = 0; i < 5; i++) {
+            breaker.onFailure(new SQLException("duplicate key", "23505"));
+        }
+        breaker.acquirePermission();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        
+        breaker.onFailure(new SQLException("terminating connection due to administrator command", "57P01"));
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        breaker.onFailure(new SQLException("cannot execute UPDATE in a read-only transaction", "25006"));
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+    }
+    
+    /**
+     * Test that successful probes close a half-open breaker and a failed probe reopens it.
+     */
+    @Test
+    public void testHalfOpenProbes() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(4, 2, 50, 0, 2);
+        breaker.onFailure(TIMEOUT);
+        breaker.onFailure(TIMEOUT);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        
+        breaker.acquirePermission();
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.state());
+        breaker.acquirePermission();
+        assertThrows(CircuitBreakerOpenException.class, breaker::acquirePermission);
+        breaker.onSuccess();
+        breaker.onFailure(TIMEOUT);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        
+        breaker.acquirePermission();
+        breaker.acquirePermission();
+        breaker.onSuccess();
+        breaker.onSuccess();
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        assertEquals(2, breaker.transitions(CircuitBreaker.State.HALF_OPEN));
+    }
+}
@@ -0,0 +1,30 @@
+package me.aco.marketplace.payment.database;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for the JDBC form of the shared credit statement.
+ */
+public class CreditPaymentSqlTest {
+    
+    /**
+     * Test that every numbered placeholder becomes a positional parameter bound from its number.
+     */
+    @Test
+    public void testJdbcParameters() {
+        CreditPaymentSql.Jdbc credit = CreditPaymentSql.jdbc(CreditPaymentSql.of(false, false));
+        CreditPaymentSql.Jdbc withKey = CreditPaymentSql.jdbc(CreditPaymentSql.of(false, true));
+        CreditPaymentSql.Jdbc ledgerWithKey = CreditPaymentSql.jdbc(CreditPaymentSql.of(true, true));
+        
+        assertArrayEquals(new int[] {1, 2, 1}, credit.parameters());
+        assertArrayEquals(new int[] {1, 2, 1, 3}, withKey.parameters());
+        assertArrayEquals(new int[] {1, 2, 1, 3}, ledgerWithKey.parameters());
+        assertFalse(withKey.sql().contains("$"));
+        assertTrue(ledgerWithKey.sql().contains("INSERT INTO payment_ledger"));
+        assertFalse(withKey.sql().contains("payment_ledger"));
+    }
+}
@@ -0,0 +1,58 @@
+package me.aco.marketplace.payment.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.jupiter.api.Test;
+
+import com.zaxxer.hikari.HikariDataSource;
+
+/**
+ * Unit test for DatabaseConfig pool replacement, without a database.
+ */
+public class DatabaseConfigTest {
+    
+    /**
+     * Test that a reconfigured pool keeps its JMX beans after the pool it replaces is retired.
+     */
+    @Test
+    public void testReconfigureKeepsPoolRegistered() throws Exception {
+        System.setProperty("DB_URL", "jdbc:postgresql://localhost:1/unreachable");
+        System.setProperty("DB_INITIALIZATION_FAIL_TIMEOUT_MS", "-1");
+        MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+        try {
+            HikariDataSource first = DatabaseConfig.pool();
+            
+            DatabaseConfig.reconfigure();
+            HikariDataSource second = DatabaseConfig.currentPool();
+            
+            assertNotSame(first, second);
+            assertEquals(first.getPoolName() + "-1", second.getPoolName());
+            // Hikari marks the pool closed before it unregisters its beans
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while ((!first.isClosed() || mbeans.isRegistered(poolBean(first))) && System.nanoTime() < deadline) {
+                Thread.sleep(10);
+            }
+            assertTrue(first.isClosed());
+            assertFalse(second.isClosed());
+            assertFalse(mbeans.isRegistered(poolBean(first)));
+            assertTrue(mbeans.isRegistered(poolBean(second)));
+        } finally {
+            DatabaseConfig.close();
+            System.clearProperty("DB_URL");
+            System.clearProperty("DB_INITIALIZATION_FAIL_TIMEOUT_MS");
+        }
+    }
+    
+    private static ObjectName poolBean(HikariDataSource pool) throws Exception {
+        return new ObjectName("com.zaxxer.hikari:type=Pool (" + pool.getPoolName() + ")");
+    }
+}
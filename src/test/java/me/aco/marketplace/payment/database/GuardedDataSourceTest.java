@@ -0,0 +1,64 @@
+package me.aco.marketplace.payment.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.SQLTransientConnectionException;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for GuardedDataSource with a database that is down when the pool is created.
+ */
+public class GuardedDataSourceTest {
+    
+    /**
+     * Like Hikari's PoolInitializationException, thrown while the database is unreachable.
+     */
+    private static final Supplier<DataSource> UNREACHABLE = () -> {
+        throw new RuntimeException("Failed to initialize pool: Connection to localhost:5432 refused.");
+    };
+    
+    /**
+     * Test that pool initialization failures are reported as transient
+     * connection failures and open the breaker.
+     */
+    @Test
+    public void testPoolInitializationFailureOpensBreaker() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 2, 50, 60_000, 1);
+        GuardedDataSource dataSource = new GuardedDataSource(breaker, UNREACHABLE);
+        
+        SQLTransientConnectionException failure = assertThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+        assertSame(RuntimeException.class, failure.getCause().getClass());
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.state());
+        
+        assertThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        assertThrows(CircuitBreakerOpenException.class, dataSource::getConnection);
+        assertEquals(1, breaker.rejected());
+    }
+    
+    /**
+     * Test that a half-open probe that fails to create the pool reopens the
+     * breaker, instead of holding its probe slot.
+     */
+    @Test
+    public void testPoolInitializationFailureCompletesProbe() {
+        CircuitBreaker breaker = new CircuitBreaker(4, 1, 50, 0, 1);
+        GuardedDataSource dataSource = new GuardedDataSource(breaker, UNREACHABLE);
+        assertThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+        assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        
+        for (int i = 0; i < 3; i++) {
+            SQLTransientConnectionException failure = assertThrows(SQLTransientConnectionException.class, dataSource::getConnection);
+            assertSame(SQLTransientConnectionException.class, failure.getClass());
+            assertEquals(CircuitBreaker.State.OPEN, breaker.state());
+        }
+        assertEquals(3, breaker.transitions(CircuitBreaker.State.HALF_OPEN));
+        assertEquals(0, breaker.rejected());
+    }
+}
@@ -0,0 +1,47 @@
+package me.aco.marketplace.payment.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for the routing decision of ReplicaRouter.
+ */
+public class ReplicaRouterTest {
+    
+    /**
+     * Test that reads stay on the primary until the lag is known.
+     */
+    @Test
+    public void testUnknownLagReadsFromPrimary() {
+        ReplicaRouter router = new ReplicaRouter(1_000);
+        assertFalse(router.fresh());
+        assertEquals(-1, router.lagMillis());
+    }
+    
+    /**
+     * Test that reads follow the measured lag.
+     */
+    @Test
+    public void testFollowsLag() {
+        ReplicaRouter router = new ReplicaRouter(1_000);
+        router.recordLag(250L);
+        assertTrue(router.fresh());
+        assertEquals(250, router.lagMillis());
+        
+        router.recordLag(1_000L);
+        assertTrue(router.fresh());
+        
+        router.recordLag(1_001L);
+        assertFalse(router.fresh());
+        
+        router.recordLag(0L);
+        assertTrue(router.fresh());
+        
+        router.recordLag(null);
+        assertFalse(router.fresh());
+        assertEquals(-1, router.lagMillis());
+    }
+}
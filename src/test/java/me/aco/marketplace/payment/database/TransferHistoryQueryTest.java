@@ -0,0 +1,39 @@
+package me.aco.marketplace.payment.database;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.time.LocalDateTime;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Unit test for TransferHistoryQuery class.
+ */
+public class TransferHistoryQueryTest {
+    
+    /**
+     * Test that a position survives the cursor round trip to the microsecond.
+     */
+    @Test
+    public void testCursorRoundTrip() {
+        TransferHistoryQuery.Position position =
+            new TransferHistoryQuery.Position(42L, LocalDateTime.of(2024, 3, 1, 12, 30, 15, 123_456_000));
+        
+        assertEquals(position, TransferHistoryQuery.Position.fromCursor(position.toCursor()));
+        
+        TransferHistoryQuery.Position beforeEpoch =
+            new TransferHistoryQuery.Position(7L, LocalDateTime.of(1969, 12, 31, 23, 59, 59, 999_999_000));
+        assertEquals(beforeEpoch, TransferHistoryQuery.Position.fromCursor(beforeEpoch.toCursor()));
+    }
+    
+    /**
+     * Test that malformed cursors are rejected.
+     */
+    @Test
+    public void testRejectsMalformedCursor() {
+        assertThrows(IllegalArgumentException.class, () -> TransferHistoryQuery.Position.fromCursor("42"));
+        assertThrows(IllegalArgumentException.class, () -> TransferHistoryQuery.Position.fromCursor("_1"));
+        assertThrows(IllegalArgumentException.class, () -> TransferHistoryQuery.Position.fromCursor("a_b"));
+    }
+}